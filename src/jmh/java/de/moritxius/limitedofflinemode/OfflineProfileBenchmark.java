@@ -0,0 +1,50 @@
+package de.moritxius.limitedofflinemode;
+
+import com.velocitypowered.api.util.GameProfile;
+import com.velocitypowered.api.util.UuidUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The work {@code onGameProfileRequest} does for an allowed user: hash the offline UUID and build the profile.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OfflineProfileBenchmark {
+
+    private static final String[] NAMES = {"ServerAdmin", "HeadDeveloper", "Tester_4711", "qa_bot_12"};
+
+    private int cursor;
+
+    @Benchmark
+    public UUID offlineUuid() {
+        return UuidUtils.generateOfflinePlayerUuid(next());
+    }
+
+    @Benchmark
+    public GameProfile offlineProfile() {
+        String username = next();
+        UUID offlineUuid = UuidUtils.generateOfflinePlayerUuid(username);
+        return new GameProfile(offlineUuid, username, Collections.emptyList());
+    }
+
+    private String next() {
+        cursor = (cursor + 1) & (NAMES.length - 1);
+        return NAMES[cursor];
+    }
+}
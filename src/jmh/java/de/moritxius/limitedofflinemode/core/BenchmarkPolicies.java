@@ -0,0 +1,68 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Synthetic policies shared by the benchmarks.
+ */
+final class BenchmarkPolicies {
+
+    static final PolicyLogger SILENT = new PolicyLogger() {
+        @Override
+        public void info(String message) {
+        }
+
+        @Override
+        public void warn(String message) {
+        }
+
+        @Override
+        public void error(String message, Throwable cause) {
+        }
+    };
+
+    private BenchmarkPolicies() {
+    }
+
+    /**
+     * Spreads {@code users} members round-robin over {@code groups} groups, all of them enabled.
+     */
+    static PolicySnapshot roster(int users, int groups) {
+        Map<String, Set<String>> playerGroups = new HashMap<>();
+        for (int i = 0; i < users; i++) {
+            playerGroups.computeIfAbsent(groupName(i % groups), key -> new HashSet<>()).add(Names.normalizeUsername(member(i)));
+        }
+        return PolicySnapshot.of(Set.of(), playerGroups, playerGroups.keySet());
+    }
+
+    static String groupName(int index) {
+        return "group" + index;
+    }
+
+    /**
+     * @return the login name of member {@code index}, in the mixed case a client would send
+     */
+    static String member(int index) {
+        return "Tester_" + index;
+    }
+
+    static String stranger(int index) {
+        return "Player_" + index;
+    }
+
+    static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
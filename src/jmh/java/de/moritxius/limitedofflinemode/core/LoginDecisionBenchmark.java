@@ -0,0 +1,66 @@
+package de.moritxius.limitedofflinemode.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The check every PreLogin / GameProfileRequest / PostLogin performs, for allowlisted and unknown names.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class LoginDecisionBenchmark {
+
+    private static final int PROBES = 4096;
+
+    @Param({"10", "1000", "100000", "1000000"})
+    public int users;
+
+    @Param({"1", "10", "1000"})
+    public int groups;
+
+    private PolicyStore store;
+    private final String[] members = new String[PROBES];
+    private final String[] strangers = new String[PROBES];
+    private int cursor;
+
+    @Setup
+    public void setUp() {
+        store = new PolicyStore();
+        store.publish(BenchmarkPolicies.roster(users, groups));
+        for (int i = 0; i < PROBES; i++) {
+            // spread probes over the whole roster so large rosters are not served from a hot cache line
+            members[i] = BenchmarkPolicies.member((int) ((long) i * users / PROBES) % users);
+            strangers[i] = BenchmarkPolicies.stranger(i);
+        }
+    }
+
+    @Benchmark
+    public boolean hit() {
+        return store.isUserAllowed(members[next()]);
+    }
+
+    @Benchmark
+    public boolean miss() {
+        return store.isUserAllowed(strangers[next()]);
+    }
+
+    private int next() {
+        cursor = (cursor + 1) & (PROBES - 1);
+        return cursor;
+    }
+}
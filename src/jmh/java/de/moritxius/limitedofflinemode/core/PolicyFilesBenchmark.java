@@ -0,0 +1,89 @@
+package de.moritxius.limitedofflinemode.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Config I/O: parsing {@code player-groups.txt}, reading {@code policy.bin} and writing the groups file back.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class PolicyFilesBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int users;
+
+    @Param({"100"})
+    public int groups;
+
+    private Path dataDirectory;
+    private Path groupsPath;
+    private PolicyFiles files;
+    private PolicySnapshot snapshot;
+    private BinarySnapshot binarySnapshot;
+    private BinarySnapshot.Fingerprint allowedUsersFingerprint;
+    private BinarySnapshot.Fingerprint groupsFingerprint;
+
+    @Setup
+    public void setUp() throws IOException {
+        dataDirectory = Files.createTempDirectory("lom-bench");
+        groupsPath = dataDirectory.resolve(PolicyFiles.PLAYER_GROUPS_FILE);
+        Path allowedUsersPath = dataDirectory.resolve(PolicyFiles.ALLOWED_USERS_FILE);
+        Files.writeString(allowedUsersPath, "# none\n");
+
+        files = new PolicyFiles(dataDirectory, BenchmarkPolicies.SILENT);
+        snapshot = BenchmarkPolicies.roster(users, groups);
+        files.savePlayerGroups(snapshot);
+
+        allowedUsersFingerprint = BinarySnapshot.Fingerprint.of(allowedUsersPath);
+        groupsFingerprint = BinarySnapshot.Fingerprint.of(groupsPath);
+        binarySnapshot = new BinarySnapshot(dataDirectory, BenchmarkPolicies.SILENT);
+        binarySnapshot.write(snapshot, allowedUsersFingerprint, groupsFingerprint);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        BenchmarkPolicies.deleteRecursively(dataDirectory);
+    }
+
+    @Benchmark
+    public Map<String, Set<String>> parsePlayerGroups() throws IOException {
+        Map<String, Set<String>> playerGroups = new HashMap<>();
+        PolicyParser.parsePlayerGroups(groupsPath, playerGroups, new HashSet<>(), new Expiries.Builder(),
+                new HashMap<>(), BenchmarkPolicies.SILENT);
+        return playerGroups;
+    }
+
+    @Benchmark
+    public PolicySnapshot readBinarySnapshot() {
+        return binarySnapshot.read(allowedUsersFingerprint, groupsFingerprint);
+    }
+
+    @Benchmark
+    public boolean savePlayerGroups() {
+        return files.savePlayerGroups(snapshot);
+    }
+}
@@ -1,30 +1,39 @@
 package de.moritxius.limitedofflinemode;
 
+import de.moritxius.limitedofflinemode.core.AuditLog;
+import de.moritxius.limitedofflinemode.core.Grant;
+import de.moritxius.limitedofflinemode.core.LimitedOfflineModeCore;
+import de.moritxius.limitedofflinemode.core.LoginMetrics;
+import de.moritxius.limitedofflinemode.core.PendingLogins;
+import de.moritxius.limitedofflinemode.core.PolicyLogger;
 import net.md_5.bungee.api.CommandSender;
 import net.md_5.bungee.api.chat.TextComponent;
+import net.md_5.bungee.api.config.ServerInfo;
 import net.md_5.bungee.api.connection.PendingConnection;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
+import net.md_5.bungee.api.event.PlayerDisconnectEvent;
 import net.md_5.bungee.api.event.PostLoginEvent;
 import net.md_5.bungee.api.event.PreLoginEvent;
+import net.md_5.bungee.api.event.ServerConnectEvent;
 import net.md_5.bungee.api.plugin.Command;
 import net.md_5.bungee.api.plugin.Listener;
 import net.md_5.bungee.api.plugin.Plugin;
+import net.md_5.bungee.api.plugin.TabExecutor;
 import net.md_5.bungee.event.EventHandler;
 import net.md_5.bungee.event.EventPriority;
 import org.bstats.bungeecord.Metrics;
+import org.bstats.charts.SimplePie;
+import org.bstats.charts.SingleLineChart;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * BungeeCord plugin for LimitedOfflineMode
@@ -33,11 +42,13 @@ public class LimitedOfflineModeBungeeCordPlugin extends Plugin implements Listen
 
     private static final int BSTATS_PLUGIN_ID = 29812;
 
-    private final Set<String> allowedUsers = new HashSet<>();
-    private final Map<String, Set<String>> playerGroups = new HashMap<>();
-    private final Set<String> enabledGroups = new HashSet<>();
+    private LimitedOfflineModeCore core;
     private Path dataDirectory;
     private Metrics metrics;
+    private final PendingLogins<PendingConnection, Grant> offlineLogins = new PendingLogins<>();
+    // login grants of players let in offline, and servers the database allowed a switch to
+    private final Map<ProxiedPlayer, Grant> offlinePlayers = new ConcurrentHashMap<>();
+    private final PendingLogins<ProxiedPlayer, String> checkedServers = new PendingLogins<>();
 
     @Override
     public void onLoad() {
@@ -53,8 +64,10 @@ public class LimitedOfflineModeBungeeCordPlugin extends Plugin implements Listen
             getLogger().severe("Failed to create data directory: " + e.getMessage());
         }
 
-        loadAllowedUsers();
-        loadPlayerGroups();
+        core = new LimitedOfflineModeCore(dataDirectory, policyLogger());
+        core.setKnownServers(getProxy().getServers().keySet());
+        // the lists load in the background, online-mode players can join in the meantime
+        core.loadAsync();
         initializeMetrics();
         getProxy().getPluginManager().registerListener(this, this);
         getProxy().getPluginManager().registerCommand(this, new GroupCommand());
@@ -63,216 +76,174 @@ public class LimitedOfflineModeBungeeCordPlugin extends Plugin implements Listen
 
     @Override
     public void onDisable() {
+        if (core != null) {
+            core.shutdown();
+        }
         getLogger().info("LimitedOfflineMode BungeeCord plugin disabled!");
     }
 
     private void initializeMetrics() {
         metrics = new Metrics(this, BSTATS_PLUGIN_ID);
+        LoginMetrics loginMetrics = core.metrics();
+        metrics.addCustomChart(new SingleLineChart("offline_logins", loginMetrics::offlineGrantedSinceLastReport));
+        metrics.addCustomChart(new SimplePie("offline_players",
+                () -> LoginMetrics.sizeBucket(core.policy().current().grantedUserCount())));
+        metrics.addCustomChart(new SimplePie("enabled_groups",
+                () -> LoginMetrics.sizeBucket(core.policy().current().enabledGroups().size())));
         getLogger().info("bStats metrics initialized for BungeeCord (plugin id: " + BSTATS_PLUGIN_ID + ")");
     }
 
-    private void loadAllowedUsers() {
-        try {
-            allowedUsers.clear();
-            Path configPath = dataDirectory.resolve("allowed-users.txt");
-            if (Files.exists(configPath)) {
-                Files.readAllLines(configPath, StandardCharsets.UTF_8).forEach(line -> {
-                    String trimmed = line.trim();
-                    if (!trimmed.isEmpty() && !trimmed.startsWith("#")) {
-                        allowedUsers.add(trimmed.toLowerCase(Locale.ROOT));
-                    }
-                });
-                getLogger().info("Loaded " + allowedUsers.size() + " allowed users");
-            } else {
-                getLogger().info("Creating default allowed-users.txt");
-                Files.write(configPath, "# Add usernames that should be allowed to join in offline mode\n".getBytes(StandardCharsets.UTF_8));
-            }
-        } catch (IOException e) {
-            getLogger().severe("Failed to load allowed users configuration: " + e.getMessage());
-        }
-    }
-
-    private void loadPlayerGroups() {
-        try {
-            playerGroups.clear();
-            enabledGroups.clear();
-
-            Path groupsPath = dataDirectory.resolve("player-groups.txt");
-            if (!Files.exists(groupsPath)) {
-                Files.write(groupsPath, List.of(
-                        "# Format: groupName|enabled|player1,player2",
-                        "admins|true|ServerAdmin,HeadDeveloper",
-                        "testers|false|TestUser"
-                ), StandardCharsets.UTF_8);
-                getLogger().info("Created default player-groups.txt");
-                return;
-            }
-
-            Files.readAllLines(groupsPath, StandardCharsets.UTF_8).forEach(line -> {
-                String trimmed = line.trim();
-                if (trimmed.isEmpty() || trimmed.startsWith("#")) {
-                    return;
-                }
-
-                String[] parts = trimmed.split("\\|", -1);
-                if (parts.length < 3) {
-                    getLogger().warning("Skipping invalid group line: " + trimmed);
-                    return;
-                }
-
-                String groupName = normalizeGroupName(parts[0]);
-                boolean enabled = Boolean.parseBoolean(parts[1].trim());
-                Set<String> members = Arrays.stream(parts[2].split(","))
-                        .map(this::normalizeUsername)
-                        .filter(name -> !name.isEmpty())
-                        .collect(Collectors.toCollection(HashSet::new));
-
-                if (groupName.isEmpty()) {
-                    return;
-                }
-
-                playerGroups.put(groupName, members);
-                if (enabled) {
-                    enabledGroups.add(groupName);
-                }
-            });
-
-            getLogger().info("Loaded " + playerGroups.size() + " player groups (" + enabledGroups.size() + " enabled)");
-        } catch (IOException e) {
-            getLogger().severe("Failed to load player groups: " + e.getMessage());
-        }
-    }
-
-    private void savePlayerGroups() {
-        Path groupsPath = dataDirectory.resolve("player-groups.txt");
-        List<String> lines = playerGroups.entrySet().stream()
-                .sorted(Map.Entry.comparingByKey())
-                .map(entry -> {
-                    String members = entry.getValue().stream().sorted().collect(Collectors.joining(","));
-                    return entry.getKey() + "|" + enabledGroups.contains(entry.getKey()) + "|" + members;
-                })
-                .collect(Collectors.toList());
-
-        lines.add(0, "# Format: groupName|enabled|player1,player2");
-
-        try {
-            Files.write(groupsPath, lines, StandardCharsets.UTF_8);
-        } catch (IOException e) {
-            getLogger().severe("Failed to save player groups: " + e.getMessage());
-        }
-    }
-
+    /**
+     * Decides right away if the policy or the allow list cache knows the name, or the address is over its offline
+     * login limit; otherwise the login is held with an intent until the database lookup completes, or with
+     * {@code startup.fallback=wait} until the policy is loaded.
+     */
     @EventHandler(priority = EventPriority.HIGHEST)
     public void onPreLogin(PreLoginEvent event) {
+        long start = System.nanoTime();
         PendingConnection connection = event.getConnection();
         String username = connection.getName();
+        if (username == null) {
+            core.metrics().recordPreLogin(System.nanoTime() - start, null);
+            return;
+        }
 
-        if (username != null && isUserAllowed(username)) {
+        InetAddress address = connection.getSocketAddress() instanceof InetSocketAddress remote ? remote.getAddress() : null;
+        CompletableFuture<Grant> lookup = core.grantAsync(username, address);
+        if (lookup.isDone()) {
+            decidePreLogin(connection, username, lookup.join(), start);
+            return;
+        }
+        event.registerIntent(this);
+        lookup.whenComplete((grant, error) -> {
+            try {
+                decidePreLogin(connection, username, grant, start);
+            } finally {
+                event.completeIntent(this);
+            }
+        });
+    }
+
+    private void decidePreLogin(PendingConnection connection, String username, Grant grant, long start) {
+        if (grant != null) {
             connection.setOnlineMode(false);
-            getLogger().info("Allowing offline mode for allowed user: " + username);
+            offlineLogins.put(connection, grant);
+        }
+        core.metrics().recordPreLogin(System.nanoTime() - start, grant);
+        if (grant != null) {
+            core.audit().record(AuditLog.Action.OFFLINE_MODE, username);
         }
     }
 
     @EventHandler(priority = EventPriority.NORMAL)
     public void onPostLogin(PostLoginEvent event) {
+        long start = System.nanoTime();
         ProxiedPlayer player = event.getPlayer();
         String username = player.getName();
 
-        if (isUserAllowed(username)) {
-            getLogger().info("Offline mode player connected: " + username + " (" + player.getUniqueId() + ")");
+        Grant grant = offlineLogins.take(player.getPendingConnection());
+        core.metrics().recordPostLogin(System.nanoTime() - start);
+        if (grant != null) {
+            offlinePlayers.put(player, grant);
+            core.audit().record(AuditLog.Action.CONNECTED, username, player.getUniqueId());
         }
     }
 
-    private boolean isUserAllowed(String username) {
-        String normalized = normalizeUsername(username);
-        if (allowedUsers.contains(normalized)) {
-            return true;
-        }
+    @EventHandler
+    public void onPlayerDisconnect(PlayerDisconnectEvent event) {
+        offlinePlayers.remove(event.getPlayer());
+        checkedServers.take(event.getPlayer());
+    }
 
-        for (String enabledGroup : enabledGroups) {
-            Set<String> members = playerGroups.get(enabledGroup);
-            if (members != null && members.contains(normalized)) {
-                return true;
+    /**
+     * Checks the server connections of players who skipped authentication, right away if the policy or the allow list
+     * cache knows the name. BungeeCord cannot hold this event, so a server switch waiting for the database is
+     * cancelled and made again once the lookup allowed it. The first connection after joining cannot be cancelled
+     * without a server to stay on; it is let through only if a recorded login grant came from the allow list, which
+     * was looked up for this very login.
+     */
+    @EventHandler(priority = EventPriority.HIGHEST)
+    public void onServerConnect(ServerConnectEvent event) {
+        ProxiedPlayer player = event.getPlayer();
+        if (event.isCancelled() || player.getPendingConnection().isOnlineMode()) {
+            return;
+        }
+        long start = System.nanoTime();
+        ServerInfo target = event.getTarget();
+        String serverName = target.getName();
+        if (serverName.equals(checkedServers.take(player))) {
+            core.metrics().recordServerConnect(System.nanoTime() - start, true);
+            return;
+        }
+        CompletableFuture<Boolean> check = core.allowsServerAsync(player.getName(), serverName);
+        if (check.isDone() || player.getServer() == null) {
+            // a login grant that was not recorded is treated as not allow-listed, so the join fails closed
+            Grant loginGrant = offlinePlayers.get(player);
+            boolean allowed = check.isDone() ? check.join() : loginGrant != null && loginGrant.allowListed();
+            if (!allowed) {
+                event.setCancelled(true);
             }
+            core.metrics().recordServerConnect(System.nanoTime() - start, allowed);
+            if (!allowed) {
+                denyServer(player, serverName);
+            }
+            return;
         }
-        return false;
+        event.setCancelled(true);
+        ServerConnectEvent.Reason reason = event.getReason();
+        check.whenComplete((listed, error) -> {
+            // a lookup that failed counts as a denial, so the player is told rather than left waiting
+            boolean allowed = error == null && listed;
+            core.metrics().recordServerConnect(System.nanoTime() - start, allowed);
+            if (!allowed) {
+                denyServer(player, serverName);
+            } else if (player.isConnected()) {
+                checkedServers.put(player, serverName);
+                player.connect(target, reason);
+            }
+        });
     }
 
-    private String normalizeUsername(String username) {
-        return username == null ? "" : username.trim().toLowerCase(Locale.ROOT);
+    private void denyServer(ProxiedPlayer player, String serverName) {
+        player.sendMessage(new TextComponent("Your offline access does not include " + serverName + "."));
+        core.audit().record(AuditLog.Action.SERVER_DENIED, player.getName(), serverName);
     }
 
-    private String normalizeGroupName(String groupName) {
-        return groupName == null ? "" : groupName.trim().toLowerCase(Locale.ROOT);
+    private PolicyLogger policyLogger() {
+        return new PolicyLogger() {
+            @Override
+            public void info(String message) {
+                getLogger().info(message);
+            }
+
+            @Override
+            public void warn(String message) {
+                getLogger().warning(message);
+            }
+
+            @Override
+            public void error(String message, Throwable cause) {
+                getLogger().severe(message + ": " + cause.getMessage());
+            }
+        };
     }
 
-    private class GroupCommand extends Command {
+    private class GroupCommand extends Command implements TabExecutor {
         GroupCommand() {
             super("lomgroup", "limitedofflinemode.admin", "limitedofflinemode");
         }
 
         @Override
         public void execute(CommandSender sender, String[] args) {
-            if (args.length < 2 || !"group".equalsIgnoreCase(args[0])) {
-                sendHelp(sender);
-                return;
-            }
-
-            String action = args[1].toLowerCase(Locale.ROOT);
-            String groupName = args.length > 2 ? normalizeGroupName(args[2]) : "";
-
-            switch (action) {
-                case "add" -> {
-                    if (args.length < 4) {
-                        sendMessage(sender, "Usage: /lomgroup group add <group> <player1,player2,...>");
-                        return;
-                    }
-
-                    Set<String> players = Arrays.stream(args[3].split(","))
-                            .map(LimitedOfflineModeBungeeCordPlugin.this::normalizeUsername)
-                            .filter(name -> !name.isEmpty())
-                            .collect(Collectors.toCollection(HashSet::new));
-
-                    if (groupName.isEmpty() || players.isEmpty()) {
-                        sendMessage(sender, "Invalid group or players.");
-                        return;
-                    }
-
-                    playerGroups.computeIfAbsent(groupName, key -> new HashSet<>()).addAll(players);
-                    savePlayerGroups();
-                    sendMessage(sender, "Group '" + groupName + "' updated with " + players.size() + " players.");
-                }
-                case "enable", "disable", "toggle" -> {
-                    if (groupName.isEmpty() || !playerGroups.containsKey(groupName)) {
-                        sendMessage(sender, "Unknown group: " + groupName);
-                        return;
-                    }
-
-                    boolean enable = "enable".equals(action) || ("toggle".equals(action) && !enabledGroups.contains(groupName));
-                    if (enable) {
-                        enabledGroups.add(groupName);
-                    } else {
-                        enabledGroups.remove(groupName);
-                    }
-                    savePlayerGroups();
-                    sendMessage(sender, "Group '" + groupName + "' " + (enable ? "enabled" : "disabled") + ".");
-                }
-                case "list" -> {
-                    sendMessage(sender, "Groups:");
-                    playerGroups.forEach((name, members) ->
-                            sendMessage(sender, "- " + name + " [" + (enabledGroups.contains(name) ? "ON" : "OFF") + "] " + members)
-                    );
-                }
-                default -> sendHelp(sender);
-            }
+            core.commands().execute(args, message -> sendMessage(sender, message));
         }
 
-        private void sendHelp(CommandSender sender) {
-            sendMessage(sender, "/lomgroup group add <group> <player1,player2,...>");
-            sendMessage(sender, "/lomgroup group enable <group>");
-            sendMessage(sender, "/lomgroup group disable <group>");
-            sendMessage(sender, "/lomgroup group toggle <group>");
-            sendMessage(sender, "/lomgroup group list");
+        @Override
+        public Iterable<String> onTabComplete(CommandSender sender, String[] args) {
+            if (!sender.hasPermission("limitedofflinemode.admin")) {
+                return List.of();
+            }
+            return core.commands().suggest(args);
         }
 
         private void sendMessage(CommandSender sender, String message) {
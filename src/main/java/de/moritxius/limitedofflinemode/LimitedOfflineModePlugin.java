@@ -3,36 +3,41 @@ package de.moritxius.limitedofflinemode;
 import com.google.inject.Inject;
 import com.velocitypowered.api.command.CommandSource;
 import com.velocitypowered.api.command.SimpleCommand;
+import com.velocitypowered.api.event.EventTask;
 import com.velocitypowered.api.event.PostOrder;
 import com.velocitypowered.api.event.Subscribe;
 import com.velocitypowered.api.event.connection.LoginEvent;
 import com.velocitypowered.api.event.connection.PreLoginEvent;
 import com.velocitypowered.api.event.connection.PreLoginEvent.PreLoginComponentResult;
 import com.velocitypowered.api.event.player.GameProfileRequestEvent;
+import com.velocitypowered.api.event.player.ServerPreConnectEvent;
+import com.velocitypowered.api.event.player.ServerPreConnectEvent.ServerResult;
 import com.velocitypowered.api.event.proxy.ProxyInitializeEvent;
+import com.velocitypowered.api.event.proxy.ProxyShutdownEvent;
 import com.velocitypowered.api.plugin.Plugin;
 import com.velocitypowered.api.plugin.annotation.DataDirectory;
+import com.velocitypowered.api.proxy.InboundConnection;
+import com.velocitypowered.api.proxy.Player;
 import com.velocitypowered.api.proxy.ProxyServer;
+import com.velocitypowered.api.proxy.server.RegisteredServer;
 import com.velocitypowered.api.util.GameProfile;
-import com.velocitypowered.api.util.UuidUtils;
+import de.moritxius.limitedofflinemode.core.AuditLog;
+import de.moritxius.limitedofflinemode.core.Grant;
+import de.moritxius.limitedofflinemode.core.LimitedOfflineModeCore;
+import de.moritxius.limitedofflinemode.core.LoginMetrics;
+import de.moritxius.limitedofflinemode.core.PendingLogins;
+import de.moritxius.limitedofflinemode.core.PolicyLogger;
 import net.kyori.adventure.text.Component;
+import org.bstats.charts.SimplePie;
+import org.bstats.charts.SingleLineChart;
 import org.bstats.velocity.Metrics;
 import org.slf4j.Logger;
 
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
+import java.net.InetSocketAddress;
 import java.nio.file.Path;
-import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
-import java.util.Map;
-import java.util.Set;
-import java.util.UUID;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
 
 @Plugin(
         id = "limited-offline-mode",
@@ -44,13 +49,12 @@ public class LimitedOfflineModePlugin {
 
     private static final int BSTATS_PLUGIN_ID = 29811;
 
-    private final Set<String> allowedUsers = new HashSet<>();
-    private final Map<String, Set<String>> playerGroups = new HashMap<>();
-    private final Set<String> enabledGroups = new HashSet<>();
+    private final LimitedOfflineModeCore core;
     private final Logger logger;
     private final ProxyServer proxy;
     private final Path dataDirectory;
     private final Metrics.Factory metricsFactory;
+    private final PendingLogins<InboundConnection, GameProfile> offlineProfiles = new PendingLogins<>();
 
     @Inject
     public LimitedOfflineModePlugin(Logger logger, ProxyServer proxy, @DataDirectory Path dataDirectory, Metrics.Factory metricsFactory) {
@@ -58,18 +62,34 @@ public class LimitedOfflineModePlugin {
         this.proxy = proxy;
         this.dataDirectory = dataDirectory;
         this.metricsFactory = metricsFactory;
+        this.core = new LimitedOfflineModeCore(dataDirectory, policyLogger());
     }
 
+    /**
+     * Loads the lists in the background, so the proxy finishes starting and online-mode players can join while they
+     * load.
+     */
     @Subscribe
     public void onProxyInitialization(ProxyInitializeEvent event) {
-        loadAllowedUsers();
-        loadPlayerGroups();
+        core.setKnownServers(proxy.getAllServers().stream().map(server -> server.getServerInfo().getName()).toList());
+        core.loadAsync();
         registerCommands();
         initializeMetrics();
     }
 
+    @Subscribe
+    public void onProxyShutdown(ProxyShutdownEvent event) {
+        core.shutdown();
+    }
+
     private void initializeMetrics() {
-        metricsFactory.make(this, BSTATS_PLUGIN_ID);
+        Metrics metrics = metricsFactory.make(this, BSTATS_PLUGIN_ID);
+        LoginMetrics loginMetrics = core.metrics();
+        metrics.addCustomChart(new SingleLineChart("offline_logins", loginMetrics::offlineGrantedSinceLastReport));
+        metrics.addCustomChart(new SimplePie("offline_players",
+                () -> LoginMetrics.sizeBucket(core.policy().current().grantedUserCount())));
+        metrics.addCustomChart(new SimplePie("enabled_groups",
+                () -> LoginMetrics.sizeBucket(core.policy().current().enabledGroups().size())));
         logger.info("bStats metrics initialized for Velocity (plugin id: {})", BSTATS_PLUGIN_ID);
     }
 
@@ -80,219 +100,149 @@ public class LimitedOfflineModePlugin {
         );
     }
 
-    private void loadAllowedUsers() {
-        try {
-            allowedUsers.clear();
-            Path configPath = dataDirectory.resolve("allowed-users.txt");
-            if (Files.exists(configPath)) {
-                Files.readAllLines(configPath).forEach(line -> {
-                    String trimmed = line.trim();
-                    if (!trimmed.isEmpty() && !trimmed.startsWith("#")) {
-                        allowedUsers.add(trimmed.toLowerCase(Locale.ROOT));
-                    }
-                });
-                logger.info("Loaded {} allowed users", allowedUsers.size());
-            } else {
-                logger.info("Creating default allowed-users.txt");
-                Files.createDirectories(dataDirectory);
-                Files.write(configPath, "# Add usernames that should be allowed to join in offline mode\n".getBytes(StandardCharsets.UTF_8));
-            }
-        } catch (IOException e) {
-            logger.error("Failed to load allowed users configuration", e);
-        }
-    }
-
-    private void loadPlayerGroups() {
-        try {
-            playerGroups.clear();
-            enabledGroups.clear();
-
-            Path groupsPath = dataDirectory.resolve("player-groups.txt");
-            if (!Files.exists(groupsPath)) {
-                Files.createDirectories(dataDirectory);
-                Files.write(groupsPath, List.of(
-                        "# Format: groupName|enabled|player1,player2",
-                        "admins|true|ServerAdmin,HeadDeveloper",
-                        "testers|false|TestUser"
-                ), StandardCharsets.UTF_8);
-                logger.info("Created default player-groups.txt");
-                return;
-            }
-
-            Files.readAllLines(groupsPath, StandardCharsets.UTF_8).forEach(line -> {
-                String trimmed = line.trim();
-                if (trimmed.isEmpty() || trimmed.startsWith("#")) {
-                    return;
-                }
-
-                String[] parts = trimmed.split("\\|", -1);
-                if (parts.length < 3) {
-                    logger.warn("Skipping invalid group line: {}", trimmed);
-                    return;
-                }
-
-                String groupName = normalizeGroupName(parts[0]);
-                boolean enabled = Boolean.parseBoolean(parts[1].trim());
-                Set<String> members = Arrays.stream(parts[2].split(","))
-                        .map(this::normalizeUsername)
-                        .filter(name -> !name.isEmpty())
-                        .collect(Collectors.toCollection(HashSet::new));
-
-                if (groupName.isEmpty()) {
-                    return;
-                }
-
-                playerGroups.put(groupName, members);
-                if (enabled) {
-                    enabledGroups.add(groupName);
-                }
-            });
-
-            logger.info("Loaded {} player groups ({} enabled)", playerGroups.size(), enabledGroups.size());
-        } catch (IOException e) {
-            logger.error("Failed to load player groups", e);
-        }
-    }
-
-    private void savePlayerGroups() {
-        Path groupsPath = dataDirectory.resolve("player-groups.txt");
-        List<String> lines = playerGroups.entrySet().stream()
-                .sorted(Map.Entry.comparingByKey())
-                .map(entry -> {
-                    String members = entry.getValue().stream().sorted().collect(Collectors.joining(","));
-                    return entry.getKey() + "|" + enabledGroups.contains(entry.getKey()) + "|" + members;
-                })
-                .collect(Collectors.toList());
-
-        lines.add(0, "# Format: groupName|enabled|player1,player2");
-
-        try {
-            Files.createDirectories(dataDirectory);
-            Files.write(groupsPath, lines, StandardCharsets.UTF_8);
-        } catch (IOException e) {
-            logger.error("Failed to save player groups", e);
-        }
-    }
-
     @Subscribe(order = PostOrder.FIRST)
     public void onLogin(LoginEvent event) {
         // handled by PreLoginEvent and GameProfileRequestEvent
     }
 
+    /**
+     * Decides right away if the policy or the allow list cache knows the name, or the address is over its offline
+     * login limit; otherwise the event waits for the database lookup, or with {@code startup.fallback=wait} for the
+     * policy to load, without holding the connection's thread.
+     */
     @Subscribe(order = PostOrder.FIRST)
-    public void onPreLogin(PreLoginEvent event) {
+    public EventTask onPreLogin(PreLoginEvent event) {
+        long start = System.nanoTime();
         String username = event.getUsername();
-        if (username != null && isUserAllowed(username)) {
+        if (username == null) {
+            core.metrics().recordPreLogin(System.nanoTime() - start, null);
+            return null;
+        }
+        InetSocketAddress remote = event.getConnection().getRemoteAddress();
+        CompletableFuture<Grant> lookup = core.grantAsync(username, remote == null ? null : remote.getAddress());
+        if (lookup.isDone()) {
+            decidePreLogin(event, username, lookup.join(), start);
+            return null;
+        }
+        return EventTask.resumeWhenComplete(lookup.thenAccept(grant -> decidePreLogin(event, username, grant, start)));
+    }
+
+    private void decidePreLogin(PreLoginEvent event, String username, Grant grant, long start) {
+        if (grant != null) {
             event.setResult(PreLoginComponentResult.forceOfflineMode());
-            logger.info("Forcing offline mode for user: {}", username);
+            offlineProfiles.put(event.getConnection(), offlineProfile(grant, username));
+        }
+        core.metrics().recordPreLogin(System.nanoTime() - start, grant);
+        if (grant != null) {
+            core.audit().record(AuditLog.Action.OFFLINE_MODE, username);
         }
     }
 
     @Subscribe(order = PostOrder.FIRST)
-    public void onGameProfileRequest(GameProfileRequestEvent event) {
+    public EventTask onGameProfileRequest(GameProfileRequestEvent event) {
+        long start = System.nanoTime();
         String username = event.getUsername();
-        if (username != null && isUserAllowed(username)) {
-            UUID offlineUuid = UuidUtils.generateOfflinePlayerUuid(username);
-            GameProfile offlineProfile = new GameProfile(offlineUuid, username, Collections.emptyList());
+        GameProfile offlineProfile = offlineProfiles.take(event.getConnection());
+        if (offlineProfile == null && username != null && !event.isOnlineMode()) {
+            // forced offline on pre-login, but the pending entry was swept; online-authenticated players keep their profile
+            CompletableFuture<Grant> lookup = core.grantAsync(username);
+            if (!lookup.isDone()) {
+                return EventTask.resumeWhenComplete(lookup.thenAccept(grant ->
+                        applyGameProfile(event, username, grant == null ? null : offlineProfile(grant, username), start)));
+            }
+            Grant grant = lookup.join();
+            offlineProfile = grant == null ? null : offlineProfile(grant, username);
+        }
+        applyGameProfile(event, username, offlineProfile, start);
+        return null;
+    }
+
+    private void applyGameProfile(GameProfileRequestEvent event, String username, GameProfile offlineProfile, long start) {
+        if (offlineProfile != null) {
             event.setGameProfile(offlineProfile);
-            logger.info("Using offline profile for user: {}", username);
+        }
+        core.metrics().recordGameProfileRequest(System.nanoTime() - start);
+        if (offlineProfile != null) {
+            core.audit().record(AuditLog.Action.OFFLINE_PROFILE, username, offlineProfile.getId());
         }
     }
 
-    private boolean isUserAllowed(String username) {
-        String normalized = normalizeUsername(username);
-        if (allowedUsers.contains(normalized)) {
-            return true;
+    @Subscribe(order = PostOrder.LAST)
+    public EventTask onServerPreConnect(ServerPreConnectEvent event) {
+        Player player = event.getPlayer();
+        RegisteredServer target = event.getResult().getServer().orElse(null);
+        // the connection itself says whether the player skipped authentication, so no bookkeeping can miss one
+        if (target == null || player.isOnlineMode()) {
+            return null;
         }
+        long start = System.nanoTime();
+        String serverName = target.getServerInfo().getName();
+        CompletableFuture<Boolean> check = core.allowsServerAsync(player.getUsername(), serverName);
+        if (!check.isDone()) {
+            // a lookup that failed denies the connection instead of resuming the event with its original result
+            return EventTask.resumeWhenComplete(check.handle((allowed, error) -> {
+                decideServerConnect(event, player, serverName, error == null && allowed, start);
+                return null;
+            }));
+        }
+        decideServerConnect(event, player, serverName, check.join(), start);
+        return null;
+    }
 
-        for (String enabledGroup : enabledGroups) {
-            Set<String> members = playerGroups.get(enabledGroup);
-            if (members != null && members.contains(normalized)) {
-                return true;
-            }
+    private void decideServerConnect(ServerPreConnectEvent event, Player player, String serverName, boolean allowed,
+                                     long start) {
+        if (!allowed) {
+            event.setResult(ServerResult.denied());
+        }
+        core.metrics().recordServerConnect(System.nanoTime() - start, allowed);
+        if (!allowed) {
+            player.sendMessage(Component.text("Your offline access does not include " + serverName + "."));
+            core.audit().record(AuditLog.Action.SERVER_DENIED, player.getUsername(), serverName);
         }
-        return false;
     }
 
-    private String normalizeUsername(String username) {
-        return username == null ? "" : username.trim().toLowerCase(Locale.ROOT);
+    private static GameProfile offlineProfile(Grant grant, String username) {
+        return new GameProfile(grant.offlineUuid(username), username, Collections.emptyList());
     }
 
-    private String normalizeGroupName(String groupName) {
-        return groupName == null ? "" : groupName.trim().toLowerCase(Locale.ROOT);
+    private PolicyLogger policyLogger() {
+        return new PolicyLogger() {
+            @Override
+            public void info(String message) {
+                logger.info(message);
+            }
+
+            @Override
+            public void warn(String message) {
+                logger.warn(message);
+            }
+
+            @Override
+            public void error(String message, Throwable cause) {
+                logger.error(message, cause);
+            }
+        };
     }
 
     private class GroupCommand implements SimpleCommand {
         @Override
         public void execute(Invocation invocation) {
             CommandSource source = invocation.source();
-            String[] args = invocation.arguments();
 
             if (!source.hasPermission("limitedofflinemode.admin")) {
                 sendMessage(source, "No permission.");
                 return;
             }
 
-            if (args.length < 2 || !"group".equalsIgnoreCase(args[0])) {
-                sendHelp(source);
-                return;
-            }
-
-            String action = args[1].toLowerCase(Locale.ROOT);
-            String groupName = args.length > 2 ? normalizeGroupName(args[2]) : "";
-
-            switch (action) {
-                case "add" -> {
-                    if (args.length < 4) {
-                        sendMessage(source, "Usage: /lomgroup group add <group> <player1,player2,...>");
-                        return;
-                    }
-
-                    Set<String> players = Arrays.stream(args[3].split(","))
-                            .map(LimitedOfflineModePlugin.this::normalizeUsername)
-                            .filter(name -> !name.isEmpty())
-                            .collect(Collectors.toCollection(HashSet::new));
-
-                    if (groupName.isEmpty() || players.isEmpty()) {
-                        sendMessage(source, "Invalid group or players.");
-                        return;
-                    }
-
-                    playerGroups.computeIfAbsent(groupName, key -> new HashSet<>()).addAll(players);
-                    savePlayerGroups();
-                    sendMessage(source, "Group '" + groupName + "' updated with " + players.size() + " players.");
-                }
-                case "enable", "disable", "toggle" -> {
-                    if (groupName.isEmpty() || !playerGroups.containsKey(groupName)) {
-                        sendMessage(source, "Unknown group: " + groupName);
-                        return;
-                    }
-
-                    boolean enable = "enable".equals(action) || ("toggle".equals(action) && !enabledGroups.contains(groupName));
-                    if (enable) {
-                        enabledGroups.add(groupName);
-                    } else {
-                        enabledGroups.remove(groupName);
-                    }
-                    savePlayerGroups();
-                    sendMessage(source, "Group '" + groupName + "' " + (enable ? "enabled" : "disabled") + ".");
-                }
-                case "list" -> {
-                    sendMessage(source, "Groups:");
-                    playerGroups.forEach((name, members) ->
-                            sendMessage(source, "- " + name + " [" + (enabledGroups.contains(name) ? "ON" : "OFF") + "] " + members)
-                    );
-                }
-                default -> sendHelp(source);
-            }
+            core.commands().execute(invocation.arguments(), message -> sendMessage(source, message));
         }
 
-        private void sendHelp(CommandSource source) {
-            sendMessage(source, "/lomgroup group add <group> <player1,player2,...>");
-            sendMessage(source, "/lomgroup group enable <group>");
-            sendMessage(source, "/lomgroup group disable <group>");
-            sendMessage(source, "/lomgroup group toggle <group>");
-            sendMessage(source, "/lomgroup group list");
+        @Override
+        public CompletableFuture<List<String>> suggestAsync(Invocation invocation) {
+            if (!invocation.source().hasPermission("limitedofflinemode.admin")) {
+                return CompletableFuture.completedFuture(List.of());
+            }
+            return core.commands().suggestAsync(invocation.arguments());
         }
 
         private void sendMessage(CommandSource source, String message) {
@@ -0,0 +1,41 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Where the allow list is stored: compiled into the policy ({@link TextFileAllowlist}) or looked up per name in a
+ * database ({@link SqlAllowlist}). Names passed in and returned are normalized.
+ */
+public interface AllowlistProvider extends AutoCloseable {
+
+    /**
+     * @return a short description for logs and {@code /lomgroup stats}, e.g. {@code allowed-users.txt}
+     */
+    String describe();
+
+    /**
+     * @return whether {@link #contains(String)} only reads memory, so it needs no cache and may run on any thread
+     */
+    boolean inMemory();
+
+    /**
+     * May block on disk unless {@link #inMemory()}.
+     */
+    boolean contains(String name) throws IOException;
+
+    /**
+     * @return how many of the names were not on the list yet
+     */
+    int add(Collection<String> names) throws IOException;
+
+    /**
+     * @return how many of the names were on the list
+     */
+    int remove(Collection<String> names) throws IOException;
+
+    int size() throws IOException;
+
+    @Override
+    void close();
+}
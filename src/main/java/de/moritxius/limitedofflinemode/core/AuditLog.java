@@ -0,0 +1,296 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Audit trail of offline logins. Login threads only put an event into a bounded lock-free ring; a background thread
+ * drains it once a second into a rotating {@code audit.log}, folding repeats of the same event into one line. When
+ * the ring is full the event is dropped and counted instead of blocking the login. The console only gets a periodic
+ * summary.
+ */
+public final class AuditLog implements AutoCloseable {
+
+    static final String AUDIT_FILE = "audit.log";
+    static final int CAPACITY = 8192;
+    private static final long DRAIN_INTERVAL_MILLIS = 1000;
+
+    public enum Action {
+        OFFLINE_MODE("offline-mode"),
+        OFFLINE_PROFILE("offline-profile"),
+        CONNECTED("connected"),
+        SERVER_DENIED("server-denied");
+
+        private final String label;
+
+        Action(String label) {
+            this.label = label;
+        }
+    }
+
+    private record Event(long timeMillis, Action action, String username, Object detail) {
+    }
+
+    private record Key(Action action, String username, Object detail) {
+    }
+
+    private final Path path;
+    private final PolicyLogger logger;
+    private final EventRing ring = new EventRing(CAPACITY);
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final ScheduledExecutorService executor;
+    private volatile boolean enabled = true;
+
+    // writer thread only
+    private BufferedWriter writer;
+    private long fileBytes;
+    private long maxFileBytes = 10L * 1024 * 1024;
+    private int keepFiles = 3;
+    private long reportedDropped;
+    private long intervalOfflineLogins;
+    private long intervalDropped;
+    private final Set<String> intervalPlayers = new HashSet<>();
+
+    AuditLog(Path dataDirectory, PolicyLogger logger) {
+        this.path = dataDirectory.resolve(AUDIT_FILE);
+        this.logger = logger;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "LimitedOfflineMode-audit");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void start(PluginSettings settings) {
+        enabled = settings.flag("audit.enabled", true);
+        if (!enabled) {
+            return;
+        }
+        // read by the writer thread, published by scheduling it below
+        maxFileBytes = Math.max(64 * 1024, settings.number("audit.max-file-bytes", maxFileBytes));
+        keepFiles = (int) Math.max(0, settings.number("audit.keep-files", keepFiles));
+        long consoleSeconds = settings.number("audit.console-interval-seconds", 60);
+        executor.scheduleWithFixedDelay(this::drain, DRAIN_INTERVAL_MILLIS, DRAIN_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        if (consoleSeconds > 0) {
+            executor.scheduleAtFixedRate(() -> report(consoleSeconds), consoleSeconds, consoleSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Queues an event without blocking. {@code detail} is only converted to text on the writer thread.
+     */
+    public void record(Action action, String username, Object detail) {
+        if (enabled && !ring.offer(new Event(System.currentTimeMillis(), action, username, detail))) {
+            dropped.increment();
+        }
+    }
+
+    public void record(Action action, String username) {
+        record(action, username, null);
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    public long written() {
+        return written.sum();
+    }
+
+    private void drain() {
+        Map<Key, long[]> repeats = new LinkedHashMap<>();
+        Event event;
+        while ((event = ring.poll()) != null) {
+            long[] seen = repeats.computeIfAbsent(new Key(event.action(), event.username(), event.detail()),
+                    key -> new long[]{0, 0});
+            if (seen[1]++ == 0) {
+                seen[0] = event.timeMillis();
+            }
+            if (event.action() == Action.OFFLINE_MODE) {
+                intervalOfflineLogins++;
+                intervalPlayers.add(event.username());
+            }
+        }
+        long droppedNow = dropped.sum() - reportedDropped;
+        reportedDropped += droppedNow;
+        intervalDropped += droppedNow;
+        if (repeats.isEmpty() && droppedNow == 0) {
+            return;
+        }
+
+        try {
+            for (Map.Entry<Key, long[]> entry : repeats.entrySet()) {
+                Key key = entry.getKey();
+                long[] seen = entry.getValue();
+                StringBuilder line = new StringBuilder(64)
+                        .append(Instant.ofEpochMilli(seen[0])).append(' ')
+                        .append(key.action().label).append(' ')
+                        .append(key.username());
+                if (key.detail() != null) {
+                    line.append(' ').append(key.detail());
+                }
+                if (seen[1] > 1) {
+                    line.append(" x").append(seen[1]);
+                }
+                writeLine(line.toString());
+                written.add(seen[1]);
+            }
+            if (droppedNow > 0) {
+                writeLine(Instant.ofEpochMilli(System.currentTimeMillis()) + " dropped " + droppedNow + " events, audit buffer full");
+            }
+            writer.flush();
+        } catch (IOException e) {
+            logger.error("Failed to write " + AUDIT_FILE, e);
+            closeWriter();
+        }
+    }
+
+    private void writeLine(String line) throws IOException {
+        if (writer == null) {
+            writer = open();
+        } else if (fileBytes + line.length() + 1 > maxFileBytes) {
+            rotate();
+        }
+        writer.write(line);
+        writer.newLine();
+        fileBytes += line.length() + 1;
+    }
+
+    private BufferedWriter open() throws IOException {
+        BufferedWriter opened = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+        fileBytes = Files.size(path);
+        return opened;
+    }
+
+    private void rotate() throws IOException {
+        closeWriter();
+        if (keepFiles == 0) {
+            Files.deleteIfExists(path);
+        } else {
+            Files.deleteIfExists(rotated(keepFiles));
+            for (int i = keepFiles - 1; i >= 1; i--) {
+                if (Files.exists(rotated(i))) {
+                    PolicyFiles.moveAtomically(rotated(i), rotated(i + 1));
+                }
+            }
+            PolicyFiles.moveAtomically(path, rotated(1));
+        }
+        writer = open();
+    }
+
+    private Path rotated(int index) {
+        return path.resolveSibling(AUDIT_FILE + "." + index);
+    }
+
+    private void report(long intervalSeconds) {
+        drain();
+        if (intervalOfflineLogins > 0 || intervalDropped > 0) {
+            logger.info("Audit: " + intervalOfflineLogins + " offline logins by " + intervalPlayers.size()
+                    + " players in the last " + intervalSeconds + " s"
+                    + (intervalDropped > 0 ? ", " + intervalDropped + " events dropped" : "")
+                    + " (see " + AUDIT_FILE + ")");
+        }
+        intervalOfflineLogins = 0;
+        intervalDropped = 0;
+        intervalPlayers.clear();
+    }
+
+    private void closeWriter() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException ignored) {
+            // already reported by the failed write, if any
+        }
+        writer = null;
+    }
+
+    /**
+     * Writes what is still buffered and stops the writer thread.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (enabled) {
+            drain();
+        }
+        closeWriter();
+    }
+
+    /**
+     * Bounded multi-producer ring (Vyukov's sequence-per-slot queue), drained by the single writer thread.
+     */
+    private static final class EventRing {
+        private final AtomicReferenceArray<Event> slots;
+        private final AtomicLongArray sequences;
+        private final AtomicLong tail = new AtomicLong();
+        private final int mask;
+        private long head;
+
+        EventRing(int capacity) {
+            slots = new AtomicReferenceArray<>(capacity);
+            sequences = new AtomicLongArray(capacity);
+            mask = capacity - 1;
+            for (int i = 0; i < capacity; i++) {
+                sequences.set(i, i);
+            }
+        }
+
+        boolean offer(Event event) {
+            long position = tail.get();
+            while (true) {
+                int index = (int) (position & mask);
+                long difference = sequences.get(index) - position;
+                if (difference == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        slots.lazySet(index, event);
+                        sequences.set(index, position + 1);
+                        return true;
+                    }
+                    position = tail.get();
+                } else if (difference < 0) {
+                    return false;
+                } else {
+                    position = tail.get();
+                }
+            }
+        }
+
+        Event poll() {
+            int index = (int) (head & mask);
+            if (sequences.get(index) != head + 1) {
+                return null;
+            }
+            Event event = slots.get(index);
+            slots.lazySet(index, null);
+            sequences.set(index, head + mask + 1);
+            head++;
+            return event;
+        }
+    }
+}
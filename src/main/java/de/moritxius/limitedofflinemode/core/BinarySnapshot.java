@@ -0,0 +1,296 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary copy of the compiled policy in {@code policy.bin}, so startup can skip parsing and compiling text files that
+ * have not changed. It records the size, modification time and CRC of the text files it was built from, and a CRC32
+ * of its own contents closes the file.
+ */
+final class BinarySnapshot {
+
+    static final String SNAPSHOT_FILE = "policy.bin";
+    private static final int MAGIC = 0x4C4F4D50; // "LOMP"
+    private static final int VERSION = 5;
+    private static final int TRAILER_BYTES = Long.BYTES;
+
+    private final Path path;
+    private final PolicyLogger logger;
+
+    BinarySnapshot(Path dataDirectory, PolicyLogger logger) {
+        this.path = dataDirectory.resolve(SNAPSHOT_FILE);
+        this.logger = logger;
+    }
+
+    /**
+     * Size, modification time and CRC32C of the contents of a source file; {@link #MISSING} if it does not exist.
+     * The CRC catches edits that keep the size within the file system's timestamp granularity.
+     */
+    record Fingerprint(long size, long modifiedMillis, long crc) {
+        static final Fingerprint MISSING = new Fingerprint(-1, -1, 0);
+
+        static Fingerprint of(Path file) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                FileTime modified = Files.getLastModifiedTime(file);
+                CRC32C crc = new CRC32C();
+                ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+                long size = 0;
+                int read;
+                while ((read = channel.read(chunk)) >= 0) {
+                    size += read;
+                    crc.update(chunk.flip());
+                    chunk.clear();
+                }
+                return new Fingerprint(size, modified.toMillis(), crc.getValue());
+            } catch (IOException e) {
+                return MISSING;
+            }
+        }
+    }
+
+    /**
+     * @return the stored policy, or {@code null} if there is none, it is corrupt, or it was built from other files
+     */
+    PolicySnapshot read(Fingerprint allowedUsers, Fingerprint playerGroups) {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 2 * Integer.BYTES + 6 * Long.BYTES + TRAILER_BYTES || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            if (!readFingerprint(buffer).equals(allowedUsers) || !readFingerprint(buffer).equals(playerGroups)) {
+                return null;
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate().position(0).limit((int) size - TRAILER_BYTES));
+            if (crc.getValue() != buffer.getLong((int) size - TRAILER_BYTES)) {
+                logger.warn("Ignoring " + SNAPSHOT_FILE + " with a bad checksum");
+                return null;
+            }
+            buffer.limit((int) size - TRAILER_BYTES);
+
+            byte[] scratch = new byte[256];
+            NameArena names = NameArena.read(buffer);
+            IdSet users = IdSet.read(buffer, names.size());
+            int groupCount = readCount(buffer);
+            Map<String, IdSet> groups = new HashMap<>(groupCount * 2);
+            Set<String> enabled = new HashSet<>();
+            for (int i = 0; i < groupCount; i++) {
+                String groupName = readName(buffer, scratch);
+                if (buffer.get() != 0) {
+                    enabled.add(groupName);
+                }
+                groups.put(groupName, IdSet.read(buffer, names.size()));
+            }
+            int profileCount = readCount(buffer);
+            List<Grant.Profile> profiles = new ArrayList<>(profileCount);
+            for (int i = 0; i < profileCount; i++) {
+                boolean allowListed = buffer.get() != 0;
+                profiles.add(new Grant.Profile(allowListed, readNames(buffer, scratch)));
+            }
+            int[] grantProfiles = readInts(buffer, names.size());
+            int patternGroups = readCount(buffer);
+            Map<String, List<String>> groupPatterns = new HashMap<>(patternGroups * 2);
+            for (int i = 0; i < patternGroups; i++) {
+                groupPatterns.put(readName(buffer, scratch), readNames(buffer, scratch));
+            }
+            Expiries.Builder expiries = new Expiries.Builder();
+            int groupExpiryCount = readCount(buffer);
+            for (int i = 0; i < groupExpiryCount; i++) {
+                expiries.group(readName(buffer, scratch), buffer.getLong());
+            }
+            int memberExpiryGroups = readCount(buffer);
+            for (int i = 0; i < memberExpiryGroups; i++) {
+                String groupName = readName(buffer, scratch);
+                int memberCount = readCount(buffer);
+                for (int j = 0; j < memberCount; j++) {
+                    expiries.member(groupName, readName(buffer, scratch), buffer.getLong());
+                }
+            }
+            int scopeCount = readCount(buffer);
+            Map<String, List<String>> groupServers = new HashMap<>(scopeCount * 2);
+            for (int i = 0; i < scopeCount; i++) {
+                groupServers.put(readName(buffer, scratch), readNames(buffer, scratch));
+            }
+            return PolicySnapshot.of(new PolicySnapshot.Compiled(names, users, groups, enabled, profiles, grantProfiles,
+                    groupPatterns, expiries.build(), groupServers));
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            logger.warn("Ignoring unreadable " + SNAPSHOT_FILE + ": " + e);
+            return null;
+        }
+    }
+
+    private static Fingerprint readFingerprint(ByteBuffer buffer) {
+        return new Fingerprint(buffer.getLong(), buffer.getLong(), buffer.getLong());
+    }
+
+    /**
+     * @return a non-negative element count that the rest of the buffer can hold at least one byte each of
+     */
+    static int readCount(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining()) {
+            throw new IllegalArgumentException("Bad count " + count);
+        }
+        return count;
+    }
+
+    static int[] readInts(ByteBuffer buffer, int length) {
+        int[] values = new int[length];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + length * Integer.BYTES);
+        return values;
+    }
+
+    static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static List<String> readNames(ByteBuffer buffer, byte[] scratch) {
+        String[] names = new String[readCount(buffer)];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = readName(buffer, scratch);
+        }
+        return List.of(names);
+    }
+
+    private static String readName(ByteBuffer buffer, byte[] scratch) {
+        int length = Short.toUnsignedInt(buffer.getShort());
+        byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+        buffer.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Atomically replaces {@code policy.bin} with {@code snapshot}, tagged with the fingerprints of the text files
+     * it corresponds to.
+     */
+    void write(PolicySnapshot snapshot, Fingerprint allowedUsers, Fingerprint playerGroups) {
+        Path tempPath = path.resolveSibling(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            CRC32 crc = new CRC32();
+            OutputStream raw = Channels.newOutputStream(channel);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(raw, crc), 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeFingerprint(out, allowedUsers);
+            writeFingerprint(out, playerGroups);
+
+            PolicySnapshot.Compiled compiled = snapshot.compiled();
+            compiled.names().write(out);
+            compiled.allowedUsers().write(out);
+            out.writeInt(compiled.groups().size());
+            for (Map.Entry<String, IdSet> group : compiled.groups().entrySet()) {
+                writeName(out, group.getKey());
+                out.writeByte(compiled.enabledGroups().contains(group.getKey()) ? 1 : 0);
+                group.getValue().write(out);
+            }
+            out.writeInt(compiled.profiles().size());
+            for (Grant.Profile profile : compiled.profiles()) {
+                out.writeByte(profile.allowListed() ? 1 : 0);
+                writeNames(out, profile.groups());
+            }
+            writeInts(out, compiled.grantProfiles());
+            out.writeInt(compiled.groupPatterns().size());
+            for (Map.Entry<String, List<String>> group : compiled.groupPatterns().entrySet()) {
+                writeName(out, group.getKey());
+                writeNames(out, group.getValue());
+            }
+            Expiries expiries = compiled.expiries();
+            out.writeInt(expiries.groups().size());
+            for (Map.Entry<String, Long> group : expiries.groups().entrySet()) {
+                writeName(out, group.getKey());
+                out.writeLong(group.getValue());
+            }
+            out.writeInt(expiries.members().size());
+            for (Map.Entry<String, Map<String, Long>> group : expiries.members().entrySet()) {
+                writeName(out, group.getKey());
+                out.writeInt(group.getValue().size());
+                for (Map.Entry<String, Long> member : group.getValue().entrySet()) {
+                    writeName(out, member.getKey());
+                    out.writeLong(member.getValue());
+                }
+            }
+            out.writeInt(compiled.groupServers().size());
+            for (Map.Entry<String, List<String>> group : compiled.groupServers().entrySet()) {
+                writeName(out, group.getKey());
+                writeNames(out, group.getValue());
+            }
+            out.flush();
+            // the trailer is written past the checked stream so it is not part of its own checksum
+            raw.write(longBytes(crc.getValue()));
+            channel.force(true);
+        } catch (IOException e) {
+            logger.error("Failed to write " + SNAPSHOT_FILE, e);
+            return;
+        }
+        try {
+            PolicyFiles.moveAtomically(tempPath, path);
+        } catch (IOException e) {
+            logger.error("Failed to replace " + SNAPSHOT_FILE, e);
+        }
+    }
+
+    private static void writeFingerprint(DataOutputStream out, Fingerprint fingerprint) throws IOException {
+        out.writeLong(fingerprint.size());
+        out.writeLong(fingerprint.modifiedMillis());
+        out.writeLong(fingerprint.crc());
+    }
+
+    private static void writeNames(DataOutputStream out, List<String> names) throws IOException {
+        out.writeInt(names.size());
+        for (String name : names) {
+            writeName(out, name);
+        }
+    }
+
+    private static void writeName(DataOutputStream out, String name) throws IOException {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("Name too long for " + SNAPSHOT_FILE + ": " + name.substring(0, 32) + "...");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] longBytes(long value) {
+        byte[] bytes = new byte[Long.BYTES];
+        for (int i = Long.BYTES - 1; i >= 0; i--) {
+            bytes[i] = (byte) value;
+            value >>>= 8;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,267 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replicates through a directory every proxy can write to, e.g. a network share. Each proxy mirrors its
+ * {@link ReplicationLog} to {@code <node>.log} there, appending new changes to the end, and polls the other
+ * {@code .log} files for lines it has not read yet. Whenever the log is trimmed, {@code <node>.snapshot} is written
+ * before the trimmed log replaces the mirror, for proxies that are behind its start.
+ */
+final class DirectoryTransport implements ReplicationTransport {
+
+    private static final String LOG_SUFFIX = ".log";
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+    private final Path directory;
+    private final Replicator replicator;
+    private final ReplicationLog log;
+    private final ScheduledExecutorService executor;
+    private final long pollMillis;
+    private final PolicyLogger logger;
+    private final Map<String, Reader> readers = new HashMap<>();
+    private ReplicationLog.Header published;
+    private long publishedSeq;
+    private boolean failing;
+
+    DirectoryTransport(Path directory, Replicator replicator, ReplicationLog log, ScheduledExecutorService executor,
+                       long pollMillis, PolicyLogger logger) {
+        this.directory = directory;
+        this.replicator = replicator;
+        this.log = log;
+        this.executor = executor;
+        this.pollMillis = pollMillis;
+        this.logger = logger;
+    }
+
+    /**
+     * How far another proxy's mirror has been read; only complete lines are consumed.
+     */
+    private static final class Reader {
+        final ReplicationLog.Header header;
+        final long start;
+        long offset;
+        long lastSeq;
+
+        Reader(ReplicationLog.Header header, long start) {
+            this.header = header;
+            this.start = start;
+            this.offset = start;
+            this.lastSeq = header.base();
+        }
+    }
+
+    @Override
+    public void start() throws IOException {
+        Files.createDirectories(directory);
+        executor.scheduleWithFixedDelay(this::tick, 0, pollMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void tick() {
+        try {
+            publish();
+            for (Path file : mirrors()) {
+                String fileName = file.getFileName().toString();
+                poll(fileName.substring(0, fileName.length() - LOG_SUFFIX.length()), file);
+            }
+            if (failing) {
+                failing = false;
+                logger.info("Replication directory " + directory + " is reachable again");
+            }
+        } catch (IOException | RuntimeException e) {
+            if (!failing) {
+                failing = true;
+                logger.error("Failed to replicate through " + directory, e);
+            }
+        }
+    }
+
+    private List<Path> mirrors() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + LOG_SUFFIX)) {
+            for (Path file : stream) {
+                if (!file.getFileName().toString().equals(log.nodeId() + LOG_SUFFIX)) {
+                    files.add(file);
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Appends this proxy's new changes to its mirror, or rewrites the mirror if the log was trimmed.
+     */
+    private void publish() throws IOException {
+        Path target = directory.resolve(log.nodeId() + LOG_SUFFIX);
+        List<ReplicationLog.Entry> entries = published == null || !Files.exists(target) ? null
+                : log.after(publishedSeq, Integer.MAX_VALUE);
+        if (entries != null && published.equals(log.header())) {
+            if (!entries.isEmpty()) {
+                StringBuilder lines = new StringBuilder();
+                for (ReplicationLog.Entry entry : entries) {
+                    lines.append(entry.encode()).append('\n');
+                }
+                try (FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                    ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+                publishedSeq = entries.get(entries.size() - 1).seq();
+            }
+            return;
+        }
+
+        Path logTemp = directory.resolve(log.nodeId() + LOG_SUFFIX + ".tmp");
+        ReplicationLog.Header header;
+        long seq;
+        try (Writer writer = new BufferedWriter(Files.newBufferedWriter(logTemp, StandardCharsets.UTF_8))) {
+            synchronized (log) {
+                header = log.header();
+                seq = log.writeTo(writer);
+            }
+        }
+        // taken after the log was copied, so it includes everything up to the copy's base
+        if (header.base() > 0) {
+            Path snapshotTemp = directory.resolve(log.nodeId() + SNAPSHOT_SUFFIX + ".tmp");
+            try (Writer writer = new BufferedWriter(Files.newBufferedWriter(snapshotTemp, StandardCharsets.UTF_8))) {
+                replicator.writeSnapshot(writer);
+            }
+            PolicyFiles.moveAtomically(snapshotTemp, directory.resolve(log.nodeId() + SNAPSHOT_SUFFIX));
+        }
+        PolicyFiles.moveAtomically(logTemp, target);
+        published = header;
+        publishedSeq = seq;
+    }
+
+    /**
+     * Applies the lines of another proxy's mirror that were added since the last poll.
+     */
+    private void poll(String origin, Path file) throws IOException {
+        byte[] bytes;
+        ReplicationLog.Header header;
+        Reader reader = readers.get(origin);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer first = ByteBuffer.allocate(256);
+            channel.read(first, 0);
+            int headerEnd = indexOf(first.array(), first.position(), (byte) '\n');
+            if (headerEnd < 0) {
+                return;
+            }
+            header = ReplicationLog.Header.decode(new String(first.array(), 0, headerEnd, StandardCharsets.UTF_8));
+            if (header == null || !header.nodeId().equals(origin)) {
+                return;
+            }
+            if (reader == null || !reader.header.equals(header)) {
+                reader = new Reader(header, headerEnd + 1);
+                readers.put(origin, reader);
+            }
+
+            Replicator.Position position = replicator.position(origin);
+            long applied = position != null && position.epoch().equals(header.epoch()) ? position.seq() : 0;
+            if (applied < header.base()) {
+                installSnapshot(origin, header);
+                readers.remove(origin);
+                return;
+            }
+
+            long size = channel.size();
+            if (size <= reader.offset) {
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) (size - reader.offset));
+            while (buffer.hasRemaining() && channel.read(buffer, reader.offset + buffer.position()) >= 0) {
+                // read until the size seen above
+            }
+            bytes = buffer.array();
+        } catch (NoSuchFileException e) {
+            // replaced by its owner between listing and opening
+            return;
+        }
+
+        List<ReplicationLog.Entry> entries = new ArrayList<>();
+        int lineStart = 0;
+        int lineEnd;
+        while ((lineEnd = indexOf(bytes, lineStart, bytes.length, (byte) '\n')) >= 0) {
+            ReplicationLog.Entry entry = ReplicationLog.Entry.decode(
+                    new String(bytes, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8));
+            if (entry == null) {
+                logger.warn("Invalid line in " + file.getFileName() + ", waiting for it to be rewritten");
+                break;
+            }
+            entries.add(entry);
+            lineStart = lineEnd + 1;
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+        reader.offset += lineStart;
+        reader.lastSeq = entries.get(entries.size() - 1).seq();
+        if (!replicator.receive(origin, header.epoch(), entries)) {
+            // behind the lines read so far, e.g. after a snapshot moved the position back; read from the start again
+            reader.offset = reader.start;
+        }
+        replicator.observeHead(origin, header.epoch(), reader.lastSeq);
+    }
+
+    private void installSnapshot(String origin, ReplicationLog.Header header) throws IOException {
+        Path snapshot = directory.resolve(origin + SNAPSHOT_SUFFIX);
+        if (!Files.exists(snapshot)) {
+            logger.warn("Replication is behind the log of " + origin + ", but it has not written a snapshot yet");
+            return;
+        }
+        logger.info("Replication is behind the log of " + origin + ", installing " + snapshot.getFileName());
+        replicator.install(origin, Files.readAllLines(snapshot, StandardCharsets.UTF_8));
+    }
+
+    private static int indexOf(byte[] bytes, int length, byte value) {
+        return indexOf(bytes, 0, length, value);
+    }
+
+    private static int indexOf(byte[] bytes, int from, int length, byte value) {
+        for (int i = from; i < length; i++) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public synchronized void resync(String origin) {
+        readers.remove(origin);
+    }
+
+    /**
+     * Mirrors the changes the replicator flushed on shutdown.
+     */
+    @Override
+    public synchronized void close() {
+        try {
+            publish();
+        } catch (IOException e) {
+            logger.error("Failed to replicate the last changes through " + directory, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "directory " + directory;
+    }
+}
@@ -0,0 +1,149 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * When temporary group members and group enablements run out, in epoch milliseconds; {@code 0} means "never".
+ * <p>
+ * Expiries are part of the {@link PolicySnapshot} so they are persisted with the groups, but logins never look at
+ * them: {@link ExpiryScheduler} takes expired entries out of the policy instead.
+ */
+final class Expiries {
+
+    static final Expiries NONE = new Expiries(Map.of(), Map.of());
+
+    private final Map<String, Long> groups;
+    private final Map<String, Map<String, Long>> members;
+
+    private Expiries(Map<String, Long> groups, Map<String, Map<String, Long>> members) {
+        this.groups = groups;
+        this.members = members;
+    }
+
+    boolean isEmpty() {
+        return groups.isEmpty() && members.isEmpty();
+    }
+
+    /**
+     * @return when the group gets disabled, or {@code 0}
+     */
+    long group(String groupName) {
+        return groups.getOrDefault(groupName, 0L);
+    }
+
+    /**
+     * @return when the member is removed from the group, or {@code 0}
+     */
+    long member(String groupName, String member) {
+        Map<String, Long> groupMembers = members.get(groupName);
+        return groupMembers == null ? 0 : groupMembers.getOrDefault(member, 0L);
+    }
+
+    boolean hasMembers(String groupName) {
+        return members.containsKey(groupName);
+    }
+
+    Map<String, Long> groups() {
+        return groups;
+    }
+
+    Map<String, Map<String, Long>> members() {
+        return members;
+    }
+
+    int size() {
+        int size = groups.size();
+        for (Map<String, Long> groupMembers : members.values()) {
+            size += groupMembers.size();
+        }
+        return size;
+    }
+
+    /**
+     * @param expiresAt new expiry of {@code names}, {@code 0} to make them permanent
+     */
+    Expiries withMembers(String groupName, Collection<String> names, long expiresAt) {
+        if (expiresAt == 0 && !members.containsKey(groupName)) {
+            return this;
+        }
+        Map<String, Long> updated = new HashMap<>(members.getOrDefault(groupName, Map.of()));
+        for (String name : names) {
+            if (expiresAt == 0) {
+                updated.remove(name);
+            } else {
+                updated.put(name, expiresAt);
+            }
+        }
+        return withMemberMap(groupName, updated);
+    }
+
+    Expiries withoutMembers(String groupName, Collection<String> names) {
+        return withMembers(groupName, names, 0);
+    }
+
+    /**
+     * @param expiresAt when the group gets disabled, {@code 0} to keep it enabled
+     */
+    Expiries withGroup(String groupName, long expiresAt) {
+        if (group(groupName) == expiresAt) {
+            return this;
+        }
+        Map<String, Long> updated = new HashMap<>(groups);
+        if (expiresAt == 0) {
+            updated.remove(groupName);
+        } else {
+            updated.put(groupName, expiresAt);
+        }
+        return new Expiries(Map.copyOf(updated), members);
+    }
+
+    Expiries withoutGroup(String groupName) {
+        Expiries updated = withGroup(groupName, 0);
+        return updated.members.containsKey(groupName) ? updated.withMemberMap(groupName, Map.of()) : updated;
+    }
+
+    private Expiries withMemberMap(String groupName, Map<String, Long> groupMembers) {
+        Map<String, Map<String, Long>> updated = new HashMap<>(members);
+        if (groupMembers.isEmpty()) {
+            updated.remove(groupName);
+        } else {
+            updated.put(groupName, Map.copyOf(groupMembers));
+        }
+        return new Expiries(groups, Map.copyOf(updated));
+    }
+
+    /**
+     * Collects expiries while parsing.
+     */
+    static final class Builder {
+        private final Map<String, Long> groups = new HashMap<>();
+        private final Map<String, Map<String, Long>> members = new HashMap<>();
+
+        void group(String groupName, long expiresAt) {
+            groups.put(groupName, expiresAt);
+        }
+
+        void member(String groupName, String member, long expiresAt) {
+            members.computeIfAbsent(groupName, ignored -> new HashMap<>()).put(member, expiresAt);
+        }
+
+        /**
+         * Forgets everything collected for the group, e.g. because a later line redefines it.
+         */
+        void clear(String groupName) {
+            groups.remove(groupName);
+            members.remove(groupName);
+        }
+
+        Expiries build() {
+            if (groups.isEmpty() && members.isEmpty()) {
+                return NONE;
+            }
+            Map<String, Map<String, Long>> copied = new HashMap<>();
+            members.forEach((groupName, groupMembers) -> copied.put(groupName, Map.copyOf(groupMembers)));
+            return new Expiries(Map.copyOf(groups), Map.copyOf(copied));
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Takes expired temporary members and group enablements out of the policy, so the login path never compares
+ * timestamps. Deadlines wait in a {@link TimingWheel} that is advanced once a second on the core scheduler thread.
+ * Due entries are checked against the current snapshot, since they may have been extended or removed in the meantime,
+ * and applied as one {@link PolicyMutation} per group.
+ */
+final class ExpiryScheduler {
+
+    static final long TICK_MILLIS = 1000;
+
+    private final LimitedOfflineModeCore core;
+    private final PolicyLogger logger;
+    private final TimingWheel<Key> wheel = new TimingWheel<>(tickOf(System.currentTimeMillis()));
+    // latest deadline handed to the wheel per entry; older wheel entries for the same key are ignored when they fire
+    private final Map<Key, Long> scheduled = new HashMap<>();
+    private final AtomicLong expired = new AtomicLong();
+
+    ExpiryScheduler(LimitedOfflineModeCore core, PolicyLogger logger) {
+        this.core = core;
+        this.logger = logger;
+    }
+
+    /**
+     * @param member the temporary member, or {@code null} for the group's enablement
+     */
+    record Key(String groupName, String member) {
+    }
+
+    void start(ScheduledExecutorService scheduler) {
+        scheduler.scheduleAtFixedRate(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedules every expiry of {@code expiries} that is not scheduled yet, e.g. after loading the files.
+     */
+    synchronized void track(Expiries expiries) {
+        expiries.groups().forEach((groupName, expiresAt) -> schedule(new Key(groupName, null), expiresAt));
+        expiries.members().forEach((groupName, members) ->
+                members.forEach((member, expiresAt) -> schedule(new Key(groupName, member), expiresAt)));
+    }
+
+    /**
+     * Schedules the expiry a just applied mutation sets, if any.
+     */
+    synchronized void track(PolicyMutation mutation) {
+        if (mutation instanceof PolicyMutation.AddMembers add && add.expiresAt() != 0) {
+            for (String member : add.members()) {
+                schedule(new Key(add.groupName(), member), add.expiresAt());
+            }
+        } else if (mutation instanceof PolicyMutation.SetEnabled enable && enable.enabled() && enable.expiresAt() != 0) {
+            schedule(new Key(enable.groupName(), null), enable.expiresAt());
+        }
+    }
+
+    private void schedule(Key key, long expiresAt) {
+        Long previous = scheduled.put(key, expiresAt);
+        if (previous == null || previous != expiresAt) {
+            wheel.schedule(tickOf(expiresAt + TICK_MILLIS - 1), key);
+        }
+    }
+
+    private void tick() {
+        try {
+            expireDue();
+        } catch (RuntimeException e) {
+            logger.error("Failed to expire temporary grants", e);
+        }
+    }
+
+    /**
+     * Applies every expiry that is due now.
+     */
+    void expireDue() {
+        long now = System.currentTimeMillis();
+        List<Key> due = new ArrayList<>();
+        synchronized (this) {
+            for (Key key : wheel.advance(tickOf(now))) {
+                Long expiresAt = scheduled.get(key);
+                if (expiresAt != null && expiresAt <= now) {
+                    scheduled.remove(key);
+                    due.add(key);
+                }
+            }
+        }
+        if (due.isEmpty()) {
+            return;
+        }
+
+        // checked and applied under the core lock, so a concurrent re-add with a new expiry is not undone
+        synchronized (core) {
+            PolicySnapshot snapshot = core.policy().current();
+            Map<String, List<String>> members = new TreeMap<>();
+            List<String> groups = new ArrayList<>();
+            for (Key key : due) {
+                long expiresAt = key.member() == null
+                        ? snapshot.expiries().group(key.groupName())
+                        : snapshot.expiries().member(key.groupName(), key.member());
+                if (expiresAt == 0 || expiresAt > now) {
+                    continue;
+                }
+                if (key.member() == null) {
+                    groups.add(key.groupName());
+                } else {
+                    members.computeIfAbsent(key.groupName(), ignored -> new ArrayList<>()).add(key.member());
+                }
+            }
+            members.forEach((groupName, names) -> {
+                core.apply(new PolicyMutation.RemoveMembers(groupName, Set.copyOf(names)));
+                expired.addAndGet(names.size());
+                logger.info("Removed " + names.size() + " expired members from group " + groupName);
+            });
+            for (String groupName : groups) {
+                core.apply(new PolicyMutation.SetEnabled(groupName, false));
+                expired.incrementAndGet();
+                logger.info("Group " + groupName + " expired and was disabled");
+            }
+        }
+    }
+
+    synchronized int pending() {
+        return scheduled.size();
+    }
+
+    long expired() {
+        return expired.get();
+    }
+
+    private static long tickOf(long millis) {
+        return millis / TICK_MILLIS;
+    }
+}
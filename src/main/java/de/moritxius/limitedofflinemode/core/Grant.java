@@ -0,0 +1,124 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Why a username is allowed to log in offline: listed in {@code allowed-users.txt} and/or a member of enabled groups.
+ * The offline UUID is memoized in the snapshot per spelling on the first login.
+ */
+public final class Grant {
+
+    private final NameArena names;
+    private final int id;
+    private final String username;
+    private final OfflineUuid[] offlineUuids;
+    private final Profile profile;
+
+    /**
+     * @param offlineUuids the snapshot's memo of offline UUIDs, indexed by name ID
+     */
+    Grant(NameArena names, int id, OfflineUuid[] offlineUuids, Profile profile) {
+        this.names = names;
+        this.id = id;
+        this.username = null;
+        this.offlineUuids = offlineUuids;
+        this.profile = profile;
+    }
+
+    /**
+     * A grant for a name that only matched group patterns, so there is no ID to memoize its UUID under.
+     */
+    Grant(String username, Profile profile) {
+        this.names = null;
+        this.id = NameArena.MISSING;
+        this.username = username;
+        this.offlineUuids = null;
+        this.profile = profile;
+    }
+
+    /**
+     * @return the normalized username this grant was compiled or matched for
+     */
+    public String username() {
+        return names == null ? username : names.name(id);
+    }
+
+    /**
+     * @param spelling the username exactly as the client sent it
+     * @return the offline UUID for that spelling; memoized if the name last logged in with the same spelling
+     */
+    public UUID offlineUuid(String spelling) {
+        if (offlineUuids == null) {
+            return Names.offlineUuid(spelling);
+        }
+        OfflineUuid known = offlineUuids[id];
+        if (known != null && known.spelling().equals(spelling)) {
+            return known.uuid();
+        }
+        UUID uuid = Names.offlineUuid(spelling);
+        // a racing login may overwrite this; the entry is immutable, so readers see either one complete
+        offlineUuids[id] = new OfflineUuid(spelling, uuid);
+        return uuid;
+    }
+
+    record OfflineUuid(String spelling, UUID uuid) {
+    }
+
+    public boolean allowListed() {
+        return profile.allowListed();
+    }
+
+    /**
+     * @return enabled groups granting access, in the order they were compiled
+     */
+    public List<String> groups() {
+        return profile.groups();
+    }
+
+    /**
+     * The reason part of a grant, interned per snapshot.
+     */
+    record Profile(boolean allowListed, List<String> groups) {
+
+        static final Profile ALLOW_LIST_ONLY = new Profile(true, List.of());
+
+        static Profile ofGroup(String groupName) {
+            return new Profile(false, List.of(groupName));
+        }
+
+        Profile withGroup(String groupName) {
+            if (groups.contains(groupName)) {
+                return this;
+            }
+            List<String> updated = new ArrayList<>(groups.size() + 1);
+            updated.addAll(groups);
+            updated.add(groupName);
+            return new Profile(allowListed, List.copyOf(updated));
+        }
+
+        Profile withGroups(List<String> groupNames) {
+            Profile merged = this;
+            for (String groupName : groupNames) {
+                merged = merged.withGroup(groupName);
+            }
+            return merged;
+        }
+
+        /**
+         * @return the remaining profile, or {@code null} if nothing grants access anymore
+         */
+        Profile withoutGroup(String groupName) {
+            if (!groups.contains(groupName)) {
+                return this;
+            }
+            List<String> updated = new ArrayList<>(groups);
+            updated.remove(groupName);
+            if (updated.isEmpty() && !allowListed) {
+                return null;
+            }
+            return new Profile(allowListed, List.copyOf(updated));
+        }
+    }
+}
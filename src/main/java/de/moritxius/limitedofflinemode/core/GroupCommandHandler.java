@@ -0,0 +1,633 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.nio.file.NoSuchFileException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Platform-neutral implementation of {@code /lomgroup}. Permission checks stay with the platform command.
+ */
+public final class GroupCommandHandler {
+
+    private static final int GROUPS_PER_PAGE = 10;
+    private static final int MEMBERS_PER_PAGE = 50;
+    private static final int MAX_SUGGESTIONS = 100;
+    private static final List<String> EXPIRY_OPTIONS = List.of("--for", "--until");
+    private static final Pattern DURATION = Pattern.compile("(\\d{1,6}[smhdw])+");
+    private static final Pattern DURATION_PART = Pattern.compile("(\\d+)([smhdw])");
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm")
+            .withZone(ZoneId.systemDefault());
+    private static final List<String> COMMANDS = List.of("allow", "group", "memory", "reload", "stats");
+    private static final List<String> ALLOW_ACTIONS = List.of("add", "check", "remove");
+    private static final List<String> GROUP_ACTIONS = List.of(
+            "add", "delete", "disable", "enable", "export", "import", "list", "remove", "servers", "toggle");
+
+    private final LimitedOfflineModeCore core;
+
+    GroupCommandHandler(LimitedOfflineModeCore core) {
+        this.core = core;
+    }
+
+    public void execute(String[] args, Consumer<String> reply) {
+        if (!core.isReady()) {
+            reply.accept("The lists are still loading, or failed to load (see the console).");
+            return;
+        }
+        if (args.length == 1 && "reload".equalsIgnoreCase(args[0])) {
+            reload(reply);
+            return;
+        }
+        if (args.length == 1 && "stats".equalsIgnoreCase(args[0])) {
+            sendStats(reply);
+            return;
+        }
+        if (args.length == 1 && "memory".equalsIgnoreCase(args[0])) {
+            sendMemory(reply);
+            return;
+        }
+
+        if (args.length == 3 && "allow".equalsIgnoreCase(args[0])) {
+            allow(args[1].toLowerCase(Locale.ROOT), parsePlayers(args[2]), reply);
+            return;
+        }
+
+        if (args.length < 2 || !"group".equalsIgnoreCase(args[0])) {
+            sendHelp(reply);
+            return;
+        }
+
+        String action = args[1].toLowerCase(Locale.ROOT);
+        String groupName = args.length > 2 ? Names.normalizeGroupName(args[2]) : "";
+
+        switch (action) {
+            case "add" -> {
+                if (args.length < 4) {
+                    reply.accept("Usage: /lomgroup group add <group> <player1,player2,...> [--for <duration>|--until <time>]");
+                    return;
+                }
+
+                Set<String> players = parsePlayers(args[3]);
+                long expiresAt;
+                try {
+                    expiresAt = parseExpiry(args, 4);
+                } catch (IllegalArgumentException e) {
+                    reply.accept(e.getMessage());
+                    return;
+                }
+
+                if (groupName.isEmpty() || players.isEmpty()) {
+                    reply.accept("Invalid group or players.");
+                    return;
+                }
+                for (String player : players) {
+                    String problem = PatternMatcher.problem(player);
+                    if (problem != null) {
+                        reply.accept("Invalid pattern '" + player + "': " + problem);
+                        return;
+                    }
+                }
+                String problem = core.policy().current().patternProblem(groupName, players, false);
+                if (problem != null) {
+                    reply.accept("Patterns not added to group '" + groupName + "': " + problem + ".");
+                    return;
+                }
+
+                core.addMembers(groupName, players, expiresAt);
+                reply.accept("Group '" + groupName + "' updated with " + players.size() + " players"
+                        + untilSuffix(expiresAt) + ".");
+            }
+            case "remove" -> {
+                if (args.length < 4) {
+                    reply.accept("Usage: /lomgroup group remove <group> <player1,player2,...>");
+                    return;
+                }
+
+                Set<String> players = parsePlayers(args[3]);
+                Set<String> members = core.policy().current().playerGroups().get(groupName);
+                if (members == null) {
+                    reply.accept("Unknown group: " + groupName);
+                    return;
+                }
+                if (players.isEmpty()) {
+                    reply.accept("Invalid group or players.");
+                    return;
+                }
+
+                long removed = players.stream().filter(members::contains).count();
+                core.removeMembers(groupName, players);
+                reply.accept("Removed " + removed + " players from group '" + groupName + "'.");
+            }
+            case "delete" -> {
+                if (groupName.isEmpty() || !core.policy().current().hasGroup(groupName)) {
+                    reply.accept("Unknown group: " + groupName);
+                    return;
+                }
+
+                core.deleteGroup(groupName);
+                reply.accept("Group '" + groupName + "' deleted.");
+            }
+            case "import" -> {
+                if (args.length < 4 || groupName.isEmpty()) {
+                    reply.accept("Usage: /lomgroup group import <group> <file>");
+                    return;
+                }
+
+                importMembers(groupName, args[3], reply);
+            }
+            case "export" -> {
+                if (groupName.isEmpty() || !core.policy().current().hasGroup(groupName)) {
+                    reply.accept("Unknown group: " + groupName);
+                    return;
+                }
+
+                exportGroup(groupName, args.length > 3 ? args[3] : GroupTransfer.defaultExportFile(groupName), reply);
+            }
+            case "enable", "disable", "toggle" -> {
+                if (groupName.isEmpty() || !core.policy().current().hasGroup(groupName)) {
+                    reply.accept("Unknown group: " + groupName);
+                    return;
+                }
+
+                boolean enabling = "enable".equals(action)
+                        || "toggle".equals(action) && !core.policy().current().isGroupEnabled(groupName);
+                String problem = enabling
+                        ? core.policy().current().patternProblem(groupName, List.of(), true) : null;
+                if (problem != null) {
+                    reply.accept("Group '" + groupName + "' not enabled: " + problem + ".");
+                    return;
+                }
+
+                long expiresAt = 0;
+                if ("enable".equals(action)) {
+                    try {
+                        expiresAt = parseExpiry(args, 3);
+                    } catch (IllegalArgumentException e) {
+                        reply.accept(e.getMessage());
+                        return;
+                    }
+                }
+
+                boolean enabled = switch (action) {
+                    case "enable" -> core.setGroupEnabled(groupName, true, expiresAt);
+                    case "disable" -> core.setGroupEnabled(groupName, false);
+                    default -> core.toggleGroup(groupName);
+                };
+                reply.accept("Group '" + groupName + "' " + (enabled ? "enabled" + untilSuffix(expiresAt) : "disabled") + ".");
+            }
+            case "servers" -> {
+                if (groupName.isEmpty() || !core.policy().current().hasGroup(groupName)) {
+                    reply.accept("Unknown group: " + groupName);
+                    return;
+                }
+
+                if (args.length > 3) {
+                    // "staging-*, test-lobby" arrives as two arguments
+                    String list = String.join(",", Arrays.copyOfRange(args, 3, args.length));
+                    core.setGroupServers(groupName, ServerScopes.parse(list));
+                }
+                List<String> servers = core.policy().current().groupServers(groupName);
+                reply.accept("Group '" + groupName + "' may join "
+                        + (servers == null ? "every server" : String.join(", ", servers)) + ".");
+            }
+            case "list" -> list(args, reply);
+            default -> sendHelp(reply);
+        }
+    }
+
+    /**
+     * {@code list [page]} pages through the groups, {@code list <group> [page] [prefix]} through the sorted members of
+     * one group. Each page is a single message.
+     */
+    private void list(String[] args, Consumer<String> reply) {
+        PolicySnapshot snapshot = core.policy().current();
+        String groupName = args.length > 2 ? Names.normalizeGroupName(args[2]) : "";
+        if (groupName.isEmpty() || (!snapshot.hasGroup(groupName) && parsePage(groupName) > 0)) {
+            listGroups(snapshot, groupName.isEmpty() ? 1 : parsePage(groupName), reply);
+            return;
+        }
+
+        int page = args.length > 3 ? parsePage(args[3]) : 1;
+        String prefix = "";
+        if (page <= 0) {
+            // "list <group> <prefix>" without a page number
+            page = 1;
+            prefix = args[3];
+        } else if (args.length > 4) {
+            prefix = args[4];
+        }
+        NameIndex.Match match = snapshot.findNames(groupName, prefix);
+        if (match == null) {
+            reply.accept("Unknown group: " + groupName);
+            return;
+        }
+
+        int pages = Math.max(1, (match.size() + MEMBERS_PER_PAGE - 1) / MEMBERS_PER_PAGE);
+        page = Math.min(page, pages);
+        String filter = prefix.isBlank() ? "" : " matching '" + Names.normalizeUsername(prefix) + "'";
+        Expiries expiries = snapshot.expiries();
+        reply.accept("Group '" + groupName + "' [" + state(snapshot, groupName) + "]" + serversSuffix(snapshot, groupName)
+                + ", " + match.size() + " players" + filter + " (page " + page + "/" + pages + "):");
+        if (match.size() > 0) {
+            List<String> names = match.names((page - 1) * MEMBERS_PER_PAGE, MEMBERS_PER_PAGE);
+            if (expiries.hasMembers(groupName)) {
+                names = names.stream()
+                        .map(name -> name + untilSuffix(expiries.member(groupName, name)))
+                        .toList();
+            }
+            reply.accept(String.join(", ", names));
+        }
+    }
+
+    private static void listGroups(PolicySnapshot snapshot, int page, Consumer<String> reply) {
+        List<String> groupNames = snapshot.playerGroups().keySet().stream().sorted().toList();
+        int pages = Math.max(1, (groupNames.size() + GROUPS_PER_PAGE - 1) / GROUPS_PER_PAGE);
+        page = Math.min(page, pages);
+        reply.accept("Groups (page " + page + "/" + pages + "):");
+        for (String name : groupNames.subList((page - 1) * GROUPS_PER_PAGE,
+                Math.min(groupNames.size(), page * GROUPS_PER_PAGE))) {
+            reply.accept("- " + name + " [" + state(snapshot, name) + "] "
+                    + snapshot.playerGroups().get(name).size() + " players" + serversSuffix(snapshot, name));
+        }
+        if (page < pages) {
+            reply.accept("/lomgroup group list " + (page + 1) + " for more, /lomgroup group list <group> to show members");
+        }
+    }
+
+    private static String state(PolicySnapshot snapshot, String groupName) {
+        return snapshot.isGroupEnabled(groupName) ? "ON" + untilSuffix(snapshot.expiries().group(groupName)) : "OFF";
+    }
+
+    private static String serversSuffix(PolicySnapshot snapshot, String groupName) {
+        List<String> servers = snapshot.groupServers(groupName);
+        return servers == null ? "" : " on " + String.join(", ", servers);
+    }
+
+    private static String untilSuffix(long expiresAt) {
+        return expiresAt == 0 ? "" : " until " + TIME_FORMAT.format(Instant.ofEpochMilli(expiresAt));
+    }
+
+    /**
+     * Reads an optional {@code --for <duration>} (e.g. {@code 2h}, {@code 1d12h}, {@code 90m}) or
+     * {@code --until <time>} (an ISO-8601 instant, a local {@code yyyy-MM-dd HH:mm}, or {@code HH:mm} for the next
+     * time the clock shows it) starting at {@code args[index]}.
+     *
+     * @return the expiry in epoch milliseconds, or {@code 0} if there is none
+     * @throws IllegalArgumentException with a reply for the user if the option is invalid or not in the future
+     */
+    static long parseExpiry(String[] args, int index) {
+        if (args.length <= index) {
+            return 0;
+        }
+        String option = args[index].toLowerCase(Locale.ROOT);
+        if (args.length == index + 1 || (!"--for".equals(option) && !"--until".equals(option))) {
+            throw new IllegalArgumentException("Expected --for <duration> or --until <time>.");
+        }
+        long now = System.currentTimeMillis();
+        long expiresAt;
+        if ("--for".equals(option)) {
+            String duration = args[index + 1].toLowerCase(Locale.ROOT);
+            if (!DURATION.matcher(duration).matches()) {
+                throw new IllegalArgumentException("Invalid duration: " + args[index + 1] + " (e.g. 30m, 2h, 1d12h)");
+            }
+            long millis = 0;
+            Matcher part = DURATION_PART.matcher(duration);
+            while (part.find()) {
+                long amount = Long.parseLong(part.group(1));
+                millis += switch (part.group(2)) {
+                    case "s" -> TimeUnit.SECONDS.toMillis(amount);
+                    case "m" -> TimeUnit.MINUTES.toMillis(amount);
+                    case "h" -> TimeUnit.HOURS.toMillis(amount);
+                    case "d" -> TimeUnit.DAYS.toMillis(amount);
+                    default -> TimeUnit.DAYS.toMillis(7 * amount);
+                };
+            }
+            expiresAt = now + millis;
+        } else {
+            // "2024-05-01 18:00" arrives as two arguments
+            String time = String.join("T", Arrays.copyOfRange(args, index + 1, args.length));
+            expiresAt = parseTime(time, now);
+        }
+        if (expiresAt <= now) {
+            throw new IllegalArgumentException("The expiry must be in the future.");
+        }
+        return expiresAt;
+    }
+
+    private static long parseTime(String time, long now) {
+        ZoneId zone = ZoneId.systemDefault();
+        try {
+            return Instant.parse(time).toEpochMilli();
+        } catch (DateTimeParseException ignored) {
+            // try the local formats
+        }
+        try {
+            return LocalDateTime.parse(time).atZone(zone).toInstant().toEpochMilli();
+        } catch (DateTimeParseException ignored) {
+            // try a time of day
+        }
+        try {
+            ZonedDateTime today = LocalTime.parse(time).atDate(LocalDate.now(zone)).atZone(zone);
+            ZonedDateTime next = today.toInstant().toEpochMilli() > now ? today : today.plusDays(1);
+            return next.toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid time: " + time + " (e.g. 18:00 or 2024-05-01 18:00)");
+        }
+    }
+
+    /**
+     * @return the page number, or 0 if {@code argument} is not a positive number
+     */
+    private static int parsePage(String argument) {
+        try {
+            return Math.max(0, Integer.parseInt(argument.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Completes the last argument on the suggestion thread; the first completion after a policy change builds the
+     * snapshot's name index. Completes with no suggestions if too many are already waiting.
+     */
+    public CompletableFuture<List<String>> suggestAsync(String[] args) {
+        try {
+            return CompletableFuture.supplyAsync(() -> suggest(args), core.suggestions());
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.completedFuture(List.of());
+        }
+    }
+
+    /**
+     * @param args the arguments typed so far; the last one is the one being completed and may be empty
+     */
+    public List<String> suggest(String[] args) {
+        if (args.length <= 1) {
+            return matching(COMMANDS, args.length == 0 ? "" : args[0]);
+        }
+        if ("allow".equalsIgnoreCase(args[0])) {
+            return args.length == 2 ? matching(ALLOW_ACTIONS, args[1]) : List.of();
+        }
+        if (!"group".equalsIgnoreCase(args[0])) {
+            return List.of();
+        }
+        if (args.length == 2) {
+            return matching(GROUP_ACTIONS, args[1]);
+        }
+
+        PolicySnapshot snapshot = core.policy().current();
+        String action = args[1].toLowerCase(Locale.ROOT);
+        if (args.length == 3) {
+            return matching(snapshot.playerGroups().keySet(), args[2]);
+        }
+        if (args.length == 4 && ("add".equals(action) || "remove".equals(action))) {
+            // complete the last name of a comma separated list; add offers every known name, remove the members
+            String typed = args[3];
+            String head = typed.substring(0, typed.lastIndexOf(',') + 1);
+            NameIndex.Match match = snapshot.findNames(
+                    "add".equals(action) ? null : Names.normalizeGroupName(args[2]), typed.substring(head.length()));
+            if (match == null) {
+                return List.of();
+            }
+            List<String> names = match.names(0, MAX_SUGGESTIONS);
+            return head.isEmpty() ? names : names.stream().map(name -> head + name).toList();
+        }
+        if (args.length == 4 && "servers".equals(action)) {
+            String typed = args[3];
+            String head = typed.substring(0, typed.lastIndexOf(',') + 1);
+            Set<String> servers = new TreeSet<>(snapshot.serverScopes().knownServers());
+            servers.add("*");
+            return matching(servers, typed.substring(head.length())).stream().map(server -> head + server).toList();
+        }
+        if ((args.length == 5 && "add".equals(action)) || (args.length == 4 && "enable".equals(action))) {
+            return matching(EXPIRY_OPTIONS, args[args.length - 1]);
+        }
+        return List.of();
+    }
+
+    private static List<String> matching(Collection<String> candidates, String typed) {
+        String prefix = typed.toLowerCase(Locale.ROOT);
+        return candidates.stream()
+                .filter(candidate -> candidate.startsWith(prefix))
+                .sorted()
+                .limit(MAX_SUGGESTIONS)
+                .toList();
+    }
+
+    private static Set<String> parsePlayers(String argument) {
+        return Arrays.stream(argument.split(","))
+                .map(Names::normalizeUsername)
+                .filter(name -> !name.isEmpty())
+                .collect(Collectors.toCollection(HashSet::new));
+    }
+
+    /**
+     * {@code allow add|remove|check <player1,player2,...>} edits or queries the allow list, whichever backend holds it.
+     */
+    private void allow(String action, Set<String> players, Consumer<String> reply) {
+        if (players.isEmpty()) {
+            reply.accept("Invalid players.");
+            return;
+        }
+        String list = core.allowlist().describe();
+        switch (action) {
+            case "add" -> core.allow(players).whenComplete((added, error) -> reply.accept(error != null
+                    ? "Adding to the allow list failed: " + describe(error)
+                    : "Added " + added + " players to " + list + " (" + (players.size() - added) + " already listed)."));
+            case "remove" -> core.disallow(players).whenComplete((removed, error) -> reply.accept(error != null
+                    ? "Removing from the allow list failed: " + describe(error)
+                    : "Removed " + removed + " players from " + list + "."));
+            case "check" -> {
+                for (String player : new TreeSet<>(players)) {
+                    core.grantAsync(player).whenComplete((grant, error) -> reply.accept(player + ": "
+                            + (grant == null ? "no offline access"
+                            : grant.allowListed() ? "allow list" + groupsSuffix(grant)
+                            : "groups " + String.join(", ", grant.groups()))));
+                }
+            }
+            default -> sendHelp(reply);
+        }
+    }
+
+    private static String groupsSuffix(Grant grant) {
+        return grant.groups().isEmpty() ? "" : ", groups " + String.join(", ", grant.groups());
+    }
+
+    private void importMembers(String groupName, String fileName, Consumer<String> reply) {
+        reply.accept("Importing " + fileName + " into group '" + groupName + "'...");
+        core.importMembers(groupName, fileName, reply).whenComplete((result, error) -> {
+            if (error != null) {
+                reply.accept("Import failed: " + describe(error));
+                return;
+            }
+            reply.accept("Imported " + result.read() + " names into group '" + groupName + "' (" + result.added()
+                    + " new) in " + TimeUnit.NANOSECONDS.toMillis(result.nanos()) + " ms, "
+                    + result.namesPerSecond() + " names/s.");
+        });
+    }
+
+    private void exportGroup(String groupName, String fileName, Consumer<String> reply) {
+        core.exportGroup(groupName, fileName).whenComplete((count, error) -> {
+            if (error != null) {
+                reply.accept("Export failed: " + describe(error));
+                return;
+            }
+            reply.accept("Exported " + count + " members of group '" + groupName + "' to "
+                    + GroupTransfer.EXPORT_DIRECTORY + "/" + fileName + ".");
+        });
+    }
+
+    private static String describe(Throwable error) {
+        Throwable cause = error;
+        while (cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof NoSuchFileException) {
+            return "file not found: " + cause.getMessage();
+        }
+        return cause.getMessage();
+    }
+
+    private void reload(Consumer<String> reply) {
+        long start = System.nanoTime();
+        core.reloadAsync().whenComplete((diff, error) -> {
+            if (error != null) {
+                reply.accept("Reload failed: " + error.getMessage());
+                return;
+            }
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            reply.accept("Reloaded in " + millis + " ms: " + LimitedOfflineModeCore.describe(diff) + ".");
+        });
+    }
+
+    private void sendStats(Consumer<String> reply) {
+        LoginMetrics metrics = core.metrics();
+        PolicySnapshot snapshot = core.policy().current();
+        reply.accept("Logins: " + metrics.offlineGranted() + " offline, " + metrics.passthrough() + " online");
+        reply.accept("Offline players: " + snapshot.grantedUserCount() + ", enabled groups: "
+                + snapshot.enabledGroups().size() + "/" + snapshot.playerGroups().size());
+        sendLatency(reply, "pre-login", metrics.preLogin());
+        sendLatency(reply, "profile", metrics.gameProfileRequest());
+        sendLatency(reply, "post-login", metrics.postLogin());
+        sendLatency(reply, "server connect", metrics.serverConnect());
+        sendLatency(reply, "reload", metrics.reload());
+        sendLatency(reply, "save", metrics.save());
+
+        List<Map.Entry<String, Long>> topGroups = metrics.groupHits().entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(5)
+                .toList();
+        reply.accept("Allow list hits: " + metrics.allowListHits() + ", top groups: "
+                + (topGroups.isEmpty() ? "-" : topGroups.stream()
+                        .map(entry -> entry.getKey() + "=" + entry.getValue())
+                        .collect(Collectors.joining(", "))));
+
+        PolicyPersister persister = core.persister();
+        reply.accept("Saves: " + persister.flushCount() + ", last absorbed " + persister.lastFlushMutations()
+                + " changes, " + persister.pendingMutations() + " pending");
+        reply.accept("Server connections denied: " + metrics.serversDenied());
+        reply.accept("Temporary grants: " + core.expiry().pending() + " scheduled, " + core.expiry().expired()
+                + " expired");
+        reply.accept("Audit events: " + core.audit().written() + " written, " + core.audit().dropped() + " dropped");
+
+        LoginThrottle throttle = core.throttle();
+        if (throttle != null) {
+            reply.accept("Offline logins throttled: " + throttle.throttled() + ", " + throttle.trackedAddresses()
+                    + " addresses tracked, " + throttle.evicted() + " evicted");
+        }
+
+        AllowlistProvider allowlist = core.allowlist();
+        LookupCache cache = core.allowlistCache();
+        if (cache != null) {
+            long hits = cache.hits();
+            long lookups = hits + cache.misses();
+            reply.accept("Allow list in " + allowlist.describe() + ": cache " + cache.size() + "/" + cache.maxEntries()
+                    + " names, " + hits + " hits, " + cache.misses() + " misses ("
+                    + String.format(Locale.ROOT, "%.1f", lookups == 0 ? 0.0 : 100.0 * hits / lookups) + "% hits), "
+                    + cache.rejected() + " sent online while the lookup queue was full");
+        }
+
+        Replicator replication = core.replication();
+        if (replication.enabled()) {
+            reply.accept("Replication as " + replication.nodeId() + ": " + replication.sent() + " changes sent, "
+                    + replication.received() + " received, " + replication.snapshotsInstalled() + " snapshots installed");
+            sendLatency(reply, "replication delay", replication.delay());
+            long now = System.currentTimeMillis();
+            replication.peers().forEach((origin, peer) -> reply.accept("- " + origin + ": #" + peer.applied() + "/"
+                    + peer.head() + " (" + peer.behind() + " behind), last delay " + peer.lastDelayMillis() + " ms, "
+                    + (peer.lastContactMillis() == 0 ? "not seen yet" : "seen "
+                            + TimeUnit.MILLISECONDS.toSeconds(now - peer.lastContactMillis()) + " s ago")));
+        }
+    }
+
+    private void sendMemory(Consumer<String> reply) {
+        PolicySnapshot snapshot = core.policy().current();
+        reply.accept("Policy memory for " + snapshot.nameCount() + " names, " + snapshot.grantedUserCount()
+                + " offline players:");
+        long total = 0;
+        for (Map.Entry<String, Long> structure : snapshot.memoryUsage().entrySet()) {
+            reply.accept("- " + structure.getKey() + ": " + bytes(structure.getValue()));
+            total += structure.getValue();
+        }
+        long perName = snapshot.nameCount() == 0 ? 0 : total / snapshot.nameCount();
+        reply.accept("Total: " + bytes(total) + " (" + perName + " bytes per name)");
+    }
+
+    private static String bytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format(Locale.ROOT, "%.1f KiB", bytes / 1024.0);
+        }
+        return String.format(Locale.ROOT, "%.1f MiB", bytes / (1024.0 * 1024));
+    }
+
+    private static void sendLatency(Consumer<String> reply, String name, LatencyHistogram histogram) {
+        LatencyHistogram.Summary summary = histogram.summary();
+        reply.accept(name + ": n=" + summary.count() + " p50=" + micros(summary.p50()) + " p99=" + micros(summary.p99())
+                + " max=" + micros(summary.max()));
+    }
+
+    private static String micros(long nanos) {
+        return String.format(Locale.ROOT, "%.1fus", nanos / 1000.0);
+    }
+
+    private void sendHelp(Consumer<String> reply) {
+        reply.accept("/lomgroup group add <group> <player1,player2,...> [--for <duration>|--until <time>]");
+        reply.accept("/lomgroup group remove <group> <player1,player2,...>");
+        reply.accept("/lomgroup group delete <group>");
+        reply.accept("/lomgroup group import <group> <file>");
+        reply.accept("/lomgroup group export <group> [file]");
+        reply.accept("/lomgroup group enable <group> [--for <duration>|--until <time>]");
+        reply.accept("/lomgroup group disable <group>");
+        reply.accept("/lomgroup group toggle <group>");
+        reply.accept("/lomgroup group servers <group> [server1,server2,...|*]");
+        reply.accept("/lomgroup group list [page]");
+        reply.accept("/lomgroup group list <group> [page] [prefix]");
+        reply.accept("/lomgroup allow <add|remove|check> <player1,player2,...>");
+        reply.accept("/lomgroup reload");
+        reply.accept("/lomgroup stats");
+        reply.accept("/lomgroup memory");
+    }
+}
@@ -0,0 +1,115 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Bulk import and export of group members through plain name files in the data directory. An import is applied as
+ * one {@link PolicyMutation.AddMembers}, so thousands of names cost one snapshot rebuild and one journal append
+ * instead of one of each per name. Exports only go to {@value #EXPORT_DIRECTORY}, so they cannot overwrite the
+ * plugin's own files.
+ */
+final class GroupTransfer {
+
+    static final int PROGRESS_INTERVAL = 100_000;
+    static final String EXPORT_DIRECTORY = "exports";
+
+    private final Path dataDirectory;
+    private final LimitedOfflineModeCore core;
+
+    GroupTransfer(Path dataDirectory, LimitedOfflineModeCore core) {
+        this.dataDirectory = dataDirectory;
+        this.core = core;
+    }
+
+    /**
+     * @param read  names read from the file, including duplicates
+     * @param added names that were not in the group before
+     */
+    record ImportResult(String groupName, long read, int added, long nanos) {
+        long namesPerSecond() {
+            return nanos == 0 ? read : read * TimeUnit.SECONDS.toNanos(1) / nanos;
+        }
+    }
+
+    /**
+     * Reads one name per line from {@code fileName} and adds them to the group in a single mutation.
+     */
+    ImportResult importMembers(String groupName, String fileName, Consumer<String> progress) throws IOException {
+        long start = System.nanoTime();
+        Path file = resolve(dataDirectory, fileName);
+        Set<String> members = new HashSet<>();
+        long[] read = {0};
+        PolicyParser.parseNames(file, name -> {
+            String problem = PatternMatcher.problem(name);
+            if (problem != null) {
+                progress.accept("Skipping pattern '" + name + "': " + problem);
+            } else if (!name.isEmpty()) {
+                members.add(name);
+                if (++read[0] % PROGRESS_INTERVAL == 0) {
+                    progress.accept("Read " + read[0] + " names from " + fileName + "...");
+                }
+            }
+        });
+        String problem = core.policy().current().patternProblem(groupName, members, false);
+        if (problem != null) {
+            progress.accept("Skipping the patterns in " + fileName + ": " + problem);
+            members.removeIf(PatternMatcher::isPattern);
+        }
+        int before = groupSize(core.policy().current(), groupName);
+        int added = 0;
+        if (!members.isEmpty()) {
+            added = groupSize(core.apply(new PolicyMutation.AddMembers(groupName, members)), groupName) - before;
+        }
+        return new ImportResult(groupName, read[0], added, System.nanoTime() - start);
+    }
+
+    /**
+     * Writes the sorted members of the group to {@code fileName} in {@value #EXPORT_DIRECTORY}, one per line.
+     *
+     * @return the number of members written
+     */
+    int export(String groupName, String fileName) throws IOException {
+        Set<String> members = core.policy().current().playerGroups().get(groupName);
+        if (members == null) {
+            throw new IOException("Unknown group: " + groupName);
+        }
+        Path file = resolve(dataDirectory.resolve(EXPORT_DIRECTORY), fileName);
+        Files.createDirectories(file.getParent());
+        Path tempPath = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+            for (String member : new TreeSet<>(members)) {
+                writer.write(member);
+                writer.newLine();
+            }
+        }
+        PolicyFiles.moveAtomically(tempPath, file);
+        return members.size();
+    }
+
+    static String defaultExportFile(String groupName) {
+        return groupName + "-export.txt";
+    }
+
+    private static Path resolve(Path directory, String fileName) throws IOException {
+        Path root = directory.toAbsolutePath().normalize();
+        Path file = root.resolve(fileName).normalize();
+        if (!file.startsWith(root) || file.equals(root)) {
+            throw new IOException("File must be inside " + root.getFileName() + ": " + fileName);
+        }
+        return file;
+    }
+
+    private static int groupSize(PolicySnapshot snapshot, String groupName) {
+        Set<String> members = snapshot.playerGroups().get(groupName);
+        return members == null ? 0 : members.size();
+    }
+}
@@ -0,0 +1,94 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Immutable set of {@link NameArena} IDs, stored as a sorted {@code int[]}: four bytes per member instead of a
+ * {@code HashSet} node and a {@code String}.
+ */
+final class IdSet {
+
+    static final IdSet EMPTY = new IdSet(new int[0]);
+
+    private final int[] ids;
+
+    private IdSet(int[] ids) {
+        this.ids = ids;
+    }
+
+    /**
+     * @param ids IDs in any order, duplicates allowed; the array is reused
+     */
+    static IdSet of(int[] ids, int length) {
+        if (length == 0) {
+            return EMPTY;
+        }
+        Arrays.sort(ids, 0, length);
+        int distinct = 1;
+        for (int i = 1; i < length; i++) {
+            if (ids[i] != ids[distinct - 1]) {
+                ids[distinct++] = ids[i];
+            }
+        }
+        return new IdSet(distinct == ids.length ? ids : Arrays.copyOf(ids, distinct));
+    }
+
+    boolean contains(int id) {
+        return Arrays.binarySearch(ids, id) >= 0;
+    }
+
+    int size() {
+        return ids.length;
+    }
+
+    int get(int index) {
+        return ids[index];
+    }
+
+    IdSet with(int[] added, int length) {
+        int[] merged = Arrays.copyOf(ids, ids.length + length);
+        System.arraycopy(added, 0, merged, ids.length, length);
+        return of(merged, merged.length);
+    }
+
+    /**
+     * @return the members of this set that are not in {@code removed}
+     */
+    IdSet without(IdSet removed) {
+        int[] remaining = new int[ids.length];
+        int count = 0;
+        for (int id : ids) {
+            if (!removed.contains(id)) {
+                remaining[count++] = id;
+            }
+        }
+        return count == ids.length ? this : of(remaining, count);
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(ids.length);
+        BinarySnapshot.writeInts(out, ids);
+    }
+
+    /**
+     * Reads a set written by {@link #write(DataOutputStream)}.
+     *
+     * @param limit number of IDs in the arena the set belongs to
+     */
+    static IdSet read(ByteBuffer buffer, int limit) {
+        int[] ids = BinarySnapshot.readInts(buffer, BinarySnapshot.readCount(buffer));
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] < (i == 0 ? 0 : ids[i - 1] + 1) || ids[i] >= limit) {
+                throw new IllegalArgumentException("Unsorted or unknown ID in a stored set");
+            }
+        }
+        return ids.length == 0 ? EMPTY : new IdSet(ids);
+    }
+
+    long bytes() {
+        return (long) ids.length * Integer.BYTES;
+    }
+}
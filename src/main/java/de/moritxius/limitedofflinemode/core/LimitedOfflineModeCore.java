@@ -0,0 +1,653 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Platform-neutral state shared by the Velocity and BungeeCord plugins: the published policy, its files and the
+ * {@code /lomgroup} command.
+ */
+public final class LimitedOfflineModeCore {
+
+    private static final long SHUTDOWN_LOAD_WAIT_SECONDS = 30;
+
+    private final PolicyStore policy = new PolicyStore();
+    private final LoginMetrics metrics = new LoginMetrics();
+    private final Path dataDirectory;
+    private final AuditLog audit;
+    private final PolicyFiles files;
+    private final PolicyLogger logger;
+    private final MutationJournal journal;
+    private final PolicyPersister persister;
+    private final PolicyWatcher watcher;
+    private final GroupCommandHandler commands;
+    private final GroupTransfer transfer;
+    private final ExpiryScheduler expiry;
+    private final Replicator replication;
+    private final ScheduledExecutorService scheduler;
+    // tab completion only; a full queue completes nothing rather than delaying expiries and exports
+    private final ExecutorService suggestions;
+    private final CompletableFuture<Void> ready = new CompletableFuture<>();
+    private volatile PluginSettings settings = PluginSettings.defaults();
+    private volatile Set<String> knownServers = Set.of();
+    private volatile PrometheusExporter exporter;
+    private volatile AllowlistProvider allowlist;
+    private volatile LookupCache allowlistCache;
+    private volatile LoginThrottle throttle;
+    private ExecutorService lookups;
+    private volatile boolean loadStarted;
+    private volatile boolean waitForPolicy;
+
+    public LimitedOfflineModeCore(Path dataDirectory, PolicyLogger logger) {
+        this.dataDirectory = dataDirectory;
+        this.logger = logger;
+        this.files = new PolicyFiles(dataDirectory, logger);
+        this.audit = new AuditLog(dataDirectory, logger);
+        this.journal = new MutationJournal(dataDirectory, files, logger);
+        this.persister = new PolicyPersister(policy, files, journal, logger, metrics, PolicyPersister.DEFAULT_DELAY_MILLIS);
+        this.watcher = new PolicyWatcher(dataDirectory, this::reloadIfChanged, logger);
+        this.commands = new GroupCommandHandler(this);
+        this.transfer = new GroupTransfer(dataDirectory, this);
+        this.expiry = new ExpiryScheduler(this, logger);
+        this.replication = new Replicator(this, dataDirectory, logger);
+        this.allowlist = new TextFileAllowlist(this, dataDirectory);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "LimitedOfflineMode-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.suggestions = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(16),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "LimitedOfflineMode-suggestions");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Loads the policy and starts watching the data directory for edits, on the calling thread.
+     */
+    public void load() {
+        long begin = System.nanoTime();
+        loadSettings();
+        start(begin);
+    }
+
+    /**
+     * Reads the settings, then loads the policy and starts everything else on the reload thread, so large lists do
+     * not hold up the proxy's startup. Until the policy is {@link #isReady() ready}, logins get the
+     * {@code startup.fallback}: online-mode authentication, or waiting for the policy.
+     *
+     * @return completes once offline logins are decided by the policy
+     */
+    public CompletableFuture<Void> loadAsync() {
+        long begin = System.nanoTime();
+        loadSettings();
+        logger.info("Loading the policy in the background; until then logins "
+                + (waitForPolicy ? "wait for it" : "authenticate online"));
+        watcher.submit(() -> {
+            start(begin);
+            return null;
+        }).whenComplete((ignored, error) -> {
+            if (error != null) {
+                logger.error("Failed to load the policy, offline logins stay disabled", error);
+            }
+        });
+        return ready;
+    }
+
+    private void loadSettings() {
+        loadStarted = true;
+        settings = PluginSettings.load(dataDirectory, logger);
+        String fallback = settings.string("startup.fallback", "online").toLowerCase(Locale.ROOT);
+        if (!fallback.equals("online") && !fallback.equals("wait")) {
+            logger.warn("Unknown startup.fallback '" + fallback + "', using online");
+        }
+        waitForPolicy = fallback.equals("wait");
+    }
+
+    private void start(long begin) {
+        try {
+            audit.start(settings);
+            openAllowlist();
+            startThrottle();
+            PolicySnapshot loaded = files.load();
+            PolicySnapshot previous = policy.current();
+            policy.publish(journal.replay(loaded).withKnownServers(knownServers));
+            warnSkippedPatterns(previous, policy.current());
+            refreshDerivedFiles(loaded);
+            trackExpiries();
+            expiry.start(scheduler);
+            watcher.start();
+            replication.start(settings);
+            startMetricsExport();
+        } catch (RuntimeException e) {
+            ready.completeExceptionally(e);
+            throw e;
+        }
+        ready.complete(null);
+        logger.info("Ready for offline logins " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin)
+                + " ms after loading started");
+    }
+
+    /**
+     * @return whether the policy is loaded; before that, and if loading failed, nobody is let in offline
+     */
+    public boolean isReady() {
+        return ready.isDone() && !ready.isCompletedExceptionally();
+    }
+
+    /**
+     * What a login gets while the policy is not ready: {@code fallback} right away, or with
+     * {@code startup.fallback=wait} the real decision once the policy is loaded.
+     */
+    private <T> CompletableFuture<T> untilReady(Supplier<CompletableFuture<T>> decision, T fallback) {
+        if (!waitForPolicy || ready.isDone()) {
+            return CompletableFuture.completedFuture(fallback);
+        }
+        return ready.handle((ignored, error) -> error)
+                .thenCompose(error -> error == null ? decision.get() : CompletableFuture.completedFuture(fallback));
+    }
+
+    /**
+     * Switches to the configured allow list backend; {@code allowed-users.txt} stays part of the policy either way.
+     */
+    private void openAllowlist() {
+        String backend = settings.string("allowlist.backend", "files").toLowerCase(Locale.ROOT);
+        if (backend.equals("files")) {
+            return;
+        }
+        if (!backend.equals("h2")) {
+            logger.warn("Unknown allowlist.backend '" + backend + "', using " + PolicyFiles.ALLOWED_USERS_FILE);
+            return;
+        }
+        try {
+            SqlAllowlist database = SqlAllowlist.open(dataDirectory);
+            // one thread, as the database serves one query at a time; a full queue sends logins online
+            int queueSize = (int) Math.max(1, Math.min(1_000_000, settings.number("allowlist.lookup-queue", 1000)));
+            lookups = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "LimitedOfflineMode-lookup");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            int cacheSize = (int) Math.max(1, Math.min(10_000_000, settings.number("allowlist.cache-size", 10_000)));
+            long ttl = TimeUnit.SECONDS.toMillis(Math.max(0, settings.number("allowlist.cache-ttl-seconds", 300)));
+            long negativeTtl = TimeUnit.SECONDS.toMillis(Math.max(0, settings.number("allowlist.negative-ttl-seconds", 30)));
+            allowlistCache = new LookupCache(database, cacheSize, ttl, negativeTtl, lookups);
+            allowlist = database;
+            logger.info("Looking up allowed users in " + database.describe() + " (" + database.size()
+                    + " names), caching up to " + cacheSize + " names");
+        } catch (IOException e) {
+            logger.error("Failed to open the allow list database, using " + PolicyFiles.ALLOWED_USERS_FILE + " only", e);
+        }
+    }
+
+    private void startThrottle() {
+        if (!settings.flag("throttle.enabled", true)) {
+            return;
+        }
+        throttle = new LoginThrottle(settings.number("throttle.offline-logins-per-minute", 6),
+                (int) settings.number("throttle.burst", 3),
+                (int) Math.max(1, Math.min(10_000_000, settings.number("throttle.max-addresses", 100_000))));
+        scheduler.scheduleWithFixedDelay(throttle::sweep, 1, 1, TimeUnit.MINUTES);
+    }
+
+    private void startMetricsExport() {
+        String file = settings.string("metrics.prometheus-file", "");
+        if (file.isEmpty()) {
+            return;
+        }
+        long interval = Math.max(1, settings.number("metrics.prometheus-interval-seconds", 60));
+        exporter = new PrometheusExporter(dataDirectory.resolve(file), this, logger);
+        scheduler.scheduleAtFixedRate(exporter::write, interval, interval, TimeUnit.SECONDS);
+        logger.info("Writing Prometheus metrics to " + file + " every " + interval + " s");
+    }
+
+    /**
+     * Re-reads the policy files, replays the journal on top and atomically publishes the result. Logins keep using
+     * the previous snapshot until the new one is ready.
+     *
+     * @return what changed compared to the previously published policy
+     */
+    public synchronized PolicyDiff reload() {
+        long start = System.nanoTime();
+        PolicyDiff diff = persister.afterFlush(() -> {
+            PolicySnapshot loaded = files.load();
+            PolicySnapshot next = journal.replay(loaded).withKnownServers(knownServers);
+            PolicyDiff changes = PolicyDiff.between(policy.current(), next);
+            warnSkippedPatterns(policy.current(), next);
+            policy.publish(next);
+            refreshDerivedFiles(loaded);
+            return changes;
+        });
+        trackExpiries();
+        long nanos = System.nanoTime() - start;
+        metrics.recordReload(nanos);
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        logger.info("Reloaded policy in " + millis + " ms: " + describe(diff));
+        return diff;
+    }
+
+    /**
+     * Runs {@link #reload()} on the background reload thread.
+     */
+    public CompletableFuture<PolicyDiff> reloadAsync() {
+        return watcher.submit(this::reload);
+    }
+
+    /**
+     * Schedules the expiries of the published policy and applies those that already passed, e.g. while the proxy was
+     * down or in a file edited by hand.
+     */
+    private void trackExpiries() {
+        expiry.track(policy.current().expiries());
+        expiry.expireDue();
+    }
+
+    private void reloadIfChanged() {
+        if (files.changedOnDisk()) {
+            reload();
+        }
+    }
+
+    private void refreshDerivedFiles(PolicySnapshot loaded) {
+        if (journal.size() > 0) {
+            persister.compactLater();
+        } else if (files.loadedFromText()) {
+            persister.saveBinarySnapshotLater(loaded);
+        }
+    }
+
+    static String describe(PolicyDiff diff) {
+        String described = "+" + diff.namesGranted() + "/-" + diff.namesRevoked() + " offline players by name, ";
+        if (diff.patternsGranted() != 0 || diff.patternsRevoked() != 0) {
+            described += "+" + diff.patternsGranted() + "/-" + diff.patternsRevoked() + " patterns, ";
+        }
+        return described + diff.groupsChanged() + " groups changed";
+    }
+
+    /**
+     * Flushes pending group changes and stops background work. Call on proxy shutdown / plugin disable.
+     */
+    public void shutdown() {
+        awaitLoad();
+        scheduler.shutdownNow();
+        suggestions.shutdownNow();
+        watcher.close();
+        replication.close();
+        persister.close();
+        if (lookups != null) {
+            lookups.shutdownNow();
+        }
+        allowlist.close();
+        if (exporter != null) {
+            exporter.write();
+        }
+        audit.close();
+    }
+
+    /**
+     * Lets a background load finish before the services it starts are stopped.
+     */
+    private void awaitLoad() {
+        if (!loadStarted) {
+            return;
+        }
+        try {
+            ready.get(SHUTDOWN_LOAD_WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            // nothing was left running
+        } catch (TimeoutException e) {
+            logger.warn("Shutting down while the policy is still loading");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isUserAllowed(String username) {
+        return grant(username) != null;
+    }
+
+    /**
+     * Checks a server connection of a player who logged in offline, see
+     * {@link PolicySnapshot#allowsServer(String, String)}; {@code false} once the grant is gone. Names on a database
+     * allow list may join every server; they are looked up on the calling thread if not cached.
+     */
+    public boolean allowsServer(String username, String serverName) {
+        if (policy.current().allowsServer(username, serverName)) {
+            return true;
+        }
+        LookupCache cache = allowlistCache;
+        if (cache == null) {
+            return false;
+        }
+        try {
+            return cache.contains(Names.normalizeUsername(username));
+        } catch (IOException e) {
+            logger.error("Failed to look up " + username + " in " + allowlist.describe(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Like {@link #allowsServer(String, String)}, but a database lookup runs on the lookup thread.
+     */
+    public CompletableFuture<Boolean> allowsServerAsync(String username, String serverName) {
+        if (policy.current().allowsServer(username, serverName)) {
+            return CompletableFuture.completedFuture(true);
+        }
+        LookupCache cache = allowlistCache;
+        if (cache == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return cache.containsAsync(Names.normalizeUsername(username)).handle((listed, error) -> {
+            if (error != null) {
+                logger.error("Failed to look up " + username + " in " + allowlist.describe(), error);
+                return false;
+            }
+            return listed;
+        });
+    }
+
+    /**
+     * Sets the backend servers registered with the proxy, so server scopes can index them when compiled. The plugins
+     * call this once before {@link #load()}; servers registered later are matched against the scopes by name instead
+     * and are not offered when completing {@code group servers}.
+     */
+    public synchronized void setKnownServers(Collection<String> serverNames) {
+        knownServers = Set.copyOf(serverNames);
+        policy.update(snapshot -> snapshot.withKnownServers(serverNames));
+    }
+
+    /**
+     * @return why {@code username} may log in offline, or {@code null} if it may not or the policy is not ready
+     */
+    public Grant grant(String username) {
+        if (!isReady()) {
+            return null;
+        }
+        Grant grant = policy.current().grant(username);
+        LookupCache cache = allowlistCache;
+        if (grant != null || cache == null) {
+            return grant;
+        }
+        String name = Names.normalizeUsername(username);
+        try {
+            return cache.contains(name) ? new Grant(name, Grant.Profile.ALLOW_LIST_ONLY) : null;
+        } catch (IOException e) {
+            logger.error("Failed to look up " + username + " in " + allowlist.describe(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Like {@link #grant(String)}, but a database lookup runs on the lookup thread. The future is already complete if
+     * the answer came from the policy or the cache.
+     */
+    public CompletableFuture<Grant> grantAsync(String username) {
+        if (!isReady()) {
+            return untilReady(() -> grantAsync(username), null);
+        }
+        Grant grant = policy.current().grant(username);
+        LookupCache cache = allowlistCache;
+        if (grant != null || cache == null) {
+            return CompletableFuture.completedFuture(grant);
+        }
+        String name = Names.normalizeUsername(username);
+        return cache.containsAsync(name).handle((listed, error) -> {
+            if (error != null) {
+                logger.error("Failed to look up " + username + " in " + allowlist.describe(), error);
+                return null;
+            }
+            return listed ? new Grant(name, Grant.Profile.ALLOW_LIST_ONLY) : null;
+        });
+    }
+
+    /**
+     * Like {@link #grantAsync(String)} for a client connecting from {@code address}. Offline logins are limited per
+     * address: once an address is over the limit, its logins are neither looked up nor logged and get no grant, so
+     * they go through online-mode authentication like any other.
+     */
+    public CompletableFuture<Grant> grantAsync(String username, InetAddress address) {
+        if (!isReady()) {
+            return untilReady(() -> grantAsync(username, address), null);
+        }
+        LoginThrottle limit = throttle;
+        if (limit == null || address == null) {
+            return grantAsync(username);
+        }
+        if (limit.exhausted(address)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return grantAsync(username).thenApply(grant -> grant == null || limit.tryAcquire(address) ? grant : null);
+    }
+
+    /**
+     * @return the offline login limit per address, or {@code null} if it is disabled
+     */
+    LoginThrottle throttle() {
+        return throttle;
+    }
+
+    /**
+     * Adds names to the allow list on the background reload thread.
+     *
+     * @return how many were new
+     */
+    CompletableFuture<Integer> allow(Collection<String> names) {
+        return changeAllowlist(names, true);
+    }
+
+    /**
+     * Removes names from the allow list on the background reload thread.
+     *
+     * @return how many were listed
+     */
+    CompletableFuture<Integer> disallow(Collection<String> names) {
+        return changeAllowlist(names, false);
+    }
+
+    private CompletableFuture<Integer> changeAllowlist(Collection<String> names, boolean listed) {
+        return watcher.submit(() -> {
+            try {
+                int changed = listed ? allowlist.add(names) : allowlist.remove(names);
+                LookupCache cache = allowlistCache;
+                if (cache != null) {
+                    cache.update(names, listed);
+                }
+                return changed;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    AllowlistProvider allowlist() {
+        return allowlist;
+    }
+
+    /**
+     * @return the cache in front of a database allow list, or {@code null} if the allow list is in memory
+     */
+    LookupCache allowlistCache() {
+        return allowlistCache;
+    }
+
+    public AuditLog audit() {
+        return audit;
+    }
+
+    public LoginMetrics metrics() {
+        return metrics;
+    }
+
+    public PluginSettings settings() {
+        return settings;
+    }
+
+    PolicyPersister persister() {
+        return persister;
+    }
+
+    ExpiryScheduler expiry() {
+        return expiry;
+    }
+
+    Replicator replication() {
+        return replication;
+    }
+
+    Set<String> knownServers() {
+        return knownServers;
+    }
+
+    ExecutorService suggestions() {
+        return suggestions;
+    }
+
+    public PolicyStore policy() {
+        return policy;
+    }
+
+    public PolicyLogger logger() {
+        return logger;
+    }
+
+    public GroupCommandHandler commands() {
+        return commands;
+    }
+
+    public void addMembers(String groupName, Collection<String> members) {
+        addMembers(groupName, members, 0);
+    }
+
+    /**
+     * @param expiresAt when the members are removed again in epoch milliseconds, {@code 0} to add them permanently
+     */
+    public void addMembers(String groupName, Collection<String> members, long expiresAt) {
+        apply(new PolicyMutation.AddMembers(groupName, Set.copyOf(members), expiresAt));
+    }
+
+    public void removeMembers(String groupName, Collection<String> members) {
+        apply(new PolicyMutation.RemoveMembers(groupName, Set.copyOf(members)));
+    }
+
+    public void deleteGroup(String groupName) {
+        apply(new PolicyMutation.DeleteGroup(groupName));
+    }
+
+    /**
+     * Imports a names file from the data directory into the group on the background reload thread.
+     */
+    CompletableFuture<GroupTransfer.ImportResult> importMembers(String groupName, String fileName, Consumer<String> progress) {
+        return watcher.submit(() -> {
+            try {
+                return transfer.importMembers(groupName, fileName, progress);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Exports the group's members to a file in the data directory on the background reload thread.
+     */
+    CompletableFuture<Integer> exportGroup(String groupName, String fileName) {
+        return watcher.submit(() -> {
+            try {
+                return transfer.export(groupName, fileName);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * @return whether the group is enabled afterwards
+     */
+    public boolean setGroupEnabled(String groupName, boolean enabled) {
+        return setGroupEnabled(groupName, enabled, 0);
+    }
+
+    /**
+     * @param expiresAt when an enabled group is disabled again in epoch milliseconds, {@code 0} for never
+     * @return whether the group is enabled afterwards
+     */
+    public boolean setGroupEnabled(String groupName, boolean enabled, long expiresAt) {
+        return apply(new PolicyMutation.SetEnabled(groupName, enabled, expiresAt)).isGroupEnabled(groupName);
+    }
+
+    /**
+     * @param servers normalized server names and patterns to limit the group to, empty for every server
+     */
+    public void setGroupServers(String groupName, List<String> servers) {
+        apply(new PolicyMutation.SetServers(groupName, servers));
+    }
+
+    /**
+     * @return whether the group is enabled afterwards
+     */
+    public synchronized boolean toggleGroup(String groupName) {
+        return setGroupEnabled(groupName, !policy.current().isGroupEnabled(groupName));
+    }
+
+    /**
+     * Publishes the mutation and hands it to the journal and the other proxies. Serialized so the journal and
+     * replication order match the apply order.
+     */
+    public synchronized PolicySnapshot apply(PolicyMutation mutation) {
+        PolicySnapshot snapshot = applyReplicated(mutation);
+        replication.record(mutation);
+        return snapshot;
+    }
+
+    /**
+     * Like {@link #apply(PolicyMutation)} for a mutation received from another proxy, which is not sent on again.
+     */
+    synchronized PolicySnapshot applyReplicated(PolicyMutation mutation) {
+        PolicySnapshot previous = policy.current();
+        PolicySnapshot snapshot = policy.update(mutation::applyTo);
+        warnSkippedPatterns(previous, snapshot);
+        persister.record(mutation);
+        expiry.track(mutation);
+        return snapshot;
+    }
+
+    /**
+     * Publishes groups caught up from another proxy's snapshot in place of the current ones.
+     */
+    synchronized void installReplicated(PolicySnapshot snapshot) {
+        warnSkippedPatterns(policy.current(), snapshot);
+        persister.replace(snapshot);
+        trackExpiries();
+    }
+
+    private void warnSkippedPatterns(PolicySnapshot previous, PolicySnapshot next) {
+        List<PatternMatcher.Skipped> skipped = next.skippedPatterns();
+        if (skipped.equals(previous.skippedPatterns())) {
+            return;
+        }
+        for (PatternMatcher.Skipped entry : skipped) {
+            logger.warn("Skipping pattern '" + entry.pattern() + "' in group " + entry.groupName() + ": "
+                    + PatternMatcher.TOO_MANY_STATES);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process instrumentation of the login path and the policy I/O. Everything is recorded with lock-free counters
+ * and {@link LatencyHistogram}s, so login threads never contend on a lock for it.
+ */
+public final class LoginMetrics {
+
+    private final LatencyHistogram preLogin = new LatencyHistogram();
+    private final LatencyHistogram gameProfileRequest = new LatencyHistogram();
+    private final LatencyHistogram postLogin = new LatencyHistogram();
+    private final LatencyHistogram serverConnect = new LatencyHistogram();
+    private final LatencyHistogram reload = new LatencyHistogram();
+    private final LatencyHistogram save = new LatencyHistogram();
+    private final LongAdder offlineGranted = new LongAdder();
+    private final LongAdder passthrough = new LongAdder();
+    private final LongAdder allowListHits = new LongAdder();
+    private final LongAdder serversDenied = new LongAdder();
+    private final Map<String, LongAdder> groupHits = new ConcurrentHashMap<>();
+    private final AtomicLong reportedOfflineGranted = new AtomicLong();
+
+    /**
+     * @param grant the decision, {@code null} if the login was passed through to online mode
+     */
+    public void recordPreLogin(long nanos, Grant grant) {
+        preLogin.record(nanos);
+        if (grant == null) {
+            passthrough.increment();
+            return;
+        }
+        offlineGranted.increment();
+        if (grant.allowListed()) {
+            allowListHits.increment();
+        }
+        for (String group : grant.groups()) {
+            groupHits.computeIfAbsent(group, key -> new LongAdder()).increment();
+        }
+    }
+
+    public void recordGameProfileRequest(long nanos) {
+        gameProfileRequest.record(nanos);
+    }
+
+    public void recordPostLogin(long nanos) {
+        postLogin.record(nanos);
+    }
+
+    /**
+     * @param allowed whether the player was let through to the backend server
+     */
+    public void recordServerConnect(long nanos, boolean allowed) {
+        serverConnect.record(nanos);
+        if (!allowed) {
+            serversDenied.increment();
+        }
+    }
+
+    void recordReload(long nanos) {
+        reload.record(nanos);
+    }
+
+    void recordSave(long nanos) {
+        save.record(nanos);
+    }
+
+    public LatencyHistogram preLogin() {
+        return preLogin;
+    }
+
+    public LatencyHistogram gameProfileRequest() {
+        return gameProfileRequest;
+    }
+
+    public LatencyHistogram postLogin() {
+        return postLogin;
+    }
+
+    public LatencyHistogram serverConnect() {
+        return serverConnect;
+    }
+
+    public LatencyHistogram reload() {
+        return reload;
+    }
+
+    public LatencyHistogram save() {
+        return save;
+    }
+
+    public long offlineGranted() {
+        return offlineGranted.sum();
+    }
+
+    public long passthrough() {
+        return passthrough.sum();
+    }
+
+    public long allowListHits() {
+        return allowListHits.sum();
+    }
+
+    /**
+     * @return server connections refused because the player's groups are limited to other servers
+     */
+    public long serversDenied() {
+        return serversDenied.sum();
+    }
+
+    /**
+     * @return offline logins per granting group since startup
+     */
+    public Map<String, Long> groupHits() {
+        Map<String, Long> hits = new HashMap<>();
+        groupHits.forEach((group, adder) -> hits.put(group, adder.sum()));
+        return hits;
+    }
+
+    /**
+     * @return offline logins since the previous call, for periodic reporters such as bStats
+     */
+    public int offlineGrantedSinceLastReport() {
+        long total = offlineGranted.sum();
+        long delta = total - reportedOfflineGranted.getAndSet(total);
+        return (int) Math.min(Math.max(delta, 0), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Coarse size class for anonymous reporting, e.g. {@code "11-100"}.
+     */
+    public static String sizeBucket(int size) {
+        if (size == 0) {
+            return "0";
+        }
+        int upper = 10;
+        int lower = 1;
+        while (size > upper && upper < 1_000_000) {
+            lower = upper + 1;
+            upper *= 10;
+        }
+        return size > upper ? ">" + upper : lower + "-" + upper;
+    }
+}
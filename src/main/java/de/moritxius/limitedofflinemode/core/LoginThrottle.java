@@ -0,0 +1,159 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token bucket per client address that limits offline logins; IPv6 clients are limited per /64. A bucket that has
+ * been idle long enough to be full again is the same as a new one, so {@link #sweep()} drops those.
+ */
+final class LoginThrottle {
+
+    private static final int STRIPE_BITS = 6;
+    private static final int STRIPES = 1 << STRIPE_BITS;
+    private static final int TOKEN = 1000;
+    private static final int TOKEN_BITS = 24;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    private static final int EVICTION_SAMPLES = 8;
+
+    private final long capacity;
+    private final long perMinute;
+    private final long refillMillis;
+    private final int maxPerStripe;
+    private final long origin = System.nanoTime();
+    private final List<Map<Long, AtomicLong>> stripes = new ArrayList<>(STRIPES);
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    /**
+     * @param perMinute    offline logins per minute an address regains
+     * @param burst        offline logins an address may make at once
+     * @param maxAddresses addresses tracked at most
+     */
+    LoginThrottle(long perMinute, int burst, int maxAddresses) {
+        this.perMinute = Math.max(1, perMinute);
+        this.capacity = (long) Math.max(1, Math.min(10_000, burst)) * TOKEN;
+        this.refillMillis = (capacity * 60 + this.perMinute - 1) / this.perMinute;
+        this.maxPerStripe = Math.max(1, maxAddresses / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes.add(new ConcurrentHashMap<>());
+        }
+    }
+
+    /**
+     * @return whether the address has no offline login left; such a login is dropped before it is looked up
+     */
+    boolean exhausted(InetAddress address) {
+        long key = key(address);
+        AtomicLong bucket = stripe(key).get(key);
+        if (bucket == null || tokens(bucket.get(), now()) >= TOKEN) {
+            return false;
+        }
+        throttled.increment();
+        return true;
+    }
+
+    /**
+     * Takes one offline login from the address's bucket.
+     *
+     * @return {@code false} if there was none left
+     */
+    boolean tryAcquire(InetAddress address) {
+        long key = key(address);
+        long now = now();
+        Map<Long, AtomicLong> stripe = stripe(key);
+        AtomicLong bucket = stripe.get(key);
+        if (bucket == null) {
+            if (stripe.size() >= maxPerStripe) {
+                evictStalest(stripe);
+            }
+            bucket = stripe.computeIfAbsent(key, ignored -> new AtomicLong(now << TOKEN_BITS | capacity));
+        }
+        while (true) {
+            long state = bucket.get();
+            long tokens = tokens(state, now);
+            if (tokens < TOKEN) {
+                throttled.increment();
+                return false;
+            }
+            if (bucket.compareAndSet(state, now << TOKEN_BITS | (tokens - TOKEN))) {
+                return true;
+            }
+        }
+    }
+
+    private long tokens(long state, long now) {
+        long elapsed = Math.min(refillMillis, Math.max(0, now - (state >>> TOKEN_BITS)));
+        return Math.min(capacity, (state & TOKEN_MASK) + elapsed * perMinute * TOKEN / 60_000);
+    }
+
+    private void evictStalest(Map<Long, AtomicLong> stripe) {
+        Iterator<Map.Entry<Long, AtomicLong>> entries = stripe.entrySet().iterator();
+        Map.Entry<Long, AtomicLong> stalest = null;
+        for (int i = 0; i < EVICTION_SAMPLES && entries.hasNext(); i++) {
+            Map.Entry<Long, AtomicLong> entry = entries.next();
+            if (stalest == null || entry.getValue().get() >>> TOKEN_BITS < stalest.getValue().get() >>> TOKEN_BITS) {
+                stalest = entry;
+            }
+        }
+        if (stalest != null && stripe.remove(stalest.getKey(), stalest.getValue())) {
+            evicted.increment();
+        }
+    }
+
+    /**
+     * Drops buckets that have refilled completely.
+     */
+    void sweep() {
+        long now = now();
+        for (Map<Long, AtomicLong> stripe : stripes) {
+            stripe.values().removeIf(bucket -> now - (bucket.get() >>> TOKEN_BITS) >= refillMillis);
+        }
+    }
+
+    private Map<Long, AtomicLong> stripe(long key) {
+        return stripes.get((int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - STRIPE_BITS)));
+    }
+
+    /**
+     * @return the IPv4 address, tagged so it cannot collide with an IPv6 prefix, or the /64 prefix of an IPv6 address
+     */
+    static long key(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        long key = 0;
+        for (int i = 0; i < Math.min(bytes.length, 8); i++) {
+            key = key << 8 | (bytes[i] & 0xFF);
+        }
+        return bytes.length == 4 ? key | 1L << 32 : key;
+    }
+
+    private long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - origin);
+    }
+
+    /**
+     * @return offline logins dropped since startup
+     */
+    long throttled() {
+        return throttled.sum();
+    }
+
+    long evicted() {
+        return evicted.sum();
+    }
+
+    int trackedAddresses() {
+        int tracked = 0;
+        for (Map<Long, AtomicLong> stripe : stripes) {
+            tracked += stripe.size();
+        }
+        return tracked;
+    }
+}
@@ -0,0 +1,221 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache in front of an {@link AllowlistProvider} that reads from disk, with separate lifetimes for listed and
+ * unlisted names. Concurrent lookups of a name share one query. If the lookup queue is full, a lookup answers "not
+ * listed" so the login authenticates online.
+ * <p>
+ * Changes made through the cache update it directly; a lookup that was already running when a name changed does not
+ * overwrite the new answer.
+ */
+final class LookupCache {
+
+    private static final int STRIPE_BITS = 4;
+    private static final int STRIPES = 1 << STRIPE_BITS;
+
+    private final AllowlistProvider provider;
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final Executor executor;
+    private final List<Stripe> stripes = new ArrayList<>(STRIPES);
+    private final Map<String, CompletableFuture<Boolean>> loading = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param executor runs {@link #containsAsync} lookups; it should reject work rather than queue without bound
+     */
+    LookupCache(AllowlistProvider provider, int maxEntries, long ttlMillis, long negativeTtlMillis, Executor executor) {
+        this.provider = provider;
+        this.maxEntries = maxEntries;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+        this.executor = executor;
+        int maxPerStripe = Math.max(1, maxEntries / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes.add(new Stripe(maxPerStripe));
+        }
+    }
+
+    private record Entry(boolean listed, long expiresAt) {
+    }
+
+    /**
+     * An access-ordered map guarded by the stripe itself. The generation counts updates made through the cache.
+     */
+    private static final class Stripe {
+
+        private final Map<String, Entry> entries;
+        private long generation;
+
+        Stripe(int maxEntries) {
+            this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > maxEntries;
+                }
+            };
+        }
+    }
+
+    private Stripe stripe(String name) {
+        return stripes.get((name.hashCode() * 0x9E3779B9) >>> (32 - STRIPE_BITS));
+    }
+
+    /**
+     * @return the cached answer, or {@code null} if the name has to be looked up
+     */
+    Boolean cached(String name) {
+        long now = System.nanoTime();
+        Stripe stripe = stripe(name);
+        synchronized (stripe) {
+            Entry entry = stripe.entries.get(name);
+            if (entry != null && entry.expiresAt() - now > 0) {
+                hits.increment();
+                return entry.listed();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Looks the name up on the calling thread if it is not cached.
+     */
+    boolean contains(String name) throws IOException {
+        Boolean cached = cached(name);
+        if (cached != null) {
+            return cached;
+        }
+        try {
+            return load(name).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException io) {
+                throw io.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return the cached answer as a completed future, or the lookup running on the lookup executor; {@code false}
+     * without a lookup if the executor rejects it
+     */
+    CompletableFuture<Boolean> containsAsync(String name) {
+        Boolean cached = cached(name);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        CompletableFuture<Boolean> lookup = loading.get(name);
+        if (lookup != null) {
+            return lookup;
+        }
+        CompletableFuture<Boolean> created = new CompletableFuture<>();
+        lookup = loading.putIfAbsent(name, created);
+        if (lookup != null) {
+            return lookup;
+        }
+        try {
+            executor.execute(() -> query(name, created));
+        } catch (RejectedExecutionException e) {
+            // not cached, so the next login of the name looks it up again
+            rejected.increment();
+            loading.remove(name, created);
+            created.complete(false);
+        }
+        return created;
+    }
+
+    private CompletableFuture<Boolean> load(String name) {
+        CompletableFuture<Boolean> created = new CompletableFuture<>();
+        CompletableFuture<Boolean> running = loading.putIfAbsent(name, created);
+        if (running != null) {
+            return running;
+        }
+        query(name, created);
+        return created;
+    }
+
+    private void query(String name, CompletableFuture<Boolean> result) {
+        misses.increment();
+        Stripe stripe = stripe(name);
+        long queried;
+        synchronized (stripe) {
+            queried = stripe.generation;
+        }
+        try {
+            boolean listed = provider.contains(name);
+            synchronized (stripe) {
+                if (stripe.generation == queried) {
+                    stripe.entries.put(name, new Entry(listed, System.nanoTime() + (listed ? ttlNanos : negativeTtlNanos)));
+                }
+            }
+            result.complete(listed);
+        } catch (IOException e) {
+            result.completeExceptionally(new UncheckedIOException(e));
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        } finally {
+            loading.remove(name, result);
+        }
+    }
+
+    /**
+     * Records that the names were added to or removed from the list.
+     */
+    void update(Collection<String> names, boolean listed) {
+        long expiresAt = System.nanoTime() + (listed ? ttlNanos : negativeTtlNanos);
+        for (String name : names) {
+            Stripe stripe = stripe(name);
+            synchronized (stripe) {
+                stripe.generation++;
+                stripe.entries.put(name, new Entry(listed, expiresAt));
+            }
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.entries.size();
+            }
+        }
+        return size;
+    }
+
+    int maxEntries() {
+        return maxEntries;
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return lookups answered "not listed" because the lookup executor was full
+     */
+    long rejected() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,131 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Append-only log of {@link PolicyMutation}s applied since {@code player-groups.txt} was last written. A mutation
+ * costs one appended line instead of a full rewrite; the persister compacts the journal back into the groups file
+ * once it grows past a threshold.
+ * <p>
+ * Each line starts with the signature the mutation's group had in the groups file at the time. If the group no longer
+ * has that signature on replay, the file was edited by hand since and the edit wins over the journaled change.
+ */
+final class MutationJournal {
+
+    static final String JOURNAL_FILE = "player-groups.journal";
+
+    private static final Pattern SIGNED_LINE = Pattern.compile("([0-9a-f]{16}) (.*)");
+
+    private final Path path;
+    private final PolicyFiles files;
+    private final PolicyLogger logger;
+
+    MutationJournal(Path dataDirectory, PolicyFiles files, PolicyLogger logger) {
+        this.path = dataDirectory.resolve(JOURNAL_FILE);
+        this.files = files;
+        this.logger = logger;
+    }
+
+    /**
+     * Appends the mutations in order and forces them to disk.
+     *
+     * @return journal size in bytes afterwards
+     */
+    long append(List<PolicyMutation> mutations) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (PolicyMutation mutation : mutations) {
+            lines.append(String.format("%016x ", files.groupSignature(mutation.groupName())))
+                    .append(mutation.encode()).append('\n');
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+            return channel.size();
+        }
+    }
+
+    /**
+     * Applies the journaled mutations to {@code base} in the order they were recorded, skipping those whose group was
+     * edited by hand since. {@code base} must be what {@link PolicyFiles#load()} just returned.
+     */
+    PolicySnapshot replay(PolicySnapshot base) {
+        if (!Files.exists(path)) {
+            return base;
+        }
+        PolicySnapshot snapshot = base;
+        int replayed = 0;
+        Set<String> editedGroups = new TreeSet<>();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                String encoded = line.trim();
+                Matcher signed = SIGNED_LINE.matcher(encoded);
+                long signature = 0;
+                boolean hasSignature = signed.matches();
+                if (hasSignature) {
+                    signature = Long.parseUnsignedLong(signed.group(1), 16);
+                    encoded = signed.group(2);
+                }
+                PolicyMutation mutation = PolicyMutation.decode(encoded);
+                if (mutation == null) {
+                    logger.warn("Skipping invalid journal line: " + line);
+                    continue;
+                }
+                // lines written before signatures were recorded replay unconditionally
+                if (hasSignature && signature != files.groupSignature(mutation.groupName())) {
+                    editedGroups.add(mutation.groupName());
+                    continue;
+                }
+                snapshot = mutation.applyTo(snapshot);
+                replayed++;
+            }
+        } catch (IOException e) {
+            logger.error("Failed to replay " + JOURNAL_FILE, e);
+        }
+        if (!editedGroups.isEmpty()) {
+            logger.warn("Dropped journaled changes to player groups edited by hand since: "
+                    + String.join(", ", editedGroups));
+        }
+        if (replayed > 0) {
+            logger.info("Replayed " + replayed + " journaled group changes");
+        }
+        return snapshot;
+    }
+
+    long size() {
+        try {
+            return Files.exists(path) ? Files.size(path) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Empties the journal once its contents are part of {@code player-groups.txt}.
+     */
+    void truncate() throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.truncate(0);
+            channel.force(true);
+        }
+    }
+}
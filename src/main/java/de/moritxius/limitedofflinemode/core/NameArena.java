@@ -0,0 +1,350 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Immutable store of normalized usernames, each kept once as UTF-8 and addressed by a dense int ID. Lookups accept
+ * the raw name a client sent and only allocate for names with non-ASCII characters.
+ */
+final class NameArena {
+
+    static final NameArena EMPTY = new Builder().build();
+
+    static final int MISSING = -1;
+    private static final int EMPTY_SLOT = 0;
+
+    private final byte[] bytes;
+    private final int[] offsets;
+    private final int count;
+    private final int[] slotIds;
+    private final int[] slotHashes;
+    private final int mask;
+
+    private NameArena(byte[] bytes, int[] offsets, int count, int[] slotIds, int[] slotHashes) {
+        this.bytes = bytes;
+        this.offsets = offsets;
+        this.count = count;
+        this.slotIds = slotIds;
+        this.slotHashes = slotHashes;
+        this.mask = slotIds.length - 1;
+    }
+
+    int size() {
+        return count;
+    }
+
+    String name(int id) {
+        return new String(bytes, offsets[id], offsets[id + 1] - offsets[id], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param username raw or normalized username, may be {@code null}
+     * @return the ID of the normalized form of {@code username}, or {@link #MISSING}
+     */
+    int find(String username) {
+        if (username == null) {
+            return MISSING;
+        }
+        int start = 0;
+        int end = username.length();
+        while (start < end && username.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && username.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        int hash = hash(username, start, end);
+        if (hash == EMPTY_SLOT) {
+            // non-ASCII, fold with the full Locale.ROOT rules
+            String normalized = Names.normalizeUsername(username);
+            return probe(normalized, 0, normalized.length(), hash(normalized, 0, normalized.length()));
+        }
+        return probe(username, start, end, hash);
+    }
+
+    private int probe(String username, int start, int end, int hash) {
+        int slot = hash & mask;
+        int stored;
+        while ((stored = slotHashes[slot]) != EMPTY_SLOT) {
+            if (stored == hash && matches(slotIds[slot], username, start, end)) {
+                return slotIds[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return MISSING;
+    }
+
+    private boolean matches(int id, String username, int start, int end) {
+        int position = offsets[id];
+        int limit = offsets[id + 1];
+        for (int i = start; i < end; i++) {
+            char c = fold(username.charAt(i));
+            if (c >= 0x80) {
+                return name(id).equals(username.substring(start, end));
+            }
+            if (position == limit || bytes[position++] != c) {
+                return false;
+            }
+        }
+        return position == limit;
+    }
+
+    /**
+     * @return whether the entry is a pattern, see {@link PatternMatcher#isPattern(String)}
+     */
+    boolean isPattern(int id) {
+        for (int position = offsets[id]; position < offsets[id + 1]; position++) {
+            byte b = bytes[position];
+            if (b == '*' || b == '?' || b == '[') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Orders two names by their UTF-8 bytes, which is also their code point order.
+     */
+    int compare(int a, int b) {
+        int i = offsets[a];
+        int j = offsets[b];
+        int aEnd = offsets[a + 1];
+        int bEnd = offsets[b + 1];
+        while (i < aEnd && j < bEnd) {
+            int difference = (bytes[i++] & 0xFF) - (bytes[j++] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return (aEnd - i) - (bEnd - j);
+    }
+
+    /**
+     * @param prefix UTF-8 bytes of a normalized prefix
+     * @return zero if the name starts with {@code prefix}, otherwise which side of all such names it sorts on
+     */
+    int comparePrefix(int id, byte[] prefix) {
+        int position = offsets[id];
+        int limit = offsets[id + 1];
+        for (byte b : prefix) {
+            if (position == limit) {
+                return -1;
+            }
+            int difference = (bytes[position++] & 0xFF) - (b & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Hash of the ASCII-folded {@code name[start, end)}; {@link #EMPTY_SLOT} if {@code name} contains non-ASCII
+     * characters and is not already lower case, so it needs full normalization. Normalized names always get a real
+     * hash.
+     */
+    static int hash(String name, int start, int end) {
+        int hash = 0;
+        boolean ascii = true;
+        for (int i = start; i < end; i++) {
+            char c = name.charAt(i);
+            ascii &= c < 0x80;
+            hash = 31 * hash + fold(c);
+        }
+        if (!ascii && !isLowerCase(name, start, end)) {
+            return EMPTY_SLOT;
+        }
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        return hash == EMPTY_SLOT ? 1 : hash;
+    }
+
+    private static boolean isLowerCase(String name, int start, int end) {
+        String region = name.substring(start, end);
+        return region.equals(region.toLowerCase(Locale.ROOT));
+    }
+
+    private static char fold(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * @return a builder holding the same names under the same IDs, for appending more
+     */
+    Builder toBuilder() {
+        int[] hashes = new int[Math.max(16, count)];
+        for (int slot = 0; slot < slotIds.length; slot++) {
+            if (slotHashes[slot] != EMPTY_SLOT) {
+                hashes[slotIds[slot]] = slotHashes[slot];
+            }
+        }
+        return new Builder(bytes, offsets, hashes, count);
+    }
+
+    /**
+     * Writes the names and their lookup table as {@link #read(ByteBuffer)} expects them.
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(count);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        BinarySnapshot.writeInts(out, offsets);
+        out.writeInt(slotIds.length);
+        BinarySnapshot.writeInts(out, slotIds);
+        BinarySnapshot.writeInts(out, slotHashes);
+    }
+
+    /**
+     * Reads an arena written by {@link #write(DataOutputStream)} without re-encoding or re-hashing its names.
+     */
+    static NameArena read(ByteBuffer buffer) {
+        int count = BinarySnapshot.readCount(buffer);
+        byte[] bytes = new byte[BinarySnapshot.readCount(buffer)];
+        buffer.get(bytes);
+        int[] offsets = BinarySnapshot.readInts(buffer, count + 1);
+        int capacity = BinarySnapshot.readCount(buffer);
+        if (Integer.bitCount(capacity) != 1 || capacity <= count || offsets[0] != 0 || offsets[count] != bytes.length) {
+            throw new IllegalArgumentException("Inconsistent name arena");
+        }
+        return new NameArena(bytes, offsets, count, BinarySnapshot.readInts(buffer, capacity),
+                BinarySnapshot.readInts(buffer, capacity));
+    }
+
+    long arenaBytes() {
+        return bytes.length + (long) offsets.length * Integer.BYTES;
+    }
+
+    long indexBytes() {
+        return (long) slotIds.length * 2 * Integer.BYTES;
+    }
+
+    /**
+     * Collects distinct normalized names and assigns IDs in insertion order.
+     */
+    static final class Builder {
+        private byte[] bytes;
+        private int[] offsets;
+        private int[] hashes;
+        private int count;
+        private int length;
+        private int[] table;
+
+        Builder() {
+            this(16);
+        }
+
+        Builder(int expected) {
+            bytes = new byte[Math.max(64, expected * 12)];
+            offsets = new int[Math.max(16, expected) + 1];
+            hashes = new int[Math.max(16, expected)];
+            table = new int[tableCapacity(Math.max(16, expected))];
+        }
+
+        private Builder(byte[] bytes, int[] offsets, int[] hashes, int count) {
+            this.bytes = Arrays.copyOf(bytes, Math.max(64, bytes.length + bytes.length / 4));
+            this.offsets = Arrays.copyOf(offsets, hashes.length + 1);
+            this.hashes = hashes;
+            this.count = count;
+            this.length = offsets[count];
+            this.table = new int[tableCapacity(hashes.length)];
+            rehash(table.length);
+        }
+
+        /**
+         * @param normalized a name as returned by {@link Names#normalizeUsername(String)}
+         * @return its ID, new or existing
+         */
+        int add(String normalized) {
+            int hash = hash(normalized, 0, normalized.length());
+            int tableMask = table.length - 1;
+            int slot = hash & tableMask;
+            int stored;
+            while ((stored = table[slot]) != 0) {
+                int id = stored - 1;
+                if (hashes[id] == hash && nameEquals(id, normalized)) {
+                    return id;
+                }
+                slot = (slot + 1) & tableMask;
+            }
+
+            byte[] encoded = normalized.getBytes(StandardCharsets.UTF_8);
+            if (length + encoded.length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + encoded.length));
+            }
+            if (count == hashes.length) {
+                hashes = Arrays.copyOf(hashes, hashes.length * 2);
+                offsets = Arrays.copyOf(offsets, hashes.length + 1);
+            }
+            System.arraycopy(encoded, 0, bytes, length, encoded.length);
+            offsets[count] = length;
+            length += encoded.length;
+            offsets[count + 1] = length;
+            hashes[count] = hash;
+            table[slot] = count + 1;
+            int id = count++;
+            if (tableCapacity(count) > table.length) {
+                rehash(table.length * 2);
+            }
+            return id;
+        }
+
+        private boolean nameEquals(int id, String normalized) {
+            int position = offsets[id];
+            int limit = offsets[id + 1];
+            for (int i = 0; i < normalized.length(); i++) {
+                char c = normalized.charAt(i);
+                if (c >= 0x80) {
+                    return new String(bytes, offsets[id], limit - offsets[id], StandardCharsets.UTF_8).equals(normalized);
+                }
+                if (position == limit || bytes[position++] != c) {
+                    return false;
+                }
+            }
+            return position == limit;
+        }
+
+        private void rehash(int capacity) {
+            table = new int[capacity];
+            int tableMask = table.length - 1;
+            for (int id = 0; id < count; id++) {
+                int slot = hashes[id] & tableMask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & tableMask;
+                }
+                table[slot] = id + 1;
+            }
+        }
+
+        int size() {
+            return count;
+        }
+
+        NameArena build() {
+            int capacity = tableCapacity(count);
+            int[] slotIds = new int[capacity];
+            int[] slotHashes = new int[capacity];
+            for (int id = 0; id < count; id++) {
+                int slot = hashes[id] & (capacity - 1);
+                while (slotHashes[slot] != EMPTY_SLOT) {
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                slotIds[slot] = id;
+                slotHashes[slot] = hashes[id];
+            }
+            return new NameArena(Arrays.copyOf(bytes, length), Arrays.copyOf(offsets, count + 1), count, slotIds, slotHashes);
+        }
+
+        /**
+         * At most half full, so misses stay short.
+         */
+        private static int tableCapacity(int entries) {
+            return Integer.highestOneBit(Math.max(2, entries * 2 - 1)) << 1;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Prefix index over the names of a {@link PolicySnapshot}, used for {@code list} paging and tab completion. The names
+ * are sorted once; a group's sorted ranks are built on first use.
+ */
+final class NameIndex {
+
+    private final NameArena names;
+    private final int[] sorted;
+    private final int[] ranks;
+    private final Map<String, int[]> groupRanks = new ConcurrentHashMap<>();
+
+    /**
+     * @param referenced which arena IDs to index; names that are no longer in any list are left out
+     */
+    NameIndex(NameArena names, boolean[] referenced) {
+        this.names = names;
+        int count = 0;
+        for (boolean used : referenced) {
+            if (used) {
+                count++;
+            }
+        }
+        int[] ids = new int[count];
+        count = 0;
+        for (int id = 0; id < referenced.length; id++) {
+            if (referenced[id]) {
+                ids[count++] = id;
+            }
+        }
+        sort(ids, new int[ids.length], 0, ids.length);
+        this.sorted = ids;
+        this.ranks = new int[names.size()];
+        Arrays.fill(ranks, -1);
+        for (int rank = 0; rank < sorted.length; rank++) {
+            ranks[sorted[rank]] = rank;
+        }
+    }
+
+    private void sort(int[] ids, int[] scratch, int from, int to) {
+        if (to - from < 16) {
+            for (int i = from + 1; i < to; i++) {
+                int id = ids[i];
+                int j = i - 1;
+                while (j >= from && names.compare(ids[j], id) > 0) {
+                    ids[j + 1] = ids[j];
+                    j--;
+                }
+                ids[j + 1] = id;
+            }
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        sort(ids, scratch, from, middle);
+        sort(ids, scratch, middle, to);
+        if (names.compare(ids[middle - 1], ids[middle]) <= 0) {
+            return;
+        }
+        System.arraycopy(ids, from, scratch, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right == to || (left < middle && names.compare(scratch[left], scratch[right]) <= 0)) {
+                ids[i] = scratch[left++];
+            } else {
+                ids[i] = scratch[right++];
+            }
+        }
+    }
+
+    /**
+     * @param groupName key for caching the member ranks, {@code null} to search every indexed name
+     * @param members   the group's members, ignored if {@code groupName} is {@code null}
+     * @param prefix    normalized prefix, empty for all names
+     */
+    Match find(String groupName, IdSet members, String prefix) {
+        byte[] encoded = prefix.getBytes(StandardCharsets.UTF_8);
+        int from = bound(encoded, false);
+        int to = bound(encoded, true);
+        if (groupName == null) {
+            return new Match(null, from, to);
+        }
+        int[] memberRanks = groupRanks.computeIfAbsent(groupName, ignored -> ranksOf(members));
+        return new Match(memberRanks, lowerBound(memberRanks, from), lowerBound(memberRanks, to));
+    }
+
+    /**
+     * @return the first rank whose name sorts after the prefix ({@code after}) or does not sort before it
+     */
+    private int bound(byte[] prefix, boolean after) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            int comparison = names.comparePrefix(sorted[middle], prefix);
+            if (comparison < 0 || (after && comparison == 0)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static int lowerBound(int[] values, int key) {
+        int position = Arrays.binarySearch(values, key);
+        return position < 0 ? -position - 1 : position;
+    }
+
+    private int[] ranksOf(IdSet members) {
+        int[] memberRanks = new int[members.size()];
+        int count = 0;
+        for (int i = 0; i < members.size(); i++) {
+            int rank = ranks[members.get(i)];
+            if (rank >= 0) {
+                memberRanks[count++] = rank;
+            }
+        }
+        Arrays.sort(memberRanks, 0, count);
+        return count == memberRanks.length ? memberRanks : Arrays.copyOf(memberRanks, count);
+    }
+
+    long bytes() {
+        long bytes = (long) (sorted.length + ranks.length) * Integer.BYTES;
+        for (int[] memberRanks : groupRanks.values()) {
+            bytes += (long) memberRanks.length * Integer.BYTES;
+        }
+        return bytes;
+    }
+
+    /**
+     * The matching names, in order; positions index into the group's member ranks, or directly into the rank array.
+     */
+    final class Match {
+        private final int[] memberRanks;
+        private final int from;
+        private final int to;
+
+        private Match(int[] memberRanks, int from, int to) {
+            this.memberRanks = memberRanks;
+            this.from = from;
+            this.to = to;
+        }
+
+        int size() {
+            return to - from;
+        }
+
+        List<String> names(int offset, int limit) {
+            int start = from + Math.min(offset, size());
+            int end = start + Math.min(limit, to - start);
+            List<String> page = new ArrayList<>(end - start);
+            for (int position = start; position < end; position++) {
+                int rank = memberRanks == null ? position : memberRanks[position];
+                page.add(names.name(sorted[rank]));
+            }
+            return page;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Username, group name and server name normalization shared by both proxy plugins.
+ */
+public final class Names {
+
+    private Names() {
+    }
+
+    public static String normalizeUsername(String username) {
+        return username == null ? "" : username.trim().toLowerCase(Locale.ROOT);
+    }
+
+    public static String normalizeGroupName(String groupName) {
+        return groupName == null ? "" : groupName.trim().toLowerCase(Locale.ROOT);
+    }
+
+    public static String normalizeServerName(String serverName) {
+        return serverName == null ? "" : serverName.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Same UUID the proxies assign to an offline player, {@code UUID.nameUUIDFromBytes("OfflinePlayer:" + name)}.
+     * It depends on the exact spelling, so it has to be computed from the name the client sent.
+     */
+    public static UUID offlineUuid(String username) {
+        return UUID.nameUUIDFromBytes(("OfflinePlayer:" + username).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Trims and lower-cases {@code source[start, end)} in one pass, equivalent to
+     * {@code source.substring(start, end).trim().toLowerCase(Locale.ROOT)} but allocating only the result.
+     */
+    static String normalize(String source, int start, int end) {
+        while (start < end && source.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && source.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if (start == end) {
+            return "";
+        }
+
+        boolean hasUpperCase = false;
+        for (int i = start; i < end; i++) {
+            char c = source.charAt(i);
+            if (c >= 0x80) {
+                return source.substring(start, end).toLowerCase(Locale.ROOT);
+            }
+            hasUpperCase |= c >= 'A' && c <= 'Z';
+        }
+        if (!hasUpperCase) {
+            return source.substring(start, end);
+        }
+
+        char[] folded = new char[end - start];
+        for (int i = start; i < end; i++) {
+            char c = source.charAt(i);
+            folded[i - start] = c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        }
+        return new String(folded);
+    }
+}
@@ -0,0 +1,557 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Wildcard group entries, such as {@code qa_bot_*} or {@code loadtest[0-999]}. The patterns of all enabled groups are
+ * compiled into one DFA per snapshot.
+ * <p>
+ * Syntax: {@code *} matches any run of characters, {@code ?} one character, {@code [abc]} or {@code [a-z]} one
+ * character of the set, and {@code [0-999]} a decimal number in the range without leading zeros. If both bounds are
+ * written with the same number of digits ({@code [000-999]}), exactly that many digits are matched.
+ * <p>
+ * Patterns that would match too broadly are rejected: a pattern must start with at least
+ * {@value #MIN_LITERAL_PREFIX} plain characters and may contain at most {@value #MAX_STARS} {@code *}. Patterns that
+ * would grow the combined DFA past {@value #MAX_STATES} states are left out of it, see {@link #skipped()}.
+ */
+final class PatternMatcher {
+
+    static final int MIN_LITERAL_PREFIX = 3;
+    static final int MAX_STARS = 2;
+    static final int MAX_LENGTH = 64;
+    private static final int MAX_RANGE_DIGITS = 9;
+    static final int MAX_STATES = 1 << 16;
+    static final String TOO_MANY_STATES = "the patterns of the enabled groups would need more than " + MAX_STATES
+            + " states";
+    private static final int DEAD = 0;
+
+    static final PatternMatcher EMPTY = compile(Map.of(), Set.of(), null);
+
+    private final Map<String, List<String>> source;
+    private final int[] boundaries;
+    private final int[] asciiClasses;
+    private final int classCount;
+    private final int[] transitions;
+    private final int start;
+    private final int[] accepting;
+    private final Grant.Profile[] profiles;
+    private final List<Skipped> skipped;
+
+    /**
+     * A pattern left out of the DFA because the patterns before it already filled it.
+     */
+    record Skipped(String groupName, String pattern) {
+    }
+
+    private PatternMatcher(Map<String, List<String>> source, int[] boundaries, int[] transitions, int start,
+                           int[] accepting, Grant.Profile[] profiles, List<Skipped> skipped) {
+        this.source = source;
+        this.skipped = skipped;
+        this.boundaries = boundaries;
+        this.classCount = boundaries.length;
+        this.asciiClasses = new int[0x80];
+        for (char c = 0; c < 0x80; c++) {
+            asciiClasses[c] = classOf(c);
+        }
+        this.transitions = transitions;
+        this.start = start;
+        this.accepting = accepting;
+        this.profiles = profiles;
+    }
+
+    /**
+     * @return whether {@code entry} is a pattern rather than a plain username
+     */
+    static boolean isPattern(String entry) {
+        for (int i = 0; i < entry.length(); i++) {
+            char c = entry.charAt(i);
+            if (c == '*' || c == '?' || c == '[') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param entry normalized group entry
+     * @return why {@code entry} is not a usable pattern, or {@code null} if it is a plain name or a valid pattern
+     */
+    static String problem(String entry) {
+        if (!isPattern(entry)) {
+            return null;
+        }
+        try {
+            Nfa nfa = new Nfa();
+            build(entry, nfa, nfa.state());
+            return null;
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+    }
+
+    /**
+     * Compiles the patterns of the enabled groups. If they need too many states together, the longest run of them in
+     * group order that fits is kept, found by bisection, and the rest are skipped.
+     *
+     * @param previous returned as is if it was compiled from the same patterns, may be {@code null}
+     * @throws IllegalArgumentException if a pattern is invalid
+     */
+    static PatternMatcher compile(Map<String, List<String>> groupPatterns, Set<String> enabledGroups,
+                                  PatternMatcher previous) {
+        Map<String, List<String>> source = enabledPatterns(groupPatterns, enabledGroups);
+        if (previous != null && previous.source.equals(source)) {
+            return previous;
+        }
+
+        Map<String, List<String>> copy = Map.copyOf(source);
+        PatternMatcher matcher = compile(source, copy, List.of());
+        if (matcher != null) {
+            return matcher;
+        }
+        List<Skipped> ordered = new ArrayList<>();
+        source.forEach((groupName, patterns) -> patterns.forEach(pattern -> ordered.add(new Skipped(groupName, pattern))));
+        int fits = 0;
+        int overflows = ordered.size();
+        while (overflows - fits > 1) {
+            int middle = (fits + overflows) >>> 1;
+            if (compile(prefix(ordered, middle), copy, List.of()) != null) {
+                fits = middle;
+            } else {
+                overflows = middle;
+            }
+        }
+        return compile(prefix(ordered, fits), copy, List.copyOf(ordered.subList(fits, ordered.size())));
+    }
+
+    /**
+     * Compiles the patterns once, without looking for the ones that fit.
+     *
+     * @return whether the patterns of the enabled groups fit into {@value #MAX_STATES} states
+     * @throws IllegalArgumentException if a pattern is invalid
+     */
+    static boolean fits(Map<String, List<String>> groupPatterns, Set<String> enabledGroups) {
+        Map<String, List<String>> source = enabledPatterns(groupPatterns, enabledGroups);
+        return compile(source, source, List.of()) != null;
+    }
+
+    private static Map<String, List<String>> enabledPatterns(Map<String, List<String>> groupPatterns,
+                                                             Set<String> enabledGroups) {
+        Map<String, List<String>> source = new TreeMap<>();
+        groupPatterns.forEach((groupName, patterns) -> {
+            if (enabledGroups.contains(groupName) && !patterns.isEmpty()) {
+                source.put(groupName, patterns);
+            }
+        });
+        return source;
+    }
+
+    private static Map<String, List<String>> prefix(List<Skipped> ordered, int count) {
+        Map<String, List<String>> included = new TreeMap<>();
+        for (Skipped entry : ordered.subList(0, count)) {
+            included.computeIfAbsent(entry.groupName(), added -> new ArrayList<>()).add(entry.pattern());
+        }
+        return included;
+    }
+
+    /**
+     * @return the matcher, or {@code null} if the patterns need more than {@value #MAX_STATES} states
+     */
+    private static PatternMatcher compile(Map<String, List<String>> included, Map<String, List<String>> source,
+                                          List<Skipped> skipped) {
+        Nfa nfa = new Nfa();
+        int nfaStart = nfa.state();
+        List<String> groupOrder = new ArrayList<>(included.keySet());
+        Map<Integer, Integer> acceptingGroup = new HashMap<>();
+        for (int group = 0; group < groupOrder.size(); group++) {
+            for (String pattern : included.get(groupOrder.get(group))) {
+                acceptingGroup.put(build(pattern, nfa, nfaStart), group);
+            }
+        }
+        return determinize(nfa, nfaStart, acceptingGroup, groupOrder, source, skipped);
+    }
+
+    boolean isEmpty() {
+        return source.isEmpty();
+    }
+
+    /**
+     * @return the number of patterns in the DFA
+     */
+    int patternCount() {
+        return source.values().stream().mapToInt(List::size).sum() - skipped.size();
+    }
+
+    /**
+     * @return the patterns of enabled groups that match no one because the DFA would have grown too large
+     */
+    List<Skipped> skipped() {
+        return skipped;
+    }
+
+    /**
+     * @param username raw or normalized username, may be {@code null}
+     * @return the groups whose patterns match the normalized name, or {@code null} if none does
+     */
+    Grant.Profile match(String username) {
+        return profiles[matchIndex(username)];
+    }
+
+    /**
+     * Like {@link #match(String)}, but returns the index of the profile for {@link #profile(int)}, {@code 0} if no
+     * pattern matches.
+     */
+    int matchIndex(String username) {
+        if (username == null || source.isEmpty()) {
+            return 0;
+        }
+        int from = 0;
+        int to = username.length();
+        while (from < to && username.charAt(from) <= ' ') {
+            from++;
+        }
+        while (to > from && username.charAt(to - 1) <= ' ') {
+            to--;
+        }
+        int state = start;
+        for (int i = from; i < to; i++) {
+            char c = username.charAt(i);
+            if (c >= 0x80) {
+                return matchNormalized(Names.normalizeUsername(username));
+            }
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            state = transitions[state * classCount + asciiClasses[c]];
+            if (state == DEAD) {
+                return 0;
+            }
+        }
+        return accepting[state];
+    }
+
+    private int matchNormalized(String name) {
+        int state = start;
+        for (int i = 0; i < name.length() && state != DEAD; i++) {
+            state = transitions[state * classCount + classOf(name.charAt(i))];
+        }
+        return accepting[state];
+    }
+
+    /**
+     * @return the groups matched by a {@link #matchIndex(String)} result, {@code null} for {@code 0}
+     */
+    Grant.Profile profile(int index) {
+        return profiles[index];
+    }
+
+    int profileCount() {
+        return profiles.length;
+    }
+
+    private int classOf(char c) {
+        int position = Arrays.binarySearch(boundaries, c);
+        return position >= 0 ? position : -position - 2;
+    }
+
+    long bytes() {
+        return (long) (boundaries.length + asciiClasses.length + transitions.length + accepting.length) * Integer.BYTES;
+    }
+
+    /**
+     * Adds the pattern to {@code nfa}, starting at {@code from}.
+     *
+     * @return the state reached after a full match
+     */
+    private static int build(String pattern, Nfa nfa, int from) {
+        if (pattern.length() > MAX_LENGTH) {
+            throw new IllegalArgumentException("longer than " + MAX_LENGTH + " characters");
+        }
+        int stars = 0;
+        int literalPrefix = -1;
+        int state = from;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if ((c == '*' || c == '?' || c == '[') && literalPrefix < 0) {
+                literalPrefix = i;
+                if (literalPrefix < MIN_LITERAL_PREFIX) {
+                    throw new IllegalArgumentException("too broad, start with at least " + MIN_LITERAL_PREFIX
+                            + " plain characters");
+                }
+            }
+            switch (c) {
+                case '*' -> {
+                    if (++stars > MAX_STARS) {
+                        throw new IllegalArgumentException("more than " + MAX_STARS + " '*'");
+                    }
+                    int loop = nfa.state();
+                    nfa.epsilon(state, loop);
+                    nfa.edge(loop, Character.MIN_VALUE, Character.MAX_VALUE, loop);
+                    state = loop;
+                }
+                case '?' -> {
+                    int next = nfa.state();
+                    nfa.edge(state, Character.MIN_VALUE, Character.MAX_VALUE, next);
+                    state = next;
+                }
+                case '[' -> {
+                    int close = pattern.indexOf(']', i + 1);
+                    if (close < 0) {
+                        throw new IllegalArgumentException("missing ']'");
+                    }
+                    String content = pattern.substring(i + 1, close);
+                    state = content.matches("\\d+-\\d+") ? numberRange(content, nfa, state) : charClass(content, nfa, state);
+                    i = close;
+                }
+                case ']' -> throw new IllegalArgumentException("unexpected ']'");
+                default -> {
+                    int next = nfa.state();
+                    nfa.edge(state, c, c, next);
+                    state = next;
+                }
+            }
+        }
+        if (literalPrefix < 0) {
+            throw new IllegalArgumentException("not a pattern");
+        }
+        return state;
+    }
+
+    private static int charClass(String content, Nfa nfa, int from) {
+        if (content.isEmpty()) {
+            throw new IllegalArgumentException("empty '[]'");
+        }
+        int next = nfa.state();
+        for (int i = 0; i < content.length(); i++) {
+            char low = content.charAt(i);
+            char high = low;
+            if (i + 2 < content.length() && content.charAt(i + 1) == '-') {
+                high = content.charAt(i + 2);
+                i += 2;
+            }
+            if (high < low) {
+                throw new IllegalArgumentException("invalid range '" + low + "-" + high + "'");
+            }
+            nfa.edge(from, low, high, next);
+        }
+        return next;
+    }
+
+    /**
+     * Splits the number range into digit-class sequences, e.g. {@code [7-123]} into {@code [7-9]},
+     * {@code [1-9][0-9]}, {@code 1[0-1][0-9]} and {@code 12[0-3]}.
+     */
+    private static int numberRange(String content, Nfa nfa, int from) {
+        int dash = content.indexOf('-');
+        String lowText = content.substring(0, dash);
+        String highText = content.substring(dash + 1);
+        if (lowText.length() > MAX_RANGE_DIGITS || highText.length() > MAX_RANGE_DIGITS) {
+            throw new IllegalArgumentException("number range with more than " + MAX_RANGE_DIGITS + " digits");
+        }
+        long low = Long.parseLong(lowText);
+        long high = Long.parseLong(highText);
+        if (low > high) {
+            throw new IllegalArgumentException("empty number range [" + content + "]");
+        }
+
+        List<int[]> sequences = new ArrayList<>();
+        if (lowText.length() == highText.length()) {
+            sameLength(lowText, highText, new int[0], sequences);
+        } else {
+            long lowest = 0;
+            for (int digits = 1; digits <= highText.length(); digits++) {
+                long highest = lowest == 0 ? 9 : lowest * 10 - 1;
+                long sectionLow = Math.max(low, lowest);
+                long sectionHigh = Math.min(high, highest);
+                if (sectionLow <= sectionHigh) {
+                    sameLength(Long.toString(sectionLow), Long.toString(sectionHigh), new int[0], sequences);
+                }
+                lowest = lowest == 0 ? 10 : lowest * 10;
+            }
+        }
+
+        int end = nfa.state();
+        for (int[] sequence : sequences) {
+            int state = from;
+            for (int i = 0; i < sequence.length; i += 2) {
+                int next = i + 2 == sequence.length ? end : nfa.state();
+                nfa.edge(state, (char) sequence[i], (char) sequence[i + 1], next);
+                state = next;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * @param prefix digit classes fixed so far, as {@code low, high} pairs
+     */
+    private static void sameLength(String low, String high, int[] prefix, List<int[]> sequences) {
+        if (low.isEmpty()) {
+            sequences.add(prefix);
+            return;
+        }
+        char first = low.charAt(0);
+        char last = high.charAt(0);
+        String lowRest = low.substring(1);
+        String highRest = high.substring(1);
+        if (first == last) {
+            sameLength(lowRest, highRest, append(prefix, first, last, 0), sequences);
+        } else if (lowRest.chars().allMatch(c -> c == '0') && highRest.chars().allMatch(c -> c == '9')) {
+            sequences.add(append(prefix, first, last, lowRest.length()));
+        } else {
+            sameLength(lowRest, "9".repeat(lowRest.length()), append(prefix, first, first, 0), sequences);
+            if (first + 1 <= last - 1) {
+                sequences.add(append(prefix, (char) (first + 1), (char) (last - 1), lowRest.length()));
+            }
+            sameLength("0".repeat(highRest.length()), highRest, append(prefix, last, last, 0), sequences);
+        }
+    }
+
+    /**
+     * @return {@code prefix} followed by {@code [low-high]} and {@code anyDigits} times {@code [0-9]}
+     */
+    private static int[] append(int[] prefix, char low, char high, int anyDigits) {
+        int[] sequence = Arrays.copyOf(prefix, prefix.length + 2 + 2 * anyDigits);
+        sequence[prefix.length] = low;
+        sequence[prefix.length + 1] = high;
+        for (int i = prefix.length + 2; i < sequence.length; i += 2) {
+            sequence[i] = '0';
+            sequence[i + 1] = '9';
+        }
+        return sequence;
+    }
+
+    /**
+     * Subset construction over character classes: the alphabet is split at every range boundary, so each class
+     * behaves the same on every NFA edge.
+     */
+    private static PatternMatcher determinize(Nfa nfa, int nfaStart, Map<Integer, Integer> acceptingGroup,
+                                              List<String> groupOrder, Map<String, List<String>> source,
+                                              List<Skipped> skipped) {
+        TreeSet<Integer> cuts = new TreeSet<>();
+        cuts.add(0);
+        for (List<int[]> edges : nfa.edges) {
+            for (int[] edge : edges) {
+                cuts.add(edge[0]);
+                if (edge[1] < Character.MAX_VALUE) {
+                    cuts.add(edge[1] + 1);
+                }
+            }
+        }
+        int[] boundaries = cuts.stream().mapToInt(Integer::intValue).toArray();
+        int classCount = boundaries.length;
+
+        Map<BitSet, Integer> ids = new HashMap<>();
+        List<BitSet> states = new ArrayList<>();
+        BitSet dead = new BitSet();
+        ids.put(dead, DEAD);
+        states.add(dead);
+        BitSet initial = nfa.closure(singleton(nfaStart));
+        int start = states.size();
+        ids.put(initial, start);
+        states.add(initial);
+
+        int[] transitions = new int[Math.max(16, classCount * 4)];
+        for (int state = 0; state < states.size(); state++) {
+            if (states.size() > MAX_STATES) {
+                return null;
+            }
+            if ((state + 1) * classCount > transitions.length) {
+                transitions = Arrays.copyOf(transitions, Math.max(transitions.length * 2, (state + 1) * classCount));
+            }
+            BitSet current = states.get(state);
+            for (int symbolClass = 0; symbolClass < classCount; symbolClass++) {
+                int symbol = boundaries[symbolClass];
+                BitSet reached = new BitSet();
+                for (int nfaState = current.nextSetBit(0); nfaState >= 0; nfaState = current.nextSetBit(nfaState + 1)) {
+                    for (int[] edge : nfa.edges.get(nfaState)) {
+                        if (edge[0] <= symbol && symbol <= edge[1]) {
+                            reached.set(edge[2]);
+                        }
+                    }
+                }
+                BitSet target = nfa.closure(reached);
+                Integer id = ids.get(target);
+                if (id == null) {
+                    id = states.size();
+                    ids.put(target, id);
+                    states.add(target);
+                }
+                transitions[state * classCount + symbolClass] = id;
+            }
+        }
+
+        int[] accepting = new int[states.size()];
+        List<Grant.Profile> profiles = new ArrayList<>();
+        profiles.add(null);
+        Map<List<String>, Integer> profileIds = new HashMap<>();
+        for (int state = 0; state < states.size(); state++) {
+            BitSet groups = new BitSet();
+            BitSet members = states.get(state);
+            for (int nfaState = members.nextSetBit(0); nfaState >= 0; nfaState = members.nextSetBit(nfaState + 1)) {
+                Integer group = acceptingGroup.get(nfaState);
+                if (group != null) {
+                    groups.set(group);
+                }
+            }
+            if (!groups.isEmpty()) {
+                List<String> names = groups.stream().mapToObj(groupOrder::get).toList();
+                accepting[state] = profileIds.computeIfAbsent(names, added -> {
+                    profiles.add(new Grant.Profile(false, added));
+                    return profiles.size() - 1;
+                });
+            }
+        }
+        return new PatternMatcher(source, boundaries, Arrays.copyOf(transitions, states.size() * classCount),
+                start, accepting, profiles.toArray(new Grant.Profile[0]), skipped);
+    }
+
+    private static BitSet singleton(int state) {
+        BitSet set = new BitSet();
+        set.set(state);
+        return set;
+    }
+
+    /**
+     * Thompson NFA; edges are {@code {low, high, target}} character ranges.
+     */
+    private static final class Nfa {
+        final List<List<int[]>> edges = new ArrayList<>();
+        final List<List<Integer>> epsilons = new ArrayList<>();
+
+        int state() {
+            edges.add(new ArrayList<>());
+            epsilons.add(new ArrayList<>());
+            return edges.size() - 1;
+        }
+
+        void edge(int from, char low, char high, int to) {
+            edges.get(from).add(new int[]{low, high, to});
+        }
+
+        void epsilon(int from, int to) {
+            epsilons.get(from).add(to);
+        }
+
+        BitSet closure(BitSet states) {
+            BitSet closure = (BitSet) states.clone();
+            List<Integer> pending = new ArrayList<>(states.stream().boxed().toList());
+            while (!pending.isEmpty()) {
+                for (int next : epsilons.get(pending.remove(pending.size() - 1))) {
+                    if (!closure.get(next)) {
+                        closure.set(next);
+                        pending.add(next);
+                    }
+                }
+            }
+            return closure;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Carries the decision made for a connection on pre-login through to the later login events, keyed by the proxy's
+ * connection object. If the map is still full after sweeping stale entries, new ones are not stored and the later
+ * event decides again.
+ */
+public final class PendingLogins<K, V> {
+
+    static final int MAX_PENDING = 4096;
+    private static final long EXPIRY_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private record Pending<V>(V value, long createdNanos) {
+    }
+
+    private final Map<K, Pending<V>> pending = new ConcurrentHashMap<>();
+
+    public void put(K connection, V value) {
+        long now = System.nanoTime();
+        if (pending.size() >= MAX_PENDING) {
+            pending.values().removeIf(entry -> now - entry.createdNanos() > EXPIRY_NANOS);
+            if (pending.size() >= MAX_PENDING) {
+                return;
+            }
+        }
+        pending.put(connection, new Pending<>(value, now));
+    }
+
+    /**
+     * @return the value stored for {@code connection} and forgets it, or {@code null} if there is none
+     */
+    public V take(K connection) {
+        Pending<V> entry = pending.remove(connection);
+        return entry == null ? null : entry.value();
+    }
+
+    public int size() {
+        return pending.size();
+    }
+}
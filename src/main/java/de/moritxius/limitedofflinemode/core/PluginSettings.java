@@ -0,0 +1,118 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Plugin options from {@code config.properties} in the data directory. Missing keys fall back to their defaults, so
+ * files written by older versions keep working.
+ */
+public final class PluginSettings {
+
+    public static final String SETTINGS_FILE = "config.properties";
+
+    private static final List<String> DEFAULT_FILE = List.of(
+            "# LimitedOfflineMode settings",
+            "",
+            "# Until the lists are loaded at startup, logins authenticate online (online) or wait for them (wait).",
+            "startup.fallback=online",
+            "",
+            "# Write login metrics in Prometheus text format to this file (relative to the plugin folder).",
+            "# Leave empty to disable.",
+            "metrics.prometheus-file=",
+            "metrics.prometheus-interval-seconds=60",
+            "",
+            "# Offline logins are written to audit.log; the console only gets a summary every interval (0 = never).",
+            "audit.enabled=true",
+            "audit.console-interval-seconds=60",
+            "audit.max-file-bytes=10485760",
+            "audit.keep-files=3",
+            "",
+            "# Where the allow list is kept: files (allowed-users.txt) or h2 (allowlist.mv.db, looked up per login",
+            "# through a cache; allowed-users.txt still applies). TTLs are in seconds, the negative one for unlisted names.",
+            "# Lookups beyond lookup-queue waiting for the database authenticate online.",
+            "allowlist.backend=files",
+            "allowlist.cache-size=10000",
+            "allowlist.cache-ttl-seconds=300",
+            "allowlist.negative-ttl-seconds=30",
+            "allowlist.lookup-queue=1000",
+            "",
+            "# Offline logins per client address (IPv6: per /64): a burst, then a steady rate per minute. Logins over the",
+            "# limit are not checked against the lists and have to authenticate online.",
+            "throttle.enabled=true",
+            "throttle.offline-logins-per-minute=6",
+            "throttle.burst=3",
+            "throttle.max-addresses=100000",
+            "",
+            "# Keep group changes in sync with other proxies, through a directory they all can write to and/or over TCP.",
+            "# The node ID names this proxy to the others; leave empty to generate one.",
+            "replication.node-id=",
+            "replication.directory=",
+            "replication.poll-millis=500",
+            "# host:port to accept other proxies on, and a comma separated list of host:port to pull from.",
+            "# TCP replication needs the same secret on every proxy.",
+            "replication.listen=",
+            "replication.peers=",
+            "replication.secret=",
+            "# Connections from other proxies served at once.",
+            "replication.max-connections=16",
+            "replication.batch-millis=50",
+            "replication.retained-changes=10000"
+    );
+
+    private final Properties properties;
+
+    private PluginSettings(Properties properties) {
+        this.properties = properties;
+    }
+
+    static PluginSettings defaults() {
+        return new PluginSettings(new Properties());
+    }
+
+    static PluginSettings load(Path dataDirectory, PolicyLogger logger) {
+        Path path = dataDirectory.resolve(SETTINGS_FILE);
+        Properties properties = new Properties();
+        try {
+            if (Files.exists(path)) {
+                try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                    properties.load(reader);
+                }
+            } else {
+                Files.createDirectories(dataDirectory);
+                Files.write(path, DEFAULT_FILE, StandardCharsets.UTF_8);
+                logger.info("Created default " + SETTINGS_FILE);
+            }
+        } catch (IOException e) {
+            logger.error("Failed to load " + SETTINGS_FILE + ", using defaults", e);
+        }
+        return new PluginSettings(properties);
+    }
+
+    public String string(String key, String defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : value.trim();
+    }
+
+    public long number(String key, long defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public boolean flag(String key, boolean defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null || value.isBlank() ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+}
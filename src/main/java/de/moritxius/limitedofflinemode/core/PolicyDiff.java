@@ -0,0 +1,61 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * What changed between two snapshots, as far as logins and groups are concerned. Names matched by patterns cannot be
+ * listed, so the patterns themselves are counted instead.
+ *
+ * @param namesGranted    exact names that may now log in offline and could not before
+ * @param namesRevoked    exact names that could log in offline before and no longer can
+ * @param patternsGranted patterns that now grant offline logins and did not before
+ * @param patternsRevoked patterns that granted offline logins before and no longer do
+ * @param groupsChanged   groups that were added, removed, toggled or changed members or servers
+ */
+public record PolicyDiff(int namesGranted, int namesRevoked, int patternsGranted, int patternsRevoked,
+                         int groupsChanged) {
+
+    public static PolicyDiff between(PolicySnapshot before, PolicySnapshot after) {
+        int added = 0;
+        for (String user : after.grantedUsers()) {
+            if (!before.isGrantedByName(user)) {
+                added++;
+            }
+        }
+        // |before| - |before ∩ after|, and |before ∩ after| = |after| - added
+        int removed = before.grantedUserCount() - (after.grantedUserCount() - added);
+
+        Set<String> beforePatterns = before.enabledPatterns();
+        Set<String> afterPatterns = after.enabledPatterns();
+        int patternsAdded = (int) afterPatterns.stream().filter(pattern -> !beforePatterns.contains(pattern)).count();
+        int patternsRemoved = (int) beforePatterns.stream().filter(pattern -> !afterPatterns.contains(pattern)).count();
+
+        Map<String, Set<String>> beforeGroups = before.playerGroups();
+        Map<String, Set<String>> afterGroups = after.playerGroups();
+        int groupsChanged = 0;
+        for (Map.Entry<String, Set<String>> group : afterGroups.entrySet()) {
+            String name = group.getKey();
+            if (!Objects.equals(beforeGroups.get(name), group.getValue())
+                    || before.isGroupEnabled(name) != after.isGroupEnabled(name)
+                    || !Objects.equals(before.groupServers(name), after.groupServers(name))) {
+                groupsChanged++;
+            }
+        }
+        for (String name : beforeGroups.keySet()) {
+            if (!afterGroups.containsKey(name)) {
+                groupsChanged++;
+            }
+        }
+        return new PolicyDiff(added, removed, patternsAdded, patternsRemoved, groupsChanged);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int size() {
+        return namesGranted + namesRevoked + patternsGranted + patternsRevoked + groupsChanged;
+    }
+}
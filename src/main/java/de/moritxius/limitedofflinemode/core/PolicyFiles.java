@@ -0,0 +1,266 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads and writes {@code allowed-users.txt} and {@code player-groups.txt} in the plugin data directory.
+ */
+public final class PolicyFiles {
+
+    public static final String ALLOWED_USERS_FILE = "allowed-users.txt";
+    public static final String PLAYER_GROUPS_FILE = "player-groups.txt";
+    static final String PLAYER_GROUPS_HEADER = "# Format: groupName|enabled|player1,player2";
+
+    private final Path dataDirectory;
+    private final PolicyLogger logger;
+    private final BinarySnapshot binarySnapshot;
+    // fingerprints of the text files the published policy was built from, taken before reading them
+    private volatile BinarySnapshot.Fingerprint loadedAllowedUsers = BinarySnapshot.Fingerprint.MISSING;
+    private volatile BinarySnapshot.Fingerprint loadedPlayerGroups = BinarySnapshot.Fingerprint.MISSING;
+    private volatile boolean loadedFromText;
+    // per group signature of the groups file last loaded or saved, recorded with each journaled change
+    private volatile Map<String, Long> groupSignatures = Map.of();
+
+    public PolicyFiles(Path dataDirectory, PolicyLogger logger) {
+        this.dataDirectory = dataDirectory;
+        this.logger = logger;
+        this.binarySnapshot = new BinarySnapshot(dataDirectory, logger);
+    }
+
+    public Path dataDirectory() {
+        return dataDirectory;
+    }
+
+    /**
+     * Loads the policy from {@code policy.bin} if it was built from the current text files, otherwise parses them.
+     */
+    public PolicySnapshot load() {
+        long start = System.nanoTime();
+        Path allowedUsersPath = dataDirectory.resolve(ALLOWED_USERS_FILE);
+        BinarySnapshot.Fingerprint allowedUsersFingerprint = BinarySnapshot.Fingerprint.of(allowedUsersPath);
+        BinarySnapshot.Fingerprint playerGroupsFingerprint = BinarySnapshot.Fingerprint.of(dataDirectory.resolve(PLAYER_GROUPS_FILE));
+        if (allowedUsersFingerprint != BinarySnapshot.Fingerprint.MISSING
+                && playerGroupsFingerprint != BinarySnapshot.Fingerprint.MISSING) {
+            PolicySnapshot cached = binarySnapshot.read(allowedUsersFingerprint, playerGroupsFingerprint);
+            if (cached != null) {
+                loadedAllowedUsers = allowedUsersFingerprint;
+                loadedPlayerGroups = playerGroupsFingerprint;
+                loadedFromText = false;
+                groupSignatures = signatures(cached);
+                logger.info("Loaded " + cached.allowedUsers().size() + " allowed users and " + cached.playerGroups().size()
+                        + " player groups from " + BinarySnapshot.SNAPSHOT_FILE + " in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+                return cached;
+            }
+        }
+
+        Set<String> allowedUsers = loadAllowedUsers();
+        loadedAllowedUsers = createdOrKnown(allowedUsersFingerprint, allowedUsersPath);
+        Map<String, Set<String>> playerGroups = new HashMap<>();
+        Set<String> enabledGroups = new HashSet<>();
+        Expiries.Builder expiries = new Expiries.Builder();
+        Map<String, List<String>> groupServers = new HashMap<>();
+        loadPlayerGroups(playerGroups, enabledGroups, expiries, groupServers);
+        loadedPlayerGroups = createdOrKnown(playerGroupsFingerprint, dataDirectory.resolve(PLAYER_GROUPS_FILE));
+        loadedFromText = true;
+        PolicySnapshot loaded = PolicySnapshot.of(allowedUsers, playerGroups, enabledGroups, expiries.build(), groupServers);
+        groupSignatures = signatures(loaded);
+        return loaded;
+    }
+
+    /**
+     * A file that was missing has just been created with its defaults; fingerprint what was written.
+     */
+    private static BinarySnapshot.Fingerprint createdOrKnown(BinarySnapshot.Fingerprint before, Path path) {
+        return before == BinarySnapshot.Fingerprint.MISSING ? BinarySnapshot.Fingerprint.of(path) : before;
+    }
+
+    /**
+     * @return whether either text file differs from what was last loaded or saved
+     */
+    boolean changedOnDisk() {
+        return !BinarySnapshot.Fingerprint.of(dataDirectory.resolve(ALLOWED_USERS_FILE)).equals(loadedAllowedUsers)
+                || !BinarySnapshot.Fingerprint.of(dataDirectory.resolve(PLAYER_GROUPS_FILE)).equals(loadedPlayerGroups);
+    }
+
+    /**
+     * @return signature of the group as it is in the groups file last loaded or saved, {@code 0} if it has none
+     */
+    long groupSignature(String groupName) {
+        return groupSignatures.getOrDefault(groupName, 0L);
+    }
+
+    /**
+     * Hashes everything {@code player-groups.txt} stores per group, independent of the member order.
+     */
+    private static Map<String, Long> signatures(PolicySnapshot snapshot) {
+        Map<String, Long> signatures = new HashMap<>();
+        Expiries expiries = snapshot.expiries();
+        for (Map.Entry<String, Set<String>> group : snapshot.playerGroups().entrySet()) {
+            String groupName = group.getKey();
+            long signature = mix(Objects.hash(snapshot.isGroupEnabled(groupName), expiries.group(groupName),
+                    snapshot.groupServers(groupName)));
+            for (String member : group.getValue()) {
+                signature += mix(member.hashCode() * 31L + expiries.member(groupName, member));
+            }
+            signatures.put(groupName, signature == 0 ? 1 : signature);
+        }
+        return signatures;
+    }
+
+    private static long mix(long value) {
+        value = (value ^ (value >>> 33)) * 0xff51afd7ed558ccdL;
+        value = (value ^ (value >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return value ^ (value >>> 33);
+    }
+
+    /**
+     * @return whether the last {@link #load()} had to parse the text files, i.e. {@code policy.bin} is stale
+     */
+    boolean loadedFromText() {
+        return loadedFromText;
+    }
+
+    /**
+     * Stores {@code snapshot} as {@code policy.bin}. It must match the text files last loaded or saved.
+     */
+    void saveBinarySnapshot(PolicySnapshot snapshot) {
+        binarySnapshot.write(snapshot, loadedAllowedUsers, loadedPlayerGroups);
+    }
+
+    private Set<String> loadAllowedUsers() {
+        Set<String> allowedUsers = new HashSet<>();
+        try {
+            Path configPath = dataDirectory.resolve(ALLOWED_USERS_FILE);
+            if (Files.exists(configPath)) {
+                PolicyParser.parseAllowedUsers(configPath, allowedUsers);
+                logger.info("Loaded " + allowedUsers.size() + " allowed users");
+            } else {
+                logger.info("Creating default " + ALLOWED_USERS_FILE);
+                Files.createDirectories(dataDirectory);
+                Files.write(configPath, "# Add usernames that should be allowed to join in offline mode\n".getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            logger.error("Failed to load allowed users configuration", e);
+        }
+        return allowedUsers;
+    }
+
+    private void loadPlayerGroups(Map<String, Set<String>> playerGroups, Set<String> enabledGroups,
+                                  Expiries.Builder expiries, Map<String, List<String>> groupServers) {
+        try {
+            Path groupsPath = dataDirectory.resolve(PLAYER_GROUPS_FILE);
+            if (!Files.exists(groupsPath)) {
+                Files.createDirectories(dataDirectory);
+                Files.write(groupsPath, List.of(
+                        PLAYER_GROUPS_HEADER,
+                        "admins|true|ServerAdmin,HeadDeveloper",
+                        "testers|false|TestUser"
+                ), StandardCharsets.UTF_8);
+                logger.info("Created default " + PLAYER_GROUPS_FILE);
+            }
+
+            PolicyParser.parsePlayerGroups(groupsPath, playerGroups, enabledGroups, expiries, groupServers, logger);
+
+            logger.info("Loaded " + playerGroups.size() + " player groups (" + enabledGroups.size() + " enabled)");
+        } catch (IOException e) {
+            logger.error("Failed to load player groups", e);
+        }
+    }
+
+    /**
+     * Writes the groups to a temporary file, forces it to disk and atomically renames it over
+     * {@code player-groups.txt}, so a crash mid-write never leaves a truncated file behind.
+     *
+     * @return whether the file was written
+     */
+    public boolean savePlayerGroups(PolicySnapshot snapshot) {
+        Path groupsPath = dataDirectory.resolve(PLAYER_GROUPS_FILE);
+        Path tempPath = dataDirectory.resolve(PLAYER_GROUPS_FILE + ".tmp");
+        try {
+            Files.createDirectories(dataDirectory);
+            try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+                 Writer writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8))) {
+                writePlayerGroups(writer, snapshot);
+                writer.flush();
+                channel.force(true);
+            }
+            moveAtomically(tempPath, groupsPath);
+            loadedPlayerGroups = BinarySnapshot.Fingerprint.of(groupsPath);
+            groupSignatures = signatures(snapshot);
+            return true;
+        } catch (IOException e) {
+            logger.error("Failed to save player groups", e);
+            return false;
+        }
+    }
+
+    /**
+     * Writes the groups of {@code snapshot} in the {@code player-groups.txt} format, sorted by name.
+     */
+    static void writePlayerGroups(Writer writer, PolicySnapshot snapshot) throws IOException {
+        writer.write(PLAYER_GROUPS_HEADER);
+        writer.write('\n');
+        Expiries expiries = snapshot.expiries();
+        for (String groupName : new TreeSet<>(snapshot.playerGroups().keySet())) {
+            writer.write(groupName);
+            writer.write('|');
+            writer.write(Boolean.toString(snapshot.isGroupEnabled(groupName)));
+            writeExpiry(writer, expiries.group(groupName));
+            writer.write('|');
+            boolean first = true;
+            boolean temporaryMembers = expiries.hasMembers(groupName);
+            for (String member : new TreeSet<>(snapshot.playerGroups().get(groupName))) {
+                if (!first) {
+                    writer.write(',');
+                }
+                writer.write(member);
+                if (temporaryMembers) {
+                    writeExpiry(writer, expiries.member(groupName, member));
+                }
+                first = false;
+            }
+            List<String> servers = snapshot.groupServers(groupName);
+            if (servers != null) {
+                writer.write('|');
+                writer.write(String.join(",", servers));
+            }
+            writer.write('\n');
+        }
+    }
+
+    private static void writeExpiry(Writer writer, long expiresAt) throws IOException {
+        if (expiresAt != 0) {
+            writer.write('@');
+            writer.write(Instant.ofEpochMilli(expiresAt).toString());
+        }
+    }
+
+    static void moveAtomically(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package de.moritxius.limitedofflinemode.core;
+
+/**
+ * Minimal logging bridge so the core can log through SLF4J on Velocity and java.util.logging on BungeeCord.
+ */
+public interface PolicyLogger {
+
+    void info(String message);
+
+    void warn(String message);
+
+    void error(String message, Throwable cause);
+}
@@ -0,0 +1,166 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * A single change to the group policy. Mutations are idempotent, so replaying one that is already contained in the
+ * snapshot it is applied to leaves the snapshot unchanged.
+ */
+public sealed interface PolicyMutation {
+
+    String groupName();
+
+    PolicySnapshot applyTo(PolicySnapshot snapshot);
+
+    /**
+     * @return the journal line for this mutation, see {@link #decode(String)}
+     */
+    String encode();
+
+    /**
+     * Parses a line written by {@link #encode()}.
+     *
+     * @return the mutation, or {@code null} if the line is not a valid mutation
+     */
+    static PolicyMutation decode(String line) {
+        String[] parts = line.split("\\|", -1);
+        if (parts.length < 2) {
+            return null;
+        }
+        String groupName = Names.normalizeGroupName(parts[1]);
+        if (groupName.isEmpty()) {
+            return null;
+        }
+        return switch (parts[0]) {
+            case "add", "remove" -> {
+                if (parts.length < 3) {
+                    yield null;
+                }
+                Set<String> members = Arrays.stream(parts[2].split(","))
+                        .map(Names::normalizeUsername)
+                        .filter(name -> !name.isEmpty())
+                        .collect(Collectors.toCollection(LinkedHashSet::new));
+                if (members.isEmpty()) {
+                    yield null;
+                }
+                if ("remove".equals(parts[0])) {
+                    yield new RemoveMembers(groupName, members);
+                }
+                long expiresAt = parts.length > 3 ? parseExpiry(parts[3]) : 0;
+                yield expiresAt < 0 ? null : new AddMembers(groupName, members, expiresAt);
+            }
+            case "enable" -> {
+                long expiresAt = parts.length > 2 ? parseExpiry(parts[2]) : 0;
+                yield expiresAt < 0 ? null : new SetEnabled(groupName, true, expiresAt);
+            }
+            case "disable" -> new SetEnabled(groupName, false);
+            case "delete" -> new DeleteGroup(groupName);
+            case "servers" -> parts.length < 3 ? null : new SetServers(groupName, ServerScopes.parse(parts[2]));
+            default -> null;
+        };
+    }
+
+    /**
+     * @return the epoch milliseconds, or {@code -1} if {@code value} is not a valid expiry
+     */
+    private static long parseExpiry(String value) {
+        try {
+            return Math.max(-1, Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param expiresAt when the members are removed again in epoch milliseconds, {@code 0} for never
+     */
+    record AddMembers(String groupName, Set<String> members, long expiresAt) implements PolicyMutation {
+        public AddMembers {
+            members = Set.copyOf(members);
+        }
+
+        public AddMembers(String groupName, Set<String> members) {
+            this(groupName, members, 0);
+        }
+
+        @Override
+        public PolicySnapshot applyTo(PolicySnapshot snapshot) {
+            return snapshot.withMembersAdded(groupName, members, expiresAt);
+        }
+
+        @Override
+        public String encode() {
+            return "add|" + groupName + "|" + String.join(",", members) + (expiresAt == 0 ? "" : "|" + expiresAt);
+        }
+    }
+
+    record RemoveMembers(String groupName, Set<String> members) implements PolicyMutation {
+        public RemoveMembers {
+            members = Set.copyOf(members);
+        }
+
+        @Override
+        public PolicySnapshot applyTo(PolicySnapshot snapshot) {
+            return snapshot.withMembersRemoved(groupName, members);
+        }
+
+        @Override
+        public String encode() {
+            return "remove|" + groupName + "|" + String.join(",", members);
+        }
+    }
+
+    record DeleteGroup(String groupName) implements PolicyMutation {
+        @Override
+        public PolicySnapshot applyTo(PolicySnapshot snapshot) {
+            return snapshot.withoutGroup(groupName);
+        }
+
+        @Override
+        public String encode() {
+            return "delete|" + groupName;
+        }
+    }
+
+    /**
+     * @param servers normalized server names and patterns the group is limited to, empty for every server
+     */
+    record SetServers(String groupName, List<String> servers) implements PolicyMutation {
+        public SetServers {
+            servers = List.copyOf(servers);
+        }
+
+        @Override
+        public PolicySnapshot applyTo(PolicySnapshot snapshot) {
+            return snapshot.withGroupServers(groupName, servers);
+        }
+
+        @Override
+        public String encode() {
+            return "servers|" + groupName + "|" + String.join(",", servers);
+        }
+    }
+
+    /**
+     * @param expiresAt when an enabled group is disabled again in epoch milliseconds, {@code 0} for never
+     */
+    record SetEnabled(String groupName, boolean enabled, long expiresAt) implements PolicyMutation {
+        public SetEnabled(String groupName, boolean enabled) {
+            this(groupName, enabled, 0);
+        }
+
+        @Override
+        public PolicySnapshot applyTo(PolicySnapshot snapshot) {
+            return snapshot.withGroupEnabled(groupName, enabled, expiresAt);
+        }
+
+        @Override
+        public String encode() {
+            return (enabled ? "enable|" : "disable|") + groupName + (expiresAt == 0 ? "" : "|" + expiresAt);
+        }
+    }
+}
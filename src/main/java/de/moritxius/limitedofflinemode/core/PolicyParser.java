@@ -0,0 +1,184 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Streaming parser for {@code allowed-users.txt} and {@code player-groups.txt}. Files are read line by line and
+ * scanned by index, so apart from the line itself only the normalized names end up on the heap.
+ */
+final class PolicyParser {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private PolicyParser() {
+    }
+
+    static void parseAllowedUsers(Path path, Set<String> allowedUsers) throws IOException {
+        parseNames(path, allowedUsers::add);
+    }
+
+    /**
+     * Streams one normalized name per non-blank, non-comment line to {@code names}.
+     */
+    static void parseNames(Path path, Consumer<String> names) throws IOException {
+        try (BufferedReader reader = open(path)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int start = skipLeading(line, 0, line.length());
+                if (start < line.length() && line.charAt(start) != '#') {
+                    names.accept(Names.normalize(line, start, line.length()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses {@code groupName|enabled|player1,player2} lines. Later lines for the same group replace earlier ones.
+     * The enabled flag and each player may carry an expiry as {@code @} and an ISO-8601 instant, e.g.
+     * {@code true@2024-05-01T18:00:00Z}. An optional fourth column limits the group to some backend servers, e.g.
+     * {@code |staging-*,test-lobby}.
+     */
+    static void parsePlayerGroups(Path path, Map<String, Set<String>> playerGroups, Set<String> enabledGroups,
+                                  Expiries.Builder expiries, Map<String, List<String>> groupServers,
+                                  PolicyLogger logger) throws IOException {
+        try (BufferedReader reader = open(path)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                parseGroupLine(line, playerGroups, enabledGroups, expiries, groupServers, logger);
+            }
+        }
+    }
+
+    /**
+     * Parses one line of {@code player-groups.txt}, see {@link #parsePlayerGroups}; blank and comment lines are
+     * skipped.
+     */
+    static void parseGroupLine(String line, Map<String, Set<String>> playerGroups, Set<String> enabledGroups,
+                                       Expiries.Builder expiries, Map<String, List<String>> groupServers,
+                                       PolicyLogger logger) {
+        int start = skipLeading(line, 0, line.length());
+        int end = skipTrailing(line, start, line.length());
+        if (start == end || line.charAt(start) == '#') {
+            return;
+        }
+
+        int nameEnd = line.indexOf('|', start);
+        int enabledEnd = nameEnd < 0 ? -1 : line.indexOf('|', nameEnd + 1);
+        if (enabledEnd < 0 || enabledEnd >= end) {
+            logger.warn("Skipping invalid group line: " + line.substring(start, end));
+            return;
+        }
+        int membersEnd = line.indexOf('|', enabledEnd + 1);
+        if (membersEnd < 0 || membersEnd > end) {
+            membersEnd = end;
+        }
+
+        String groupName = Names.normalize(line, start, nameEnd);
+        if (groupName.isEmpty()) {
+            return;
+        }
+
+        expiries.clear(groupName);
+        int flagStart = skipLeading(line, nameEnd + 1, enabledEnd);
+        int flagEnd = skipTrailing(line, flagStart, enabledEnd);
+        int flagAt = line.indexOf('@', flagStart);
+        long enabledUntil = 0;
+        if (flagAt >= 0 && flagAt < flagEnd) {
+            enabledUntil = parseExpiry(line, flagAt + 1, flagEnd, groupName, logger);
+            flagEnd = skipTrailing(line, flagStart, flagAt);
+        }
+        boolean enabled = flagEnd - flagStart == 4 && line.regionMatches(true, flagStart, "true", 0, 4)
+                && enabledUntil >= 0;
+        if (enabled && enabledUntil > 0) {
+            expiries.group(groupName, enabledUntil);
+        }
+
+        Set<String> members = new HashSet<>();
+        int memberStart = enabledEnd + 1;
+        int at = -1;
+        while (memberStart <= membersEnd) {
+            int comma = line.indexOf(',', memberStart);
+            int memberEnd = comma < 0 || comma > membersEnd ? membersEnd : comma;
+            if (at != Integer.MAX_VALUE && at < memberStart) {
+                // searched once per '@', so lines without expiries stay linear
+                at = line.indexOf('@', memberStart);
+                at = at < 0 ? Integer.MAX_VALUE : at;
+            }
+            long expiresAt = 0;
+            if (at < memberEnd) {
+                expiresAt = parseExpiry(line, at + 1, memberEnd, groupName, logger);
+            }
+            String member = Names.normalize(line, memberStart, Math.min(at, memberEnd));
+            if (!member.isEmpty() && expiresAt >= 0 && isValidEntry(member, groupName, logger)) {
+                members.add(member);
+                if (expiresAt > 0) {
+                    expiries.member(groupName, member, expiresAt);
+                }
+            }
+            memberStart = memberEnd + 1;
+        }
+
+        playerGroups.put(groupName, members);
+        if (enabled) {
+            enabledGroups.add(groupName);
+        }
+        List<String> servers = membersEnd < end ? ServerScopes.parse(line.substring(membersEnd + 1, end)) : List.of();
+        if (servers.isEmpty()) {
+            groupServers.remove(groupName);
+        } else {
+            groupServers.put(groupName, servers);
+        }
+    }
+
+    /**
+     * @return the instant in epoch milliseconds, or {@code -1} if it is invalid; the entry is then skipped rather
+     * than granted permanently
+     */
+    private static long parseExpiry(String line, int start, int end, String groupName, PolicyLogger logger) {
+        String text = line.substring(start, end).trim();
+        try {
+            return Instant.parse(text).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            logger.warn("Skipping entry with invalid expiry '" + text + "' in group " + groupName);
+            return -1;
+        }
+    }
+
+    private static boolean isValidEntry(String member, String groupName, PolicyLogger logger) {
+        String problem = PatternMatcher.problem(member);
+        if (problem != null) {
+            logger.warn("Skipping pattern '" + member + "' in group " + groupName + ": " + problem);
+        }
+        return problem == null;
+    }
+
+    private static BufferedReader open(Path path) throws IOException {
+        return new BufferedReader(new InputStreamReader(Files.newInputStream(path), StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    private static int skipLeading(String line, int start, int end) {
+        while (start < end && line.charAt(start) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    private static int skipTrailing(String line, int start, int end) {
+        while (end > start && line.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+}
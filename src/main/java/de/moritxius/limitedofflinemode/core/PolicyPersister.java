@@ -0,0 +1,203 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Write-behind persistence for {@code player-groups.txt}. Mutations are queued; a single background thread appends
+ * each burst to the {@link MutationJournal} once it has settled, and compacts the journal into a fresh groups file
+ * when it passes {@link #COMPACT_THRESHOLD_BYTES} or the proxy shuts down.
+ */
+final class PolicyPersister implements AutoCloseable {
+
+    static final long DEFAULT_DELAY_MILLIS = 250;
+    static final long COMPACT_THRESHOLD_BYTES = 256 * 1024;
+
+    private final PolicyStore policy;
+    private final PolicyFiles files;
+    private final MutationJournal journal;
+    private final PolicyLogger logger;
+    private final LoginMetrics metrics;
+    private final long delayMillis;
+    private final ScheduledExecutorService executor;
+    private final Queue<PolicyMutation> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingMutations = new AtomicInteger();
+    private volatile int lastFlushMutations;
+    private volatile long flushCount;
+    private boolean uncompacted;
+
+    PolicyPersister(PolicyStore policy, PolicyFiles files, MutationJournal journal, PolicyLogger logger,
+                    LoginMetrics metrics, long delayMillis) {
+        this.policy = policy;
+        this.files = files;
+        this.journal = journal;
+        this.logger = logger;
+        this.metrics = metrics;
+        this.delayMillis = delayMillis;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "LimitedOfflineMode-persister");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Records a mutation that has been applied to the published policy. Callers must record mutations in the order
+     * they were applied. The first mutation of a burst schedules the flush.
+     */
+    void record(PolicyMutation mutation) {
+        pending.add(mutation);
+        if (pendingMutations.getAndIncrement() == 0) {
+            schedule(delayMillis);
+        }
+    }
+
+    /**
+     * Writes pending mutations to the journal, then runs {@code action} while no flush or compaction can start.
+     */
+    synchronized <T> T afterFlush(Supplier<T> action) {
+        flush();
+        return action.get();
+    }
+
+    /**
+     * Publishes a policy that does not follow from the journaled mutations, e.g. one caught up from another proxy, and
+     * compacts right away so that a restart does not replay the journal onto the wrong groups file.
+     */
+    synchronized void replace(PolicySnapshot snapshot) {
+        flush();
+        policy.publish(snapshot);
+        compact();
+    }
+
+    /**
+     * Compacts the journal in the background, e.g. after journaled changes were replayed on startup.
+     */
+    void compactLater() {
+        try {
+            executor.execute(this::compact);
+        } catch (RejectedExecutionException e) {
+            compact();
+        }
+    }
+
+    /**
+     * Refreshes {@code policy.bin} in the background from a snapshot that matches the text files on disk.
+     */
+    void saveBinarySnapshotLater(PolicySnapshot snapshot) {
+        try {
+            executor.execute(() -> files.saveBinarySnapshot(snapshot));
+        } catch (RejectedExecutionException ignored) {
+            // shutting down: the next start re-parses the text files
+        }
+    }
+
+    private void schedule(long delay) {
+        try {
+            executor.schedule(this::flush, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // already shut down: persist on the caller's thread rather than dropping the change
+            flush();
+        }
+    }
+
+    /**
+     * @return number of mutations absorbed by the most recent flush
+     */
+    int lastFlushMutations() {
+        return lastFlushMutations;
+    }
+
+    long flushCount() {
+        return flushCount;
+    }
+
+    int pendingMutations() {
+        return pendingMutations.get();
+    }
+
+    private synchronized void flush() {
+        int absorbed = pendingMutations.getAndSet(0);
+        if (absorbed == 0) {
+            return;
+        }
+        List<PolicyMutation> batch = new ArrayList<>(absorbed);
+        for (int i = 0; i < absorbed; i++) {
+            batch.add(pending.poll());
+        }
+
+        long start = System.nanoTime();
+        long journalSize;
+        try {
+            journalSize = journal.append(batch);
+        } catch (IOException e) {
+            logger.error("Failed to append to " + MutationJournal.JOURNAL_FILE + ", rewriting " + PolicyFiles.PLAYER_GROUPS_FILE, e);
+            journalSize = Long.MAX_VALUE;
+        }
+        lastFlushMutations = absorbed;
+        flushCount++;
+        uncompacted = true;
+        if (journalSize >= COMPACT_THRESHOLD_BYTES) {
+            compact();
+        }
+        long nanos = System.nanoTime() - start;
+        metrics.recordSave(nanos);
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        logger.info("Persisted " + absorbed + " group changes in " + millis + " ms");
+    }
+
+    /**
+     * Writes the current policy to {@code player-groups.txt} and {@code policy.bin} and empties the journal. Only runs on the persister
+     * thread (or during shutdown), so no append can slip in between the snapshot and the truncation.
+     */
+    private synchronized void compact() {
+        long start = System.nanoTime();
+        long journalSize = journal.size();
+        PolicySnapshot snapshot = policy.current();
+        if (!files.savePlayerGroups(snapshot)) {
+            return;
+        }
+        files.saveBinarySnapshot(snapshot);
+        try {
+            journal.truncate();
+        } catch (IOException e) {
+            // harmless: journaled mutations are idempotent and already contained in the groups file
+            logger.error("Failed to truncate " + MutationJournal.JOURNAL_FILE, e);
+        }
+        uncompacted = false;
+        long nanos = System.nanoTime() - start;
+        metrics.recordSave(nanos);
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        logger.info("Compacted " + journalSize + " bytes of journal into " + PolicyFiles.PLAYER_GROUPS_FILE + " in " + millis + " ms");
+    }
+
+    /**
+     * Writes any pending mutations, compacts the journal and stops the background thread.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            flush();
+            if (uncompacted || journal.size() > 0) {
+                compact();
+            }
+        }
+    }
+}
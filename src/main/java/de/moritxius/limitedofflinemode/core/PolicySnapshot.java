@@ -0,0 +1,788 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable view of the offline-mode policy. Mutations return a new snapshot and never touch this one, so login
+ * threads can read a snapshot without any locking. Usernames are int IDs into a {@link NameArena}; pattern entries of
+ * groups stay in the group like names but are never granted as names.
+ */
+public final class PolicySnapshot {
+
+    public static final PolicySnapshot EMPTY = compile(NameArena.EMPTY, IdSet.EMPTY, Map.of(), Set.of(),
+            Expiries.NONE, ServerScopes.NONE);
+
+    private final NameArena names;
+    private final IdSet allowedUsers;
+    private final Map<String, IdSet> groups;
+    private final Set<String> enabledGroups;
+    private final Profiles profiles;
+    private final int[] grantProfiles;
+    // offline UUIDs memoized per name ID on login, shared with derived snapshots while the arena does not grow
+    private final Grant.OfflineUuid[] offlineUuids;
+    private final int grantedUserCount;
+    // pattern entries of each group that has any; they are kept in the group like names but never granted as such
+    private final Map<String, List<String>> groupPatterns;
+    private final PatternMatcher patterns;
+    private final Expiries expiries;
+    private final ServerScopes servers;
+    // allowed servers per grant profile index, null entries for "every server"; null if no group is scoped
+    private final long[][] profileServers;
+    // the same per profile index of the pattern automaton
+    private final long[][] patternServers;
+    private final Map<String, Set<String>> playerGroupsView = new GroupsView();
+    // built on the first listing or completion; a racing second build is harmless
+    private volatile NameIndex nameIndex;
+
+    private PolicySnapshot(NameArena names, IdSet allowedUsers, Map<String, IdSet> groups, Set<String> enabledGroups,
+                           Profiles profiles, int[] grantProfiles, Grant.OfflineUuid[] offlineUuids,
+                           Map<String, List<String>> groupPatterns, PatternMatcher patterns, Expiries expiries,
+                           ServerScopes servers) {
+        this.names = names;
+        this.allowedUsers = allowedUsers;
+        this.groups = groups;
+        this.enabledGroups = enabledGroups;
+        this.profiles = profiles;
+        this.grantProfiles = grantProfiles;
+        this.offlineUuids = offlineUuids;
+        int granted = 0;
+        for (int profile : grantProfiles) {
+            if (profile != 0) {
+                granted++;
+            }
+        }
+        this.grantedUserCount = granted;
+        this.groupPatterns = groupPatterns;
+        this.patterns = patterns;
+        this.expiries = expiries;
+        this.servers = servers;
+        this.profileServers = servers.isEmpty() ? null : profileServers(profiles, servers);
+        this.patternServers = servers.isEmpty() ? null : patternServers(patterns, servers);
+    }
+
+    private static long[][] profileServers(Profiles profiles, ServerScopes servers) {
+        long[][] bits = new long[profiles.size()][];
+        for (int i = 1; i < bits.length; i++) {
+            bits[i] = servers.bits(profiles.get(i));
+        }
+        return bits;
+    }
+
+    private static long[][] patternServers(PatternMatcher patterns, ServerScopes servers) {
+        long[][] bits = new long[patterns.profileCount()][];
+        for (int i = 1; i < bits.length; i++) {
+            bits[i] = servers.bits(patterns.profile(i));
+        }
+        return bits;
+    }
+
+    private static PolicySnapshot compile(NameArena names, IdSet allowedUsers, Map<String, IdSet> groups,
+                                          Set<String> enabledGroups, Expiries expiries, ServerScopes servers) {
+        Profiles profiles = new Profiles();
+        int[] grantProfiles = new int[names.size()];
+        int allowListOnly = profiles.intern(Grant.Profile.ALLOW_LIST_ONLY);
+        for (int i = 0; i < allowedUsers.size(); i++) {
+            if (!names.isPattern(allowedUsers.get(i))) {
+                grantProfiles[allowedUsers.get(i)] = allowListOnly;
+            }
+        }
+        for (String enabledGroup : enabledGroups) {
+            grantGroup(names, profiles, grantProfiles, enabledGroup, groups.get(enabledGroup));
+        }
+        Map<String, List<String>> groupPatterns = new HashMap<>();
+        groups.forEach((groupName, members) -> putPatterns(groupPatterns, names, groupName, members));
+        return new PolicySnapshot(names, allowedUsers, groups, enabledGroups, profiles, grantProfiles,
+                new Grant.OfflineUuid[names.size()], Map.copyOf(groupPatterns),
+                PatternMatcher.compile(groupPatterns, enabledGroups, null), expiries,
+                servers);
+    }
+
+    /**
+     * Collects the pattern entries of {@code members} into {@code groupPatterns}, or removes the group if it has none.
+     */
+    private static void putPatterns(Map<String, List<String>> groupPatterns, NameArena names, String groupName,
+                                    IdSet members) {
+        List<String> found = new ArrayList<>();
+        for (int i = 0; i < members.size(); i++) {
+            if (names.isPattern(members.get(i))) {
+                found.add(names.name(members.get(i)));
+            }
+        }
+        if (found.isEmpty()) {
+            groupPatterns.remove(groupName);
+        } else {
+            groupPatterns.put(groupName, List.copyOf(found));
+        }
+    }
+
+    private static void grantGroup(NameArena names, Profiles profiles, int[] grantProfiles, String groupName,
+                                   IdSet members) {
+        Map<Integer, Integer> transitions = new HashMap<>();
+        for (int i = 0; i < members.size(); i++) {
+            int id = members.get(i);
+            if (names.isPattern(id)) {
+                continue;
+            }
+            grantProfiles[id] = transitions.computeIfAbsent(grantProfiles[id], current -> profiles.intern(
+                    current == 0 ? Grant.Profile.ofGroup(groupName) : profiles.get(current).withGroup(groupName)));
+        }
+    }
+
+    private static void revokeGroup(Profiles profiles, int[] grantProfiles, String groupName, IdSet members) {
+        Map<Integer, Integer> transitions = new HashMap<>();
+        for (int i = 0; i < members.size(); i++) {
+            int id = members.get(i);
+            grantProfiles[id] = transitions.computeIfAbsent(grantProfiles[id],
+                    current -> current == 0 ? 0 : profiles.intern(profiles.get(current).withoutGroup(groupName)));
+        }
+    }
+
+    public static PolicySnapshot of(Set<String> allowedUsers, Map<String, Set<String>> playerGroups, Set<String> enabledGroups) {
+        return of(allowedUsers, playerGroups, enabledGroups, Expiries.NONE, Map.of());
+    }
+
+    /**
+     * @param groupServers server scopes of the groups that are limited to some servers, see {@link ServerScopes}
+     */
+    static PolicySnapshot of(Set<String> allowedUsers, Map<String, Set<String>> playerGroups, Set<String> enabledGroups,
+                             Expiries expiries, Map<String, List<String>> groupServers) {
+        NameArena.Builder builder = new NameArena.Builder(allowedUsers.size());
+        IdSet users = add(builder, allowedUsers);
+        Map<String, IdSet> compiled = new HashMap<>();
+        playerGroups.forEach((name, members) -> compiled.put(name, add(builder, members)));
+        Set<String> enabled = new HashSet<>(enabledGroups);
+        enabled.retainAll(compiled.keySet());
+        Map<String, List<String>> scopes = new HashMap<>(groupServers);
+        scopes.keySet().retainAll(compiled.keySet());
+        return compile(builder.build(), users, Map.copyOf(compiled), Set.copyOf(enabled), expiries,
+                ServerScopes.of(scopes));
+    }
+
+    /**
+     * The compiled form of a snapshot as {@link BinarySnapshot} stores it. {@code profiles} leaves out index 0, which
+     * stands for "no grant".
+     */
+    record Compiled(NameArena names, IdSet allowedUsers, Map<String, IdSet> groups, Set<String> enabledGroups,
+                    List<Grant.Profile> profiles, int[] grantProfiles, Map<String, List<String>> groupPatterns, Expiries expiries, Map<String, List<String>> groupServers) {
+    }
+
+    Compiled compiled() {
+        return new Compiled(names, allowedUsers, groups, enabledGroups, profiles.byIndex.subList(1, profiles.size()),
+                grantProfiles, groupPatterns, expiries, servers.groups());
+    }
+
+    /**
+     * Restores a snapshot from its compiled form; only the pattern automaton is built again.
+     */
+    static PolicySnapshot of(Compiled compiled) {
+        NameArena names = compiled.names();
+        Profiles profiles = new Profiles();
+        compiled.profiles().forEach(profiles::intern);
+        if (profiles.size() != compiled.profiles().size() + 1 || compiled.grantProfiles().length != names.size()) {
+            throw new IllegalArgumentException("Inconsistent compiled policy");
+        }
+        for (int profile : compiled.grantProfiles()) {
+            if (profile < 0 || profile >= profiles.size()) {
+                throw new IllegalArgumentException("Unknown grant profile " + profile);
+            }
+        }
+        Set<String> enabled = Set.copyOf(compiled.enabledGroups());
+        return new PolicySnapshot(names, compiled.allowedUsers(), Map.copyOf(compiled.groups()), enabled, profiles,
+                compiled.grantProfiles(), new Grant.OfflineUuid[names.size()], Map.copyOf(compiled.groupPatterns()),
+                PatternMatcher.compile(compiled.groupPatterns(), enabled, null), compiled.expiries(),
+                ServerScopes.of(compiled.groupServers()));
+    }
+
+    private static IdSet add(NameArena.Builder builder, Collection<String> names) {
+        int[] ids = new int[names.size()];
+        int count = 0;
+        for (String name : names) {
+            ids[count++] = builder.add(name);
+        }
+        return IdSet.of(ids, count);
+    }
+
+    /**
+     * @param username username as sent by the client or already normalized; surrounding whitespace and case are
+     *                 ignored
+     */
+    public boolean isAllowed(String username) {
+        int id = names.find(username);
+        return (id != NameArena.MISSING && grantProfiles[id] != 0) || patterns.match(username) != null;
+    }
+
+    /**
+     * Like {@link #isAllowed(String)}, but ignores patterns.
+     */
+    boolean isGrantedByName(String username) {
+        int id = names.find(username);
+        return id != NameArena.MISSING && grantProfiles[id] != 0;
+    }
+
+    /**
+     * @param username username as sent by the client or already normalized
+     * @return why the user is allowed, or {@code null} if the user is not allowed
+     */
+    public Grant grant(String username) {
+        int id = names.find(username);
+        Grant.Profile matched = patterns.match(username);
+        if (id == NameArena.MISSING || grantProfiles[id] == 0) {
+            return matched == null ? null : new Grant(Names.normalizeUsername(username), matched);
+        }
+        Grant.Profile profile = profiles.get(grantProfiles[id]);
+        if (matched != null) {
+            profile = profile.withGroups(matched.groups());
+        }
+        return new Grant(names, id, offlineUuids, profile);
+    }
+
+    /**
+     * Checks a connection to a backend server for a user who logged in offline. A user whose grant was revoked or
+     * expired since may not connect anywhere. Allocates nothing for servers registered when the scopes were compiled.
+     *
+     * @param username   username as sent by the client or already normalized
+     * @param serverName name of the backend server as registered with the proxy
+     * @return whether the user still has an offline grant and it includes the server
+     */
+    public boolean allowsServer(String username, String serverName) {
+        int id = names.find(username);
+        int profile = id == NameArena.MISSING ? 0 : grantProfiles[id];
+        int matched = patterns.matchIndex(username);
+        if (profile == 0 && matched == 0) {
+            return false;
+        }
+        if (profileServers == null) {
+            return true;
+        }
+        int index = servers.index(serverName);
+        if (profile != 0 && servers.allows(profileServers[profile], profiles.get(profile), index, serverName)) {
+            return true;
+        }
+        return matched != 0 && servers.allows(patternServers[matched], patterns.profile(matched), index, serverName);
+    }
+
+    /**
+     * @return the server scope of the group, or {@code null} if it may join every server
+     */
+    List<String> groupServers(String groupName) {
+        return servers.servers(groupName);
+    }
+
+    ServerScopes serverScopes() {
+        return servers;
+    }
+
+    /**
+     * @return the number of pattern entries in enabled groups
+     */
+    public int patternCount() {
+        return patterns.patternCount();
+    }
+
+    /**
+     * @return patterns of enabled groups left out because they did not fit into the compiled matcher
+     */
+    List<PatternMatcher.Skipped> skippedPatterns() {
+        return patterns.skipped();
+    }
+
+    /**
+     * Compiles the patterns once as they would be after adding {@code members} to the group and, if {@code enable} is
+     * set, enabling it.
+     *
+     * @return why a pattern would be left out, or {@code null} if all of them fit
+     */
+    String patternProblem(String groupName, Collection<String> members, boolean enable) {
+        boolean enabled = enable || enabledGroups.contains(groupName);
+        List<String> added = members.stream().filter(PatternMatcher::isPattern).toList();
+        if (!enabled || (added.isEmpty() && enabledGroups.contains(groupName))) {
+            return null;
+        }
+        Map<String, List<String>> updatedPatterns = new HashMap<>(groupPatterns);
+        List<String> groupEntries = new ArrayList<>(groupPatterns.getOrDefault(groupName, List.of()));
+        added.stream().filter(pattern -> !groupEntries.contains(pattern)).forEach(groupEntries::add);
+        if (groupEntries.isEmpty()) {
+            return null;
+        }
+        if (!patterns.skipped().isEmpty()) {
+            // the patterns in use already overflow, so any new one would be skipped or push another out
+            return PatternMatcher.TOO_MANY_STATES;
+        }
+        updatedPatterns.put(groupName, groupEntries);
+        Set<String> updatedEnabled = new HashSet<>(enabledGroups);
+        updatedEnabled.add(groupName);
+        return PatternMatcher.fits(updatedPatterns, updatedEnabled) ? null : PatternMatcher.TOO_MANY_STATES;
+    }
+
+    public int grantedUserCount() {
+        return grantedUserCount;
+    }
+
+    /**
+     * @return the pattern entries of the enabled groups
+     */
+    Set<String> enabledPatterns() {
+        Set<String> enabled = new HashSet<>();
+        groupPatterns.forEach((groupName, entries) -> {
+            if (enabledGroups.contains(groupName)) {
+                enabled.addAll(entries);
+            }
+        });
+        return enabled;
+    }
+
+    /**
+     * @return normalized names of everyone who may log in offline, decoded while iterating
+     */
+    Iterable<String> grantedUsers() {
+        return () -> new Iterator<>() {
+            private int next = advance(0);
+
+            private int advance(int from) {
+                while (from < grantProfiles.length && grantProfiles[from] == 0) {
+                    from++;
+                }
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < grantProfiles.length;
+            }
+
+            @Override
+            public String next() {
+                if (next >= grantProfiles.length) {
+                    throw new NoSuchElementException();
+                }
+                String name = names.name(next);
+                next = advance(next + 1);
+                return name;
+            }
+        };
+    }
+
+    public Set<String> allowedUsers() {
+        return new NameSet(allowedUsers);
+    }
+
+    public Map<String, Set<String>> playerGroups() {
+        return playerGroupsView;
+    }
+
+    public Set<String> enabledGroups() {
+        return enabledGroups;
+    }
+
+    public boolean hasGroup(String groupName) {
+        return groups.containsKey(groupName);
+    }
+
+    public boolean isGroupEnabled(String groupName) {
+        return enabledGroups.contains(groupName);
+    }
+
+    Expiries expiries() {
+        return expiries;
+    }
+
+    /**
+     * @param groupName group to search, or {@code null} for every name on the allow list or in a group
+     * @param prefix    raw prefix, normalized like a username
+     * @return the matching names in sorted order, or {@code null} if the group does not exist
+     */
+    NameIndex.Match findNames(String groupName, String prefix) {
+        IdSet members = null;
+        if (groupName != null && (members = groups.get(groupName)) == null) {
+            return null;
+        }
+        return nameIndex().find(groupName, members, Names.normalizeUsername(prefix));
+    }
+
+    private NameIndex nameIndex() {
+        NameIndex index = nameIndex;
+        if (index == null) {
+            boolean[] referenced = new boolean[names.size()];
+            for (int i = 0; i < allowedUsers.size(); i++) {
+                referenced[allowedUsers.get(i)] = true;
+            }
+            for (IdSet members : groups.values()) {
+                for (int i = 0; i < members.size(); i++) {
+                    referenced[members.get(i)] = true;
+                }
+            }
+            index = new NameIndex(names, referenced);
+            nameIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Approximate heap use of the compiled structures in bytes, by structure, excluding object headers.
+     */
+    Map<String, Long> memoryUsage() {
+        long groupMembers = 0;
+        for (IdSet members : groups.values()) {
+            groupMembers += members.bytes();
+        }
+        Map<String, Long> usage = new LinkedHashMap<>();
+        usage.put("name arena", names.arenaBytes());
+        usage.put("name index", names.indexBytes());
+        usage.put("allowed users", allowedUsers.bytes());
+        usage.put("group members", groupMembers);
+        usage.put("grants", (long) grantProfiles.length * Integer.BYTES);
+        usage.put("offline UUID slots", (long) offlineUuids.length * Integer.BYTES);
+        usage.put("pattern automaton", patterns.bytes());
+        long scopeBytes = servers.bytes();
+        if (profileServers != null) {
+            for (long[] bits : profileServers) {
+                scopeBytes += bits == null ? 0 : (long) bits.length * Long.BYTES;
+            }
+        }
+        usage.put("server scopes", scopeBytes);
+        NameIndex index = nameIndex;
+        usage.put("completion index", index == null ? 0L : index.bytes());
+        return usage;
+    }
+
+    int nameCount() {
+        return names.size();
+    }
+
+    public PolicySnapshot withAllowedUsers(Set<String> users) {
+        NameArena.Builder builder = names.toBuilder();
+        IdSet ids = add(builder, users);
+        return compile(builder.build(), ids, groups, enabledGroups, expiries, servers);
+    }
+
+    public PolicySnapshot withMembersAdded(String groupName, Collection<String> members) {
+        return withMembersAdded(groupName, members, 0);
+    }
+
+    /**
+     * @param expiresAt when the members are removed again in epoch milliseconds, {@code 0} to add them permanently
+     */
+    public PolicySnapshot withMembersAdded(String groupName, Collection<String> members, long expiresAt) {
+        NameArena arena = names;
+        for (String member : members) {
+            if (names.find(member) == NameArena.MISSING) {
+                NameArena.Builder builder = names.toBuilder();
+                members.forEach(builder::add);
+                arena = builder.build();
+                break;
+            }
+        }
+
+        IdSet existing = groups.getOrDefault(groupName, IdSet.EMPTY);
+        int[] added = new int[members.size()];
+        int count = 0;
+        for (String member : members) {
+            int id = arena.find(member);
+            if (!existing.contains(id)) {
+                added[count++] = id;
+            }
+        }
+        Map<String, IdSet> updatedGroups = new HashMap<>(groups);
+        updatedGroups.put(groupName, existing.with(added, count));
+        Map<String, List<String>> updatedPatterns = groupPatterns;
+        if (members.stream().anyMatch(PatternMatcher::isPattern)) {
+            updatedPatterns = withGroupPatterns(arena, groupName, updatedGroups.get(groupName));
+        }
+
+        boolean enabled = enabledGroups.contains(groupName);
+        int[] updatedGrants = grantProfiles;
+        Grant.OfflineUuid[] updatedUuids = offlineUuids;
+        Profiles updatedProfiles = profiles;
+        if (arena != names || enabled) {
+            updatedGrants = Arrays.copyOf(grantProfiles, arena.size());
+        }
+        if (arena != names) {
+            updatedUuids = Arrays.copyOf(offlineUuids, arena.size());
+        }
+        if (enabled) {
+            updatedProfiles = new Profiles(profiles);
+            grantGroup(arena, updatedProfiles, updatedGrants, groupName, IdSet.of(added, count));
+        }
+        return new PolicySnapshot(arena, allowedUsers, Map.copyOf(updatedGroups), enabledGroups, updatedProfiles,
+                updatedGrants, updatedUuids, updatedPatterns,
+                PatternMatcher.compile(updatedPatterns, enabledGroups, patterns),
+                expiries.withMembers(groupName, members, expiresAt), servers);
+    }
+
+    public PolicySnapshot withMembersRemoved(String groupName, Collection<String> members) {
+        IdSet existing = groups.get(groupName);
+        if (existing == null) {
+            return this;
+        }
+        int[] ids = new int[members.size()];
+        int count = 0;
+        for (String member : members) {
+            int id = names.find(member);
+            if (id != NameArena.MISSING && existing.contains(id)) {
+                ids[count++] = id;
+            }
+        }
+        if (count == 0) {
+            return this;
+        }
+        IdSet removed = IdSet.of(ids, count);
+        Map<String, IdSet> updatedGroups = new HashMap<>(groups);
+        updatedGroups.put(groupName, existing.without(removed));
+        Map<String, List<String>> updatedPatterns = groupPatterns;
+        if (groupPatterns.containsKey(groupName)) {
+            updatedPatterns = withGroupPatterns(names, groupName, updatedGroups.get(groupName));
+        }
+        return withRevoked(groupName, removed, Map.copyOf(updatedGroups), enabledGroups, updatedPatterns,
+                expiries.withoutMembers(groupName, members), servers);
+    }
+
+    /**
+     * Removes the group and, if it was enabled, the access it granted.
+     */
+    public PolicySnapshot withoutGroup(String groupName) {
+        IdSet members = groups.get(groupName);
+        if (members == null) {
+            return this;
+        }
+        Map<String, IdSet> updatedGroups = new HashMap<>(groups);
+        updatedGroups.remove(groupName);
+        Set<String> updatedEnabled = enabledGroups;
+        if (enabledGroups.contains(groupName)) {
+            Set<String> remaining = new HashSet<>(enabledGroups);
+            remaining.remove(groupName);
+            updatedEnabled = Set.copyOf(remaining);
+        }
+        Map<String, List<String>> updatedPatterns = groupPatterns;
+        if (groupPatterns.containsKey(groupName)) {
+            updatedPatterns = withGroupPatterns(names, groupName, null);
+        }
+        return withRevoked(groupName, members, Map.copyOf(updatedGroups), updatedEnabled, updatedPatterns,
+                expiries.withoutGroup(groupName), servers.withoutGroup(groupName));
+    }
+
+    private PolicySnapshot withRevoked(String groupName, IdSet members, Map<String, IdSet> updatedGroups,
+                                       Set<String> updatedEnabled, Map<String, List<String>> updatedPatterns,
+                                       Expiries updatedExpiries, ServerScopes updatedServers) {
+        PatternMatcher updatedMatcher = PatternMatcher.compile(updatedPatterns, updatedEnabled, patterns);
+        if (!enabledGroups.contains(groupName)) {
+            return new PolicySnapshot(names, allowedUsers, updatedGroups, updatedEnabled, profiles, grantProfiles,
+                    offlineUuids, updatedPatterns, updatedMatcher, updatedExpiries, updatedServers);
+        }
+        int[] updatedGrants = grantProfiles.clone();
+        Profiles updatedProfiles = new Profiles(profiles);
+        revokeGroup(updatedProfiles, updatedGrants, groupName, members);
+        return new PolicySnapshot(names, allowedUsers, updatedGroups, updatedEnabled, updatedProfiles, updatedGrants,
+                offlineUuids, updatedPatterns, updatedMatcher, updatedExpiries, updatedServers);
+    }
+
+    /**
+     * @param members the group's new members, {@code null} if it is removed
+     */
+    private Map<String, List<String>> withGroupPatterns(NameArena arena, String groupName, IdSet members) {
+        Map<String, List<String>> updated = new HashMap<>(groupPatterns);
+        if (members == null) {
+            updated.remove(groupName);
+        } else {
+            putPatterns(updated, arena, groupName, members);
+        }
+        return Map.copyOf(updated);
+    }
+
+    public PolicySnapshot withGroupEnabled(String groupName, boolean enabled) {
+        return withGroupEnabled(groupName, enabled, 0);
+    }
+
+    /**
+     * @param expiresAt when an enabled group is disabled again in epoch milliseconds, {@code 0} for never
+     */
+    public PolicySnapshot withGroupEnabled(String groupName, boolean enabled, long expiresAt) {
+        IdSet members = groups.get(groupName);
+        Expiries updatedExpiries = expiries.withGroup(groupName, enabled ? expiresAt : 0);
+        if (members == null) {
+            return this;
+        }
+        if (enabledGroups.contains(groupName) == enabled) {
+            return updatedExpiries == expiries ? this : new PolicySnapshot(names, allowedUsers, groups, enabledGroups,
+                    profiles, grantProfiles, offlineUuids, groupPatterns, patterns, updatedExpiries, servers);
+        }
+        Set<String> updated = new HashSet<>(enabledGroups);
+        int[] updatedGrants = grantProfiles.clone();
+        Profiles updatedProfiles = new Profiles(profiles);
+        if (enabled) {
+            updated.add(groupName);
+            grantGroup(names, updatedProfiles, updatedGrants, groupName, members);
+        } else {
+            updated.remove(groupName);
+            revokeGroup(updatedProfiles, updatedGrants, groupName, members);
+        }
+        Set<String> updatedEnabled = Set.copyOf(updated);
+        return new PolicySnapshot(names, allowedUsers, groups, updatedEnabled, updatedProfiles, updatedGrants,
+                offlineUuids, groupPatterns, PatternMatcher.compile(groupPatterns, updatedEnabled, patterns),
+                updatedExpiries, servers);
+    }
+
+    public PolicySnapshot withGroupToggled(String groupName) {
+        return withGroupEnabled(groupName, !enabledGroups.contains(groupName));
+    }
+
+    /**
+     * @param serverScope normalized server names and patterns the group is limited to, empty for every server
+     */
+    public PolicySnapshot withGroupServers(String groupName, List<String> serverScope) {
+        ServerScopes updated = servers.withGroup(groupName, serverScope);
+        if (!groups.containsKey(groupName) || updated == servers) {
+            return this;
+        }
+        return withServers(updated);
+    }
+
+    /**
+     * @param serverNames the servers registered with the proxy, indexed up front so that scopes with patterns need no
+     *                    matching on connect
+     */
+    public PolicySnapshot withKnownServers(Collection<String> serverNames) {
+        ServerScopes updated = servers.withKnownServers(serverNames);
+        return updated == servers ? this : withServers(updated);
+    }
+
+    private PolicySnapshot withServers(ServerScopes updated) {
+        return new PolicySnapshot(names, allowedUsers, groups, enabledGroups, profiles, grantProfiles, offlineUuids,
+                groupPatterns, patterns, expiries, updated);
+    }
+
+    /**
+     * Interned {@link Grant.Profile}s; index 0 stands for "not granted". Never modified once a snapshot uses it.
+     */
+    private static final class Profiles {
+        private final List<Grant.Profile> byIndex;
+        private final Map<Grant.Profile, Integer> indexes;
+
+        Profiles() {
+            byIndex = new ArrayList<>();
+            byIndex.add(null);
+            indexes = new HashMap<>();
+        }
+
+        Profiles(Profiles source) {
+            byIndex = new ArrayList<>(source.byIndex);
+            indexes = new HashMap<>(source.indexes);
+        }
+
+        Grant.Profile get(int index) {
+            return byIndex.get(index);
+        }
+
+        int size() {
+            return byIndex.size();
+        }
+
+        int intern(Grant.Profile profile) {
+            if (profile == null) {
+                return 0;
+            }
+            return indexes.computeIfAbsent(profile, added -> {
+                byIndex.add(added);
+                return byIndex.size() - 1;
+            });
+        }
+    }
+
+    private final class NameSet extends AbstractSet<String> {
+        private final IdSet ids;
+
+        NameSet(IdSet ids) {
+            this.ids = ids;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof String name)) {
+                return false;
+            }
+            int id = names.find(name);
+            return id != NameArena.MISSING && ids.contains(id);
+        }
+
+        @Override
+        public int size() {
+            return ids.size();
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return new Iterator<>() {
+                private int index;
+
+                @Override
+                public boolean hasNext() {
+                    return index < ids.size();
+                }
+
+                @Override
+                public String next() {
+                    if (index >= ids.size()) {
+                        throw new NoSuchElementException();
+                    }
+                    return names.name(ids.get(index++));
+                }
+            };
+        }
+    }
+
+    private final class GroupsView extends AbstractMap<String, Set<String>> {
+        @Override
+        public Set<String> get(Object key) {
+            IdSet members = groups.get(key);
+            return members == null ? null : new NameSet(members);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return groups.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return groups.size();
+        }
+
+        @Override
+        public Set<Entry<String, Set<String>>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public int size() {
+                    return groups.size();
+                }
+
+                @Override
+                public Iterator<Entry<String, Set<String>>> iterator() {
+                    Iterator<Entry<String, IdSet>> entries = groups.entrySet().iterator();
+                    return new Iterator<>() {
+                        @Override
+                        public boolean hasNext() {
+                            return entries.hasNext();
+                        }
+
+                        @Override
+                        public Entry<String, Set<String>> next() {
+                            Entry<String, IdSet> entry = entries.next();
+                            return new SimpleImmutableEntry<>(entry.getKey(), new NameSet(entry.getValue()));
+                        }
+                    };
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.util.function.UnaryOperator;
+
+/**
+ * Holds the current {@link PolicySnapshot}. A snapshot is fully built before the volatile write that publishes it,
+ * so readers never see a partial update; writers are serialized, so login threads never wait on command threads.
+ */
+public final class PolicyStore {
+
+    private final Object writeLock = new Object();
+    private volatile PolicySnapshot current = PolicySnapshot.EMPTY;
+
+    public PolicySnapshot current() {
+        return current;
+    }
+
+    public boolean isUserAllowed(String username) {
+        return current.isAllowed(username);
+    }
+
+    /**
+     * Applies a copy-on-write change to the current snapshot and publishes the result.
+     *
+     * @return the published snapshot
+     */
+    public PolicySnapshot update(UnaryOperator<PolicySnapshot> change) {
+        synchronized (writeLock) {
+            PolicySnapshot next = change.apply(current);
+            current = next;
+            return next;
+        }
+    }
+
+    public void publish(PolicySnapshot snapshot) {
+        synchronized (writeLock) {
+            current = snapshot;
+        }
+    }
+}
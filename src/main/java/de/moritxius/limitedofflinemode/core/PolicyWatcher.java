@@ -0,0 +1,120 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Watches the data directory and reloads the policy after {@code allowed-users.txt} or {@code player-groups.txt}
+ * were edited. Bursts of events (editors often write a file several times) are debounced into one reload, which runs
+ * on the watcher's own thread, never on a login or command thread.
+ */
+final class PolicyWatcher implements AutoCloseable {
+
+    static final long DEBOUNCE_MILLIS = 500;
+    private static final Set<String> WATCHED_FILES = Set.of(PolicyFiles.ALLOWED_USERS_FILE, PolicyFiles.PLAYER_GROUPS_FILE);
+
+    private final Path dataDirectory;
+    private final Runnable reload;
+    private final PolicyLogger logger;
+    private final ScheduledExecutorService executor;
+    private WatchService watchService;
+    private Thread pollThread;
+    private ScheduledFuture<?> pendingReload;
+
+    PolicyWatcher(Path dataDirectory, Runnable reload, PolicyLogger logger) {
+        this.dataDirectory = dataDirectory;
+        this.reload = reload;
+        this.logger = logger;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "LimitedOfflineMode-reload");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void start() {
+        try {
+            watchService = dataDirectory.getFileSystem().newWatchService();
+            dataDirectory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            logger.error("Failed to watch " + dataDirectory + " for changes, use /lomgroup reload instead", e);
+            return;
+        }
+        pollThread = new Thread(this::poll, "LimitedOfflineMode-watcher");
+        pollThread.setDaemon(true);
+        pollThread.start();
+    }
+
+    private void poll() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean relevant = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.context() instanceof Path changed && WATCHED_FILES.contains(changed.getFileName().toString())) {
+                        relevant = true;
+                    }
+                }
+                if (relevant) {
+                    scheduleReload();
+                }
+                if (!key.reset()) {
+                    logger.warn("Stopped watching " + dataDirectory + ", use /lomgroup reload after editing files");
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // shutting down
+        }
+    }
+
+    private synchronized void scheduleReload() {
+        if (pendingReload != null) {
+            pendingReload.cancel(false);
+        }
+        pendingReload = executor.schedule(this::runReload, DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs {@code task} on the reload thread, after any reload already in progress.
+     */
+    <T> CompletableFuture<T> submit(Supplier<T> task) {
+        return CompletableFuture.supplyAsync(task, executor);
+    }
+
+    private void runReload() {
+        try {
+            reload.run();
+        } catch (RuntimeException e) {
+            logger.error("Failed to reload policy", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ignored) {
+                // nothing left to release
+            }
+        }
+        if (pollThread != null) {
+            pollThread.interrupt();
+        }
+    }
+}
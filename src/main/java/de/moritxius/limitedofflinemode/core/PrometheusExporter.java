@@ -0,0 +1,122 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Renders {@link LoginMetrics} in the Prometheus text exposition format and writes it atomically to a file, for
+ * node_exporter's textfile collector or similar.
+ */
+final class PrometheusExporter {
+
+    private static final String PREFIX = "limitedofflinemode_";
+
+    private final Path target;
+    private final LimitedOfflineModeCore core;
+    private final LoginMetrics metrics;
+    private final PolicyStore policy;
+    private final Replicator replication;
+    private final PolicyLogger logger;
+
+    PrometheusExporter(Path target, LimitedOfflineModeCore core, PolicyLogger logger) {
+        this.target = target;
+        this.core = core;
+        this.metrics = core.metrics();
+        this.policy = core.policy();
+        this.replication = core.replication();
+        this.logger = logger;
+    }
+
+    void write() {
+        Path tempPath = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            Files.writeString(tempPath, render(), StandardCharsets.UTF_8);
+            PolicyFiles.moveAtomically(tempPath, target);
+        } catch (IOException e) {
+            logger.error("Failed to write metrics to " + target, e);
+        }
+    }
+
+    String render() {
+        StringBuilder out = new StringBuilder(2048);
+        out.append("# TYPE ").append(PREFIX).append("logins_total counter\n");
+        counter(out, "logins_total", "decision=\"offline\"", metrics.offlineGranted());
+        counter(out, "logins_total", "decision=\"passthrough\"", metrics.passthrough());
+
+        out.append("# TYPE ").append(PREFIX).append("allowlist_hits_total counter\n");
+        out.append(PREFIX).append("allowlist_hits_total ").append(metrics.allowListHits()).append('\n');
+        out.append("# TYPE ").append(PREFIX).append("group_hits_total counter\n");
+        for (Map.Entry<String, Long> hits : new TreeMap<>(metrics.groupHits()).entrySet()) {
+            counter(out, "group_hits_total", "group=\"" + escape(hits.getKey()) + "\"", hits.getValue());
+        }
+
+        PolicySnapshot snapshot = policy.current();
+        out.append("# TYPE ").append(PREFIX).append("offline_players gauge\n");
+        out.append(PREFIX).append("offline_players ").append(snapshot.grantedUserCount()).append('\n');
+        out.append("# TYPE ").append(PREFIX).append("enabled_groups gauge\n");
+        out.append(PREFIX).append("enabled_groups ").append(snapshot.enabledGroups().size()).append('\n');
+
+        summary(out, "prelogin_seconds", metrics.preLogin());
+        summary(out, "game_profile_request_seconds", metrics.gameProfileRequest());
+        summary(out, "postlogin_seconds", metrics.postLogin());
+        summary(out, "reload_seconds", metrics.reload());
+        summary(out, "save_seconds", metrics.save());
+
+        LoginThrottle throttle = core.throttle();
+        if (throttle != null) {
+            out.append("# TYPE ").append(PREFIX).append("offline_logins_throttled_total counter\n");
+            out.append(PREFIX).append("offline_logins_throttled_total ").append(throttle.throttled()).append('\n');
+            out.append("# TYPE ").append(PREFIX).append("throttle_tracked_addresses gauge\n");
+            out.append(PREFIX).append("throttle_tracked_addresses ").append(throttle.trackedAddresses()).append('\n');
+        }
+
+        LookupCache cache = core.allowlistCache();
+        if (cache != null) {
+            out.append("# TYPE ").append(PREFIX).append("allowlist_cache_requests_total counter\n");
+            counter(out, "allowlist_cache_requests_total", "result=\"hit\"", cache.hits());
+            counter(out, "allowlist_cache_requests_total", "result=\"miss\"", cache.misses());
+            counter(out, "allowlist_cache_requests_total", "result=\"rejected\"", cache.rejected());
+            out.append("# TYPE ").append(PREFIX).append("allowlist_cache_entries gauge\n");
+            out.append(PREFIX).append("allowlist_cache_entries ").append(cache.size()).append('\n');
+        }
+
+        if (replication.enabled()) {
+            out.append("# TYPE ").append(PREFIX).append("replication_changes_behind gauge\n");
+            replication.peers().forEach((origin, peer) -> out.append(PREFIX).append("replication_changes_behind{origin=\"")
+                    .append(escape(origin)).append("\"} ").append(peer.behind()).append('\n'));
+            summary(out, "replication_delay_seconds", replication.delay());
+        }
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, String labels, long value) {
+        out.append(PREFIX).append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder out, String name, LatencyHistogram histogram) {
+        LatencyHistogram.Summary summary = histogram.summary();
+        out.append("# TYPE ").append(PREFIX).append(name).append(" summary\n");
+        quantile(out, name, "0.5", summary.p50());
+        quantile(out, name, "0.9", summary.p90());
+        quantile(out, name, "0.99", summary.p99());
+        out.append(PREFIX).append(name).append("_sum ").append(seconds(summary.sum())).append('\n');
+        out.append(PREFIX).append(name).append("_count ").append(summary.count()).append('\n');
+    }
+
+    private static void quantile(StringBuilder out, String name, String quantile, long nanos) {
+        out.append(PREFIX).append(name).append("{quantile=\"").append(quantile).append("\"} ").append(seconds(nanos)).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
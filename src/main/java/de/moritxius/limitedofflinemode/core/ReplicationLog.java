@@ -0,0 +1,285 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * This proxy's own group changes, numbered without gaps, in {@code replication.log}. A change only becomes visible to
+ * {@link #after(long, int)} once {@link #flush()} has forced it to disk, so a number handed out is never reused for a
+ * different change after a crash. The epoch changes whenever the log starts over, so receivers never mistake numbers
+ * of a new log for ones they have already applied.
+ */
+final class ReplicationLog {
+
+    static final String LOG_FILE = "replication.log";
+    private static final String HEADER = "# node ";
+
+    private final Path path;
+    private final PolicyLogger logger;
+    private final int retained;
+    // contiguous: entries.get(i).seq() == base + 1 + i
+    private final List<Entry> entries = new ArrayList<>();
+    private String nodeId;
+    private String epoch;
+    private long base;
+    private long durable;
+    private long last;
+    private int fileEntries;
+
+    ReplicationLog(Path path, int retained, PolicyLogger logger) {
+        this.path = path;
+        this.retained = retained;
+        this.logger = logger;
+    }
+
+    /**
+     * @param seq    position in the origin's log, starting at 1
+     * @param millis when the change was applied on its origin
+     */
+    record Entry(long seq, long millis, String mutation) {
+
+        String encode() {
+            return seq + "|" + millis + "|" + mutation;
+        }
+
+        /**
+         * @return the entry, or {@code null} if the line is not one
+         */
+        static Entry decode(String line) {
+            int first = line.indexOf('|');
+            int second = first < 0 ? -1 : line.indexOf('|', first + 1);
+            if (second < 0) {
+                return null;
+            }
+            try {
+                return new Entry(Long.parseLong(line.substring(0, first)), Long.parseLong(line.substring(first + 1, second)),
+                        line.substring(second + 1));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * The {@code # node <id> epoch <epoch> base <seq>} line that starts a log file.
+     */
+    record Header(String nodeId, String epoch, long base) {
+
+        String encode() {
+            return HEADER + nodeId + " epoch " + epoch + " base " + base;
+        }
+
+        /**
+         * @return the header, or {@code null} if the line is not one
+         */
+        static Header decode(String line) {
+            if (line == null || !line.startsWith(HEADER)) {
+                return null;
+            }
+            String[] parts = line.substring(2).split(" ");
+            if (parts.length != 6 || !"epoch".equals(parts[2]) || !"base".equals(parts[4])) {
+                return null;
+            }
+            try {
+                return new Header(parts[1], parts[3], Long.parseLong(parts[5]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Reads the existing log, or starts a new one if there is none, it is unreadable or it belongs to another node ID.
+     *
+     * @param configuredNodeId the node ID from the settings, empty to keep the one in the log or generate one
+     */
+    synchronized void open(String configuredNodeId) {
+        if (Files.exists(path)) {
+            try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                Header header = Header.decode(reader.readLine());
+                if (header != null && (configuredNodeId.isEmpty() || configuredNodeId.equals(header.nodeId()))) {
+                    nodeId = header.nodeId();
+                    epoch = header.epoch();
+                    base = header.base();
+                    last = base;
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        Entry entry = Entry.decode(line);
+                        if (entry == null || entry.seq() != last + 1) {
+                            // a torn last line after a crash; everything before it was forced to disk
+                            break;
+                        }
+                        add(entry);
+                        fileEntries++;
+                    }
+                    durable = last;
+                    rewrite();
+                    return;
+                }
+                if (header != null) {
+                    logger.info("Node ID changed from " + header.nodeId() + " to " + configuredNodeId
+                            + ", starting a new " + LOG_FILE);
+                }
+            } catch (IOException e) {
+                logger.error("Failed to read " + LOG_FILE + ", starting a new one", e);
+            }
+        }
+        nodeId = configuredNodeId.isEmpty() ? "node-" + randomId(4) : configuredNodeId;
+        epoch = randomId(8);
+        base = 0;
+        last = 0;
+        durable = 0;
+        entries.clear();
+        try {
+            rewrite();
+        } catch (IOException e) {
+            logger.error("Failed to create " + LOG_FILE, e);
+        }
+    }
+
+    private static String randomId(int bytes) {
+        byte[] random = new byte[bytes];
+        new SecureRandom().nextBytes(random);
+        return HexFormat.of().formatHex(random);
+    }
+
+    String nodeId() {
+        return nodeId;
+    }
+
+    String epoch() {
+        return epoch;
+    }
+
+    synchronized Header header() {
+        return new Header(nodeId, epoch, base);
+    }
+
+    /**
+     * Numbers an applied change. It is sent to other proxies after the next {@link #flush()}.
+     *
+     * @return the change's sequence number
+     */
+    synchronized long append(String mutation) {
+        add(new Entry(last + 1, System.currentTimeMillis(), mutation));
+        return last;
+    }
+
+    private void add(Entry entry) {
+        entries.add(entry);
+        last = entry.seq();
+    }
+
+    /**
+     * Forces appended changes to disk and wakes up everyone waiting in {@link #awaitAfter(long, int, long)}. Trims
+     * the file once it holds twice the retained changes.
+     */
+    synchronized void flush() throws IOException {
+        if (durable == last) {
+            return;
+        }
+        StringBuilder lines = new StringBuilder();
+        for (Entry entry : entries.subList((int) (durable - base), entries.size())) {
+            lines.append(entry.encode()).append('\n');
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        fileEntries += (int) (last - durable);
+        durable = last;
+        if (fileEntries >= 2 * retained) {
+            rewrite();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Drops all but the retained changes and writes the log again, atomically.
+     */
+    private void rewrite() throws IOException {
+        if (entries.size() > retained) {
+            int trimmed = entries.size() - retained;
+            base = entries.get(trimmed - 1).seq();
+            entries.subList(0, trimmed).clear();
+        }
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             Writer writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8))) {
+            writeTo(writer);
+            writer.flush();
+            channel.force(true);
+        }
+        PolicyFiles.moveAtomically(tempPath, path);
+        fileEntries = entries.size();
+    }
+
+    /**
+     * Writes the header and every durable retained change in the log file format.
+     *
+     * @return the sequence number of the last change written
+     */
+    synchronized long writeTo(Writer writer) throws IOException {
+        writer.write(header().encode());
+        writer.write('\n');
+        for (Entry entry : entries.subList(0, (int) (durable - base))) {
+            writer.write(entry.encode());
+            writer.write('\n');
+        }
+        return durable;
+    }
+
+    /**
+     * @return the sequence number of the last change on disk
+     */
+    synchronized long durable() {
+        return durable;
+    }
+
+    /**
+     * @return the sequence number before the oldest retained change
+     */
+    synchronized long base() {
+        return base;
+    }
+
+    /**
+     * @return up to {@code max} durable changes after {@code seq}, or {@code null} if some of them were trimmed
+     */
+    synchronized List<Entry> after(long seq, int max) {
+        if (seq < base) {
+            return null;
+        }
+        int from = (int) (seq - base);
+        int to = (int) Math.min(durable - base, (long) from + max);
+        return from >= to ? List.of() : List.copyOf(entries.subList(from, to));
+    }
+
+    /**
+     * Like {@link #after(long, int)}, but waits up to {@code timeoutMillis} for a change if there is none yet.
+     */
+    synchronized List<Entry> awaitAfter(long seq, int max, long timeoutMillis) throws InterruptedException {
+        if (durable <= seq && seq >= base) {
+            wait(timeoutMillis);
+        }
+        return after(seq, max);
+    }
+}
@@ -0,0 +1,20 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.io.IOException;
+
+/**
+ * Moves {@link ReplicationLog} entries between proxies: publishes this proxy's log and pulls the other proxies' logs
+ * into {@link Replicator#receive}, falling back to {@link Replicator#install} for a proxy that is too far behind.
+ */
+interface ReplicationTransport extends AutoCloseable {
+
+    void start() throws IOException;
+
+    /**
+     * Pulls the origin's log again from the position the {@link Replicator} has now, which moved back.
+     */
+    void resync(String origin);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,454 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the groups of several proxies in sync: each proxy's {@link ReplicationLog} is pulled by the others and its
+ * changes are applied as ordinary {@link PolicyMutation}s.
+ * <p>
+ * The position of the last applied change per origin is written to {@code replication.state} only after the changes
+ * themselves were persisted; mutations are idempotent, so applying one twice after a crash is harmless. Concurrent
+ * changes to the same group on two proxies may end up in a different order on each.
+ */
+final class Replicator implements AutoCloseable {
+
+    static final String STATE_FILE = "replication.state";
+    static final String POSITION_PREFIX = "# position ";
+    private static final long STATE_SAVE_MILLIS = 1000;
+
+    private final LimitedOfflineModeCore core;
+    private final Path dataDirectory;
+    private final PolicyLogger logger;
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private final List<ReplicationTransport> transports = new ArrayList<>();
+    private final LatencyHistogram delay = new LatencyHistogram();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean positionsChanged = new AtomicBoolean();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong snapshotsInstalled = new AtomicLong();
+    private ScheduledExecutorService executor;
+    private ReplicationLog log;
+    private long batchMillis;
+    private volatile boolean enabled;
+
+    Replicator(LimitedOfflineModeCore core, Path dataDirectory, PolicyLogger logger) {
+        this.core = core;
+        this.dataDirectory = dataDirectory;
+        this.logger = logger;
+    }
+
+    /**
+     * Where a proxy is in an origin's log.
+     */
+    record Position(String epoch, long seq) {
+    }
+
+    /**
+     * What this proxy knows about another one.
+     *
+     * @param head             the origin's last change this proxy has heard of
+     * @param lastDelayMillis  time between the last applied change being made on its origin and applied here
+     * @param lastContactMillis when the origin was last heard from, {@code 0} for never
+     */
+    record PeerStatus(long applied, long head, long lastDelayMillis, long lastContactMillis) {
+        long behind() {
+            return Math.max(0, head - applied);
+        }
+    }
+
+    private static final class Peer {
+        volatile Position position;
+        volatile long head;
+        volatile long lastDelayMillis;
+        volatile long lastContactMillis;
+    }
+
+    /**
+     * Opens the log and starts the configured transports; does nothing if no transport is configured.
+     */
+    void start(PluginSettings settings) {
+        String directory = settings.string("replication.directory", "");
+        String listen = settings.string("replication.listen", "");
+        String peerList = settings.string("replication.peers", "");
+        if (directory.isEmpty() && listen.isEmpty() && peerList.isEmpty()) {
+            return;
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "LimitedOfflineMode-replication");
+            thread.setDaemon(true);
+            return thread;
+        });
+        batchMillis = Math.max(0, settings.number("replication.batch-millis", 50));
+        int retained = (int) Math.max(100, Math.min(1_000_000, settings.number("replication.retained-changes", 10_000)));
+        log = new ReplicationLog(dataDirectory.resolve(ReplicationLog.LOG_FILE), retained, logger);
+        log.open(settings.string("replication.node-id", ""));
+        loadPositions();
+
+        if (!directory.isEmpty()) {
+            long pollMillis = Math.max(50, settings.number("replication.poll-millis", 500));
+            transports.add(new DirectoryTransport(dataDirectory.resolve(directory), this, log, executor, pollMillis,
+                    logger));
+        }
+        if (!listen.isEmpty() || !peerList.isEmpty()) {
+            String secret = settings.string("replication.secret", "");
+            if (secret.isEmpty()) {
+                logger.warn("replication.secret is not set, TCP replication stays disabled");
+            } else {
+                try {
+                    List<InetSocketAddress> peerAddresses = new ArrayList<>();
+                    for (String peer : peerList.split(",")) {
+                        if (!peer.isBlank()) {
+                            peerAddresses.add(TcpTransport.address(peer.trim()));
+                        }
+                    }
+                    int maxConnections = (int) Math.max(1, Math.min(1000,
+                            settings.number("replication.max-connections", 16)));
+                    transports.add(new TcpTransport(listen.isEmpty() ? null : TcpTransport.address(listen),
+                            peerAddresses, secret, maxConnections, this, log, logger));
+                } catch (IllegalArgumentException e) {
+                    logger.warn("Invalid replication address, TCP replication stays disabled: " + e.getMessage());
+                }
+            }
+        }
+        for (ReplicationTransport transport : transports) {
+            try {
+                transport.start();
+            } catch (IOException e) {
+                logger.error("Failed to start " + transport, e);
+            }
+        }
+        executor.scheduleWithFixedDelay(this::savePositionsIfChanged, STATE_SAVE_MILLIS, STATE_SAVE_MILLIS,
+                TimeUnit.MILLISECONDS);
+        enabled = true;
+        logger.info("Replicating group changes as node " + log.nodeId() + " via " + transports);
+    }
+
+    boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * Appends a change applied on this proxy to the log. The first change of a burst schedules the flush that makes
+     * the burst visible to the other proxies. Callers hold the core lock, so the log order is the apply order.
+     */
+    void record(PolicyMutation mutation) {
+        if (!enabled) {
+            return;
+        }
+        log.append(mutation.encode());
+        if (flushScheduled.compareAndSet(false, true)) {
+            try {
+                executor.schedule(this::flushLog, batchMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                flushLog();
+            }
+        }
+    }
+
+    private void flushLog() {
+        flushScheduled.set(false);
+        try {
+            log.flush();
+        } catch (IOException e) {
+            logger.error("Failed to write " + ReplicationLog.LOG_FILE, e);
+        }
+    }
+
+    /**
+     * @return how far this proxy has applied the origin's log, or {@code null} if it has applied nothing of it
+     */
+    Position position(String origin) {
+        Peer peer = peers.get(origin);
+        return peer == null ? null : peer.position;
+    }
+
+    /**
+     * Applies changes pulled from an origin's log, skipping those already applied.
+     *
+     * @param epoch   epoch of the origin's log
+     * @param entries consecutive changes in log order
+     * @return {@code false} if the changes do not continue where this proxy is, so it has to catch up differently
+     */
+    boolean receive(String origin, String epoch, List<ReplicationLog.Entry> entries) {
+        Peer peer = peers.computeIfAbsent(origin, ignored -> new Peer());
+        long now = System.currentTimeMillis();
+        boolean continuous = true;
+        synchronized (core) {
+            Position position = peer.position;
+            long seq = position != null && position.epoch().equals(epoch) ? position.seq() : 0;
+            long applied = seq;
+            for (ReplicationLog.Entry entry : entries) {
+                if (entry.seq() <= seq) {
+                    continue;
+                }
+                if (entry.seq() != seq + 1) {
+                    continuous = false;
+                    break;
+                }
+                PolicyMutation mutation = PolicyMutation.decode(entry.mutation());
+                if (mutation == null) {
+                    logger.warn("Skipping invalid change #" + entry.seq() + " from " + origin + ": " + entry.mutation());
+                } else {
+                    core.applyReplicated(mutation);
+                }
+                seq = entry.seq();
+                long delayMillis = Math.max(0, now - entry.millis());
+                delay.record(TimeUnit.MILLISECONDS.toNanos(delayMillis));
+                peer.lastDelayMillis = delayMillis;
+            }
+            if (seq != applied) {
+                peer.position = new Position(epoch, seq);
+                received.addAndGet(seq - applied);
+                positionsChanged.set(true);
+            }
+        }
+        peer.head = Math.max(peer.head, seq(peer));
+        peer.lastContactMillis = now;
+        return continuous;
+    }
+
+    private static long seq(Peer peer) {
+        Position position = peer.position;
+        return position == null ? 0 : position.seq();
+    }
+
+    /**
+     * Records the last change an origin has, for the lag metrics.
+     */
+    void observeHead(String origin, String epoch, long seq) {
+        Peer peer = peers.computeIfAbsent(origin, ignored -> new Peer());
+        Position position = peer.position;
+        peer.head = position == null || position.epoch().equals(epoch) ? seq : Math.max(seq, seq(peer));
+        peer.lastContactMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Writes this proxy's groups and the position of every origin they include, see {@link #install}.
+     *
+     * @return the position in this proxy's own log the snapshot includes
+     */
+    long writeSnapshot(Writer writer) throws IOException {
+        PolicySnapshot snapshot;
+        Map<String, Position> positions = new TreeMap<>();
+        synchronized (core) {
+            log.flush();
+            snapshot = core.policy().current();
+            peers.forEach((origin, peer) -> {
+                Position position = peer.position;
+                if (position != null) {
+                    positions.put(origin, position);
+                }
+            });
+            positions.put(log.nodeId(), new Position(log.epoch(), log.durable()));
+        }
+        for (Map.Entry<String, Position> position : positions.entrySet()) {
+            writer.write(POSITION_PREFIX + position.getKey() + " " + position.getValue().epoch() + " "
+                    + position.getValue().seq() + "\n");
+        }
+        PolicyFiles.writePlayerGroups(writer, snapshot);
+        return positions.get(log.nodeId()).seq();
+    }
+
+    /**
+     * Replaces this proxy's groups with a snapshot written by {@link #writeSnapshot} on {@code origin}. Changes made
+     * here that the snapshot does not include yet are applied on top again. Positions in other origins' logs are
+     * taken from the snapshot; where that moves one back, the transports pull that origin again from there.
+     */
+    void install(String origin, List<String> lines) {
+        Map<String, Position> positions = new HashMap<>();
+        Map<String, Set<String>> groups = new HashMap<>();
+        Set<String> enabledGroups = new HashSet<>();
+        Expiries.Builder expiries = new Expiries.Builder();
+        Map<String, List<String>> groupServers = new HashMap<>();
+        for (String line : lines) {
+            if (line.startsWith(POSITION_PREFIX)) {
+                String[] parts = line.substring(POSITION_PREFIX.length()).split(" ");
+                if (parts.length == 3) {
+                    positions.put(parts[0], new Position(parts[1], Long.parseLong(parts[2])));
+                }
+            } else {
+                PolicyParser.parseGroupLine(line, groups, enabledGroups, expiries, groupServers, logger);
+            }
+        }
+        if (!positions.containsKey(origin)) {
+            logger.warn("Ignoring snapshot from " + origin + " without its own position");
+            return;
+        }
+
+        List<String> rewound = new ArrayList<>();
+        synchronized (core) {
+            PolicySnapshot current = core.policy().current();
+            PolicySnapshot installed = PolicySnapshot.of(current.allowedUsers(), groups, enabledGroups,
+                    expiries.build(), groupServers).withKnownServers(core.knownServers());
+            try {
+                log.flush();
+            } catch (IOException e) {
+                logger.error("Failed to write " + ReplicationLog.LOG_FILE, e);
+            }
+            Position own = positions.get(log.nodeId());
+            List<ReplicationLog.Entry> unseen = log.after(own != null && own.epoch().equals(log.epoch()) ? own.seq() : 0,
+                    Integer.MAX_VALUE);
+            if (unseen == null) {
+                logger.warn("Snapshot from " + origin + " misses changes of this proxy that are no longer retained");
+                unseen = log.after(log.base(), Integer.MAX_VALUE);
+            }
+            for (ReplicationLog.Entry entry : unseen) {
+                PolicyMutation mutation = PolicyMutation.decode(entry.mutation());
+                if (mutation != null) {
+                    installed = mutation.applyTo(installed);
+                }
+            }
+            PolicyDiff diff = PolicyDiff.between(current, installed);
+            core.installReplicated(installed);
+
+            Set<String> origins = new HashSet<>(peers.keySet());
+            origins.addAll(positions.keySet());
+            origins.remove(log.nodeId());
+            for (String other : origins) {
+                Peer peer = peers.computeIfAbsent(other, ignored -> new Peer());
+                Position before = peer.position;
+                Position after = positions.get(other);
+                peer.position = after;
+                if (before != null && (after == null || !after.epoch().equals(before.epoch())
+                        || after.seq() < before.seq()) && !other.equals(origin)) {
+                    rewound.add(other);
+                }
+            }
+            Peer source = peers.get(origin);
+            source.head = Math.max(source.head, positions.get(origin).seq());
+            source.lastContactMillis = System.currentTimeMillis();
+            positionsChanged.set(true);
+            snapshotsInstalled.incrementAndGet();
+            logger.info("Caught up from a snapshot of " + origin + ": " + LimitedOfflineModeCore.describe(diff));
+        }
+        for (String other : rewound) {
+            transports.forEach(transport -> transport.resync(other));
+        }
+    }
+
+    private void loadPositions() {
+        Path path = dataDirectory.resolve(STATE_FILE);
+        if (!Files.exists(path)) {
+            return;
+        }
+        try {
+            for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                String[] parts = line.trim().split(" ");
+                if (parts.length == 3 && !line.startsWith("#")) {
+                    Peer peer = peers.computeIfAbsent(parts[0], ignored -> new Peer());
+                    peer.position = new Position(parts[1], Long.parseLong(parts[2]));
+                    peer.head = peer.position.seq();
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            logger.error("Failed to read " + STATE_FILE + ", pulling every log from the start", e);
+            peers.clear();
+        }
+    }
+
+    private void savePositionsIfChanged() {
+        if (positionsChanged.getAndSet(false)) {
+            // the applied changes must be on disk before the positions that skip them
+            core.persister().afterFlush(() -> {
+                savePositions();
+                return null;
+            });
+        }
+    }
+
+    private void savePositions() {
+        Path path = dataDirectory.resolve(STATE_FILE);
+        Path tempPath = dataDirectory.resolve(STATE_FILE + ".tmp");
+        try (Writer writer = new BufferedWriter(Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8))) {
+            writer.write("# origin epoch seq: last change applied from each proxy\n");
+            for (Map.Entry<String, Peer> peer : new TreeMap<>(peers).entrySet()) {
+                Position position = peer.getValue().position;
+                if (position != null) {
+                    writer.write(peer.getKey() + " " + position.epoch() + " " + position.seq() + "\n");
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Failed to write " + STATE_FILE, e);
+            return;
+        }
+        try {
+            PolicyFiles.moveAtomically(tempPath, path);
+        } catch (IOException e) {
+            logger.error("Failed to replace " + STATE_FILE, e);
+        }
+    }
+
+    String nodeId() {
+        return log.nodeId();
+    }
+
+    /**
+     * @return the last change of this proxy visible to the others
+     */
+    long sent() {
+        return log.durable();
+    }
+
+    long received() {
+        return received.get();
+    }
+
+    long snapshotsInstalled() {
+        return snapshotsInstalled.get();
+    }
+
+    /**
+     * @return time between a change being made on its origin and being applied here; includes clock skew
+     */
+    LatencyHistogram delay() {
+        return delay;
+    }
+
+    Map<String, PeerStatus> peers() {
+        Map<String, PeerStatus> status = new TreeMap<>();
+        peers.forEach((origin, peer) -> status.put(origin,
+                new PeerStatus(seq(peer), Math.max(peer.head, seq(peer)), peer.lastDelayMillis, peer.lastContactMillis)));
+        return status;
+    }
+
+    /**
+     * Stops the transports and makes the last changes and positions durable. Call before the persister is closed.
+     */
+    @Override
+    public void close() {
+        if (!enabled) {
+            return;
+        }
+        enabled = false;
+        executor.shutdownNow();
+        flushLog();
+        for (ReplicationTransport transport : transports) {
+            transport.close();
+        }
+        core.persister().afterFlush(() -> {
+            savePositions();
+            return null;
+        });
+    }
+}
@@ -0,0 +1,238 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Backend servers that groups are limited to, e.g. {@code staging-*,test-lobby}. Groups without a scope, and the
+ * allow list, may join every server. Servers known when compiling are checked with one bit test; others are matched
+ * against the scopes directly.
+ */
+final class ServerScopes {
+
+    static final ServerScopes NONE = new ServerScopes(Map.of(), Set.of());
+
+    private final Map<String, List<String>> groupServers;
+    private final Set<String> knownServers;
+    private final Map<String, Integer> indexes;
+    private final Map<String, long[]> groupBits;
+
+    private ServerScopes(Map<String, List<String>> groupServers, Set<String> knownServers) {
+        this.groupServers = groupServers;
+        this.knownServers = knownServers;
+        Set<String> servers = new TreeSet<>(knownServers);
+        groupServers.values().forEach(entries -> entries.stream().filter(entry -> !isPattern(entry)).forEach(servers::add));
+        Map<String, Integer> indexed = new HashMap<>();
+        for (String server : servers) {
+            indexed.put(server, indexed.size());
+        }
+        this.indexes = Map.copyOf(indexed);
+        Map<String, long[]> bits = new HashMap<>();
+        groupServers.forEach((groupName, entries) -> {
+            long[] allowed = new long[(indexed.size() + 63) >>> 6];
+            indexed.forEach((server, index) -> {
+                if (matchesAny(entries, server)) {
+                    allowed[index >>> 6] |= 1L << index;
+                }
+            });
+            bits.put(groupName, allowed);
+        });
+        this.groupBits = Map.copyOf(bits);
+    }
+
+    /**
+     * @param groupServers scope entries of every scoped group, already normalized
+     */
+    static ServerScopes of(Map<String, List<String>> groupServers) {
+        return groupServers.isEmpty() ? NONE : new ServerScopes(Map.copyOf(groupServers), Set.of());
+    }
+
+    /**
+     * @return whether any group is scoped; if not, every grant allows every server
+     */
+    boolean isEmpty() {
+        return groupServers.isEmpty();
+    }
+
+    /**
+     * @return the scope entries of the group, or {@code null} if it may join every server
+     */
+    List<String> servers(String groupName) {
+        return groupServers.get(groupName);
+    }
+
+    Map<String, List<String>> groups() {
+        return groupServers;
+    }
+
+    Set<String> knownServers() {
+        return knownServers;
+    }
+
+    /**
+     * @param servers normalized scope entries; empty to allow every server again
+     */
+    ServerScopes withGroup(String groupName, List<String> servers) {
+        if (servers.equals(groupServers.getOrDefault(groupName, List.of()))) {
+            return this;
+        }
+        Map<String, List<String>> updated = new HashMap<>(groupServers);
+        if (servers.isEmpty()) {
+            updated.remove(groupName);
+        } else {
+            updated.put(groupName, List.copyOf(servers));
+        }
+        return new ServerScopes(Map.copyOf(updated), knownServers);
+    }
+
+    ServerScopes withoutGroup(String groupName) {
+        return withGroup(groupName, List.of());
+    }
+
+    /**
+     * @param servers names of the servers registered with the proxy, so they get an index even if only patterns
+     *                refer to them
+     */
+    ServerScopes withKnownServers(Collection<String> servers) {
+        Set<String> normalized = new TreeSet<>();
+        for (String server : servers) {
+            normalized.add(Names.normalizeServerName(server));
+        }
+        return normalized.equals(knownServers) ? this : new ServerScopes(groupServers, Set.copyOf(normalized));
+    }
+
+    /**
+     * @param serverName server name as registered with the proxy; only normalized first if it is not already
+     * @return the server's index, or {@code -1} if it was not known when the scopes were compiled
+     */
+    int index(String serverName) {
+        Integer index = indexes.get(serverName);
+        if (index == null && !isNormalized(serverName)) {
+            index = indexes.get(Names.normalizeServerName(serverName));
+        }
+        return index == null ? -1 : index;
+    }
+
+    private static boolean isNormalized(String serverName) {
+        int last = serverName.length() - 1;
+        if (last >= 0 && (serverName.charAt(0) <= ' ' || serverName.charAt(last) <= ' ')) {
+            return false;
+        }
+        for (int i = 0; i <= last; i++) {
+            char c = serverName.charAt(i);
+            if ((c >= 'A' && c <= 'Z') || c >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the servers {@code profile} allows as a bitset over {@link #index(String)}, or {@code null} for all
+     */
+    long[] bits(Grant.Profile profile) {
+        if (profile.allowListed()) {
+            return null;
+        }
+        long[] allowed = new long[(indexes.size() + 63) >>> 6];
+        for (String groupName : profile.groups()) {
+            long[] group = groupBits.get(groupName);
+            if (group == null) {
+                return null;
+            }
+            for (int i = 0; i < allowed.length; i++) {
+                allowed[i] |= group[i];
+            }
+        }
+        return allowed;
+    }
+
+    /**
+     * @param bits       {@link #bits(Grant.Profile)} of {@code profile}
+     * @param server     {@link #index(String)} of {@code serverName}
+     * @param serverName server name as registered with the proxy
+     */
+    boolean allows(long[] bits, Grant.Profile profile, int server, String serverName) {
+        if (bits == null) {
+            return true;
+        }
+        if (server >= 0) {
+            return (bits[server >>> 6] & (1L << server)) != 0;
+        }
+        String normalized = Names.normalizeServerName(serverName);
+        for (String groupName : profile.groups()) {
+            if (matchesAny(groupServers.get(groupName), normalized)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    long bytes() {
+        return (long) groupBits.size() * (((indexes.size() + 63) >>> 6) * Long.BYTES);
+    }
+
+    /**
+     * @return the normalized scope entries of a comma separated list; {@code *} alone stands for every server and
+     * yields an empty list
+     */
+    static List<String> parse(String list) {
+        List<String> servers = new ArrayList<>();
+        for (String entry : list.split(",")) {
+            String server = Names.normalizeServerName(entry);
+            if (server.equals("*")) {
+                return List.of();
+            }
+            if (!server.isEmpty() && !servers.contains(server)) {
+                servers.add(server);
+            }
+        }
+        return List.copyOf(servers);
+    }
+
+    private static boolean isPattern(String entry) {
+        return entry.indexOf('*') >= 0 || entry.indexOf('?') >= 0;
+    }
+
+    private static boolean matchesAny(List<String> entries, String server) {
+        for (String entry : entries) {
+            if (matches(entry, server)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Glob match; on a mismatch only the last {@code *} has to be retried, since an earlier one can never match more.
+     */
+    static boolean matches(String pattern, String name) {
+        int p = 0;
+        int n = 0;
+        int star = -1;
+        int starMatch = 0;
+        while (n < name.length()) {
+            if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == name.charAt(n))) {
+                p++;
+                n++;
+            } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+                star = p++;
+                starMatch = n;
+            } else if (star >= 0) {
+                p = star + 1;
+                n = ++starMatch;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') {
+            p++;
+        }
+        return p == pattern.length();
+    }
+}
@@ -0,0 +1,143 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ * The allow list in an embedded H2 database file in the data directory, for lists too large to keep in memory or
+ * maintained by other tools while the proxy is stopped. Each lookup is an indexed query on one connection that is
+ * kept open; the core puts a {@link LookupCache} in front of it and runs lookups off the login threads.
+ */
+final class SqlAllowlist implements AllowlistProvider {
+
+    static final String DATABASE_NAME = "allowlist";
+    private static final String DRIVER = "org.h2.Driver";
+
+    private final Connection connection;
+    private final PreparedStatement select;
+    private final PreparedStatement insert;
+    private final PreparedStatement delete;
+    private final PreparedStatement count;
+
+    private SqlAllowlist(Connection connection) throws SQLException {
+        this.connection = connection;
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS allowed_users (name VARCHAR(64) PRIMARY KEY)");
+        }
+        this.select = connection.prepareStatement("SELECT 1 FROM allowed_users WHERE name = ?");
+        this.insert = connection.prepareStatement(
+                "INSERT INTO allowed_users (name) SELECT ? WHERE NOT EXISTS (SELECT 1 FROM allowed_users WHERE name = ?)");
+        this.delete = connection.prepareStatement("DELETE FROM allowed_users WHERE name = ?");
+        this.count = connection.prepareStatement("SELECT COUNT(*) FROM allowed_users");
+    }
+
+    /**
+     * Opens or creates {@code allowlist.mv.db} in the data directory. The driver is shaded into the plugin, so it is
+     * loaded from the plugin's class loader instead of through {@code DriverManager}.
+     */
+    static SqlAllowlist open(Path dataDirectory) throws IOException {
+        String url = "jdbc:h2:file:" + dataDirectory.toAbsolutePath().resolve(DATABASE_NAME) + ";DB_CLOSE_ON_EXIT=FALSE";
+        try {
+            Driver driver = (Driver) Class.forName(DRIVER, true, SqlAllowlist.class.getClassLoader())
+                    .getDeclaredConstructor().newInstance();
+            Connection connection = driver.connect(url, new Properties());
+            if (connection == null) {
+                throw new IOException("H2 does not accept " + url);
+            }
+            try {
+                return new SqlAllowlist(connection);
+            } catch (SQLException e) {
+                connection.close();
+                throw e;
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("H2 driver not available", e);
+        } catch (SQLException e) {
+            throw new IOException("Failed to open " + url, e);
+        }
+    }
+
+    @Override
+    public String describe() {
+        return "H2 database " + DATABASE_NAME + ".mv.db";
+    }
+
+    @Override
+    public boolean inMemory() {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean contains(String name) throws IOException {
+        try {
+            select.setString(1, name);
+            try (ResultSet result = select.executeQuery()) {
+                return result.next();
+            }
+        } catch (SQLException e) {
+            throw new IOException("Failed to look up " + name, e);
+        }
+    }
+
+    @Override
+    public synchronized int add(Collection<String> names) throws IOException {
+        try {
+            for (String name : new TreeSet<>(names)) {
+                insert.setString(1, name);
+                insert.setString(2, name);
+                insert.addBatch();
+            }
+            return sum(insert.executeBatch());
+        } catch (SQLException e) {
+            throw new IOException("Failed to add names", e);
+        }
+    }
+
+    @Override
+    public synchronized int remove(Collection<String> names) throws IOException {
+        try {
+            for (String name : new TreeSet<>(names)) {
+                delete.setString(1, name);
+                delete.addBatch();
+            }
+            return sum(delete.executeBatch());
+        } catch (SQLException e) {
+            throw new IOException("Failed to remove names", e);
+        }
+    }
+
+    private static int sum(int[] updateCounts) {
+        int sum = 0;
+        for (int updated : updateCounts) {
+            sum += Math.max(0, updated);
+        }
+        return sum;
+    }
+
+    @Override
+    public synchronized int size() throws IOException {
+        try (ResultSet result = count.executeQuery()) {
+            return result.next() ? result.getInt(1) : 0;
+        } catch (SQLException e) {
+            throw new IOException("Failed to count names", e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
+            // closing anyway
+        }
+    }
+}
@@ -0,0 +1,516 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Replicates over TCP. Every proxy serves its {@link ReplicationLog} on {@code replication.listen} and keeps a
+ * connection to each of {@code replication.peers}, pulling their logs. The line based protocol, after the connecting
+ * proxy proved it knows the shared secret:
+ * <pre>
+ * server: LOM2 &lt;node&gt; &lt;epoch&gt; &lt;nonce&gt;
+ * client: HELLO &lt;node&gt; &lt;hmac(nonce node client-nonce epoch seq)&gt; &lt;client nonce&gt; &lt;epoch|-&gt; &lt;applied seq&gt;
+ * server: OK &lt;hmac(client-nonce node epoch)&gt;
+ * server: D &lt;seq|millis|mutation&gt;            one per change, as soon as it is flushed
+ * server: HEAD &lt;epoch&gt; &lt;seq&gt;                  every second without changes
+ * server: SNAPSHOT, snapshot lines, END      if the client is behind the retained changes
+ * </pre>
+ * Every line after {@code OK} is prefixed with a tag, an HMAC over the line and its number under a key derived from
+ * both nonces, so changes cannot be forged, replayed or dropped on the way. The lines are not encrypted.
+ * <p>
+ * At most {@code replication.max-connections} connections are served at once; further ones are closed right away.
+ * The handshake has to finish within five seconds and its lines may not exceed 512 bytes.
+ * A client that stops hearing from its peer reconnects with a growing backoff.
+ */
+final class TcpTransport implements ReplicationTransport {
+
+    private static final String PROTOCOL = "LOM2";
+    private static final long HEARTBEAT_MILLIS = 1000;
+    private static final int MAX_BATCH = 500;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final long MIN_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+    private static final int TAG_BYTES = 16;
+    private static final int MAX_HANDSHAKE_LINE = 512;
+    private static final long REFUSED_WARNING_MILLIS = 60_000;
+
+    private final InetSocketAddress listen;
+    private final List<InetSocketAddress> peers;
+    private final byte[] secret;
+    private final int maxConnections;
+    private final Replicator replicator;
+    private final ReplicationLog log;
+    private final PolicyLogger logger;
+    private final SecureRandom random = new SecureRandom();
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    // connections pulling from each origin, closed to make them start over from the replicator's position
+    private final Map<String, Socket> pulling = new ConcurrentHashMap<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private ServerSocket server;
+    private ThreadPoolExecutor connections;
+    private long lastRefusedWarning;
+    private volatile boolean closed;
+
+    /**
+     * @param listen         address to serve this proxy's log on, {@code null} to only pull
+     * @param maxConnections connections served at once, including ones still in the handshake
+     */
+    TcpTransport(InetSocketAddress listen, List<InetSocketAddress> peers, String secret, int maxConnections,
+                 Replicator replicator, ReplicationLog log, PolicyLogger logger) {
+        this.listen = listen;
+        this.peers = List.copyOf(peers);
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.maxConnections = maxConnections;
+        this.replicator = replicator;
+        this.log = log;
+        this.logger = logger;
+    }
+
+    /**
+     * @param address {@code host:port}, IPv6 hosts in brackets
+     * @return the unresolved address, resolved again on every connect
+     */
+    static InetSocketAddress address(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("expected host:port, got '" + address + "'");
+        }
+        String host = address.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        int port;
+        try {
+            port = Integer.parseInt(address.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            port = -1;
+        }
+        if (port < 1 || port > 65535) {
+            throw new IllegalArgumentException("invalid port in '" + address + "'");
+        }
+        return InetSocketAddress.createUnresolved(host, port);
+    }
+
+    private static InetSocketAddress resolve(InetSocketAddress address) {
+        return new InetSocketAddress(address.getHostString(), address.getPort());
+    }
+
+    @Override
+    public synchronized void start() throws IOException {
+        if (listen != null) {
+            server = new ServerSocket();
+            server.setReuseAddress(true);
+            server.bind(resolve(listen));
+            connections = new ThreadPoolExecutor(0, maxConnections, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "LimitedOfflineMode-replication-connection");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            startThread("LimitedOfflineMode-replication-server", this::accept);
+        }
+        for (InetSocketAddress peer : peers) {
+            startThread("LimitedOfflineMode-replication-" + peer.getHostString() + ":" + peer.getPort(), () -> pull(peer));
+        }
+    }
+
+    private void startThread(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = server.accept();
+                sockets.add(socket);
+                try {
+                    connections.execute(() -> serve(socket));
+                } catch (RejectedExecutionException e) {
+                    sockets.remove(socket);
+                    socket.close();
+                    refused(socket);
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    logger.error("Failed to accept a replication connection", e);
+                }
+            }
+        }
+    }
+
+    private void refused(Socket socket) {
+        long now = System.currentTimeMillis();
+        if (!closed && now - lastRefusedWarning >= REFUSED_WARNING_MILLIS) {
+            lastRefusedWarning = now;
+            logger.warn("Refused replication connection from " + socket.getRemoteSocketAddress() + ": already serving "
+                    + maxConnections + " connections (replication.max-connections)");
+        }
+    }
+
+    /**
+     * Streams this proxy's log to a connected proxy until either side closes the connection.
+     */
+    private void serve(Socket socket) {
+        try (socket;
+             InputStream in = new BufferedInputStream(socket.getInputStream());
+             Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+            socket.setTcpNoDelay(true);
+            String nonce = nonce();
+            out.write(PROTOCOL + " " + log.nodeId() + " " + log.epoch() + " " + nonce + "\n");
+            out.flush();
+
+            String line = readHandshakeLine(socket, in, deadline);
+            if (line == null) {
+                // e.g. a proxy that found out it connected to itself
+                return;
+            }
+            String[] hello = split(line, 6);
+            if (hello == null || !"HELLO".equals(hello[0]) || !MessageDigest.isEqual(
+                    mac(nonce + " " + hello[1] + " " + hello[3] + " " + hello[4] + " " + hello[5])
+                            .getBytes(StandardCharsets.UTF_8),
+                    hello[2].getBytes(StandardCharsets.UTF_8))) {
+                logger.warn("Rejected replication connection from " + socket.getRemoteSocketAddress()
+                        + ": wrong replication.secret or not a LimitedOfflineMode proxy");
+                return;
+            }
+            out.write("OK " + mac(hello[3] + " " + log.nodeId() + " " + log.epoch()) + "\n");
+            Frames frames = new Frames(sessionKey(nonce, hello[3]));
+            long seq = hello[4].equals(log.epoch()) ? Long.parseLong(hello[5]) : 0;
+
+            while (!closed) {
+                List<ReplicationLog.Entry> entries = log.awaitAfter(seq, MAX_BATCH, HEARTBEAT_MILLIS);
+                if (entries == null) {
+                    StringWriter snapshot = new StringWriter();
+                    seq = replicator.writeSnapshot(snapshot);
+                    frames.write(out, "SNAPSHOT");
+                    for (String snapshotLine : snapshot.toString().lines().toList()) {
+                        frames.write(out, snapshotLine);
+                    }
+                    frames.write(out, "END");
+                } else if (entries.isEmpty()) {
+                    frames.write(out, "HEAD " + log.epoch() + " " + seq);
+                } else {
+                    for (ReplicationLog.Entry entry : entries) {
+                        frames.write(out, "D " + entry.encode());
+                    }
+                    seq = entries.get(entries.size() - 1).seq();
+                }
+                out.flush();
+            }
+        } catch (IOException | NumberFormatException e) {
+            if (!closed) {
+                logger.info("Replication connection from " + socket.getRemoteSocketAddress() + " closed: " + e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            sockets.remove(socket);
+        }
+    }
+
+    /**
+     * Keeps pulling a peer's log, reconnecting after failures.
+     */
+    private void pull(InetSocketAddress peer) {
+        long backoff = MIN_BACKOFF_MILLIS;
+        while (!closed) {
+            try (Socket socket = new Socket()) {
+                sockets.add(socket);
+                socket.connect(resolve(peer), CONNECT_TIMEOUT_MILLIS);
+                if (closed) {
+                    return;
+                }
+                if (!pullFrom(peer, socket)) {
+                    return;
+                }
+                backoff = MIN_BACKOFF_MILLIS;
+            } catch (IOException | RuntimeException e) {
+                if (!closed) {
+                    logger.info("Replication from " + peer.getHostString() + ":" + peer.getPort() + " interrupted ("
+                            + e.getMessage() + "), retrying in " + backoff / 1000 + " s");
+                }
+            } finally {
+                sockets.removeIf(Socket::isClosed);
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+        }
+    }
+
+    /**
+     * @return {@code false} if the peer is this proxy itself and must not be pulled from again
+     */
+    private boolean pullFrom(InetSocketAddress peer, Socket socket) throws IOException {
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+        socket.setTcpNoDelay(true);
+        InputStream raw = new BufferedInputStream(socket.getInputStream());
+        Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        String[] greeting = split(readHandshakeLine(socket, raw, deadline), 4);
+        if (greeting == null || !PROTOCOL.equals(greeting[0])) {
+            throw new IOException("not a LimitedOfflineMode replication port");
+        }
+        String origin = greeting[1];
+        String epoch = greeting[2];
+        if (origin.equals(log.nodeId())) {
+            logger.warn("Replication peer " + peer.getHostString() + ":" + peer.getPort() + " is this proxy, ignoring it");
+            return false;
+        }
+
+        Socket previous = pulling.put(origin, socket);
+        if (previous != null) {
+            previous.close();
+        }
+        try {
+            String nonce = nonce();
+            Replicator.Position position = replicator.position(origin);
+            String from = position == null ? "- 0" : position.epoch() + " " + position.seq();
+            out.write("HELLO " + log.nodeId() + " " + mac(greeting[3] + " " + log.nodeId() + " " + nonce + " " + from)
+                    + " " + nonce + " " + from + "\n");
+            out.flush();
+            String[] ok = split(readHandshakeLine(socket, raw, deadline), 2);
+            if (ok == null || !"OK".equals(ok[0]) || !MessageDigest.isEqual(
+                    mac(nonce + " " + origin + " " + epoch).getBytes(StandardCharsets.UTF_8),
+                    ok[1].getBytes(StandardCharsets.UTF_8))) {
+                throw new IOException("peer " + origin + " rejected replication.secret or does not know it");
+            }
+            Frames frames = new Frames(sessionKey(greeting[3], nonce));
+            socket.setSoTimeout((int) (3 * HEARTBEAT_MILLIS));
+            BufferedReader in = new BufferedReader(new InputStreamReader(raw, StandardCharsets.UTF_8));
+            logger.info("Pulling group changes from " + origin + " at " + peer.getHostString() + ":" + peer.getPort());
+
+            List<ReplicationLog.Entry> batch = new ArrayList<>();
+            String line;
+            while ((line = frames.read(in, origin)) != null && !closed) {
+                if (line.startsWith("D ")) {
+                    ReplicationLog.Entry entry = ReplicationLog.Entry.decode(line.substring(2));
+                    if (entry == null) {
+                        throw new IOException("invalid change from " + origin + ": " + line);
+                    }
+                    batch.add(entry);
+                    // apply everything that already arrived in one go
+                    if (batch.size() >= MAX_BATCH || !in.ready()) {
+                        receive(origin, epoch, batch);
+                    }
+                    continue;
+                }
+                receive(origin, epoch, batch);
+                if (line.startsWith("HEAD ")) {
+                    String[] head = split(line, 3);
+                    if (head != null) {
+                        replicator.observeHead(origin, head[1], Long.parseLong(head[2]));
+                    }
+                } else if (line.equals("SNAPSHOT")) {
+                    List<String> snapshot = new ArrayList<>();
+                    while (!"END".equals(line = frames.read(in, origin))) {
+                        if (line == null) {
+                            throw new IOException("snapshot from " + origin + " ended early");
+                        }
+                        snapshot.add(line);
+                    }
+                    replicator.install(origin, snapshot);
+                }
+            }
+            return true;
+        } finally {
+            pulling.remove(origin, socket);
+        }
+    }
+
+    private void receive(String origin, String epoch, List<ReplicationLog.Entry> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (!replicator.receive(origin, epoch, batch)) {
+            throw new IOException("changes from " + origin + " do not continue where this proxy is");
+        }
+        replicator.observeHead(origin, epoch, batch.get(batch.size() - 1).seq());
+        batch.clear();
+    }
+
+    /**
+     * Reads a line of the handshake, which has to arrive within {@code deadline} and fit into
+     * {@value #MAX_HANDSHAKE_LINE} bytes, so an unauthenticated peer can neither hold a connection open nor fill memory.
+     *
+     * @return the line without its terminator, or {@code null} if the stream ended first
+     */
+    private static String readHandshakeLine(Socket socket, InputStream in, long deadline) throws IOException {
+        byte[] line = new byte[MAX_HANDSHAKE_LINE];
+        int length = 0;
+        while (true) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new SocketTimeoutException("handshake took longer than " + CONNECT_TIMEOUT_MILLIS + " ms");
+            }
+            socket.setSoTimeout((int) remaining);
+            int next = in.read();
+            if (next < 0) {
+                return null;
+            }
+            if (next == '\n') {
+                return new String(line, 0, length, StandardCharsets.UTF_8);
+            }
+            if (length == line.length) {
+                throw new IOException("handshake line longer than " + MAX_HANDSHAKE_LINE + " bytes");
+            }
+            line[length++] = (byte) next;
+        }
+    }
+
+    private static String[] split(String line, int parts) {
+        if (line == null) {
+            return null;
+        }
+        String[] split = line.split(" ");
+        return split.length == parts ? split : null;
+    }
+
+    private String nonce() {
+        byte[] nonce = new byte[16];
+        random.nextBytes(nonce);
+        return HexFormat.of().formatHex(nonce);
+    }
+
+    private String mac(String challenge) {
+        return HexFormat.of().formatHex(hmac(secret).doFinal(challenge.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private byte[] sessionKey(String serverNonce, String clientNonce) {
+        return hmac(secret).doFinal(("session " + serverNonce + " " + clientNonce).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Mac hmac(byte[] key) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac;
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    /**
+     * Tags and checks the numbered lines of one connection after the handshake.
+     */
+    private static final class Frames {
+        private final Mac mac;
+        private final byte[] number = new byte[Long.BYTES];
+        private long count;
+
+        Frames(byte[] sessionKey) {
+            this.mac = hmac(sessionKey);
+        }
+
+        void write(Writer out, String line) throws IOException {
+            out.write(tag(line));
+            out.write(' ');
+            out.write(line);
+            out.write('\n');
+        }
+
+        /**
+         * @return the next line without its tag, {@code null} at the end of the stream
+         * @throws IOException if the tag does not match
+         */
+        String read(BufferedReader in, String origin) throws IOException {
+            String line = in.readLine();
+            if (line == null) {
+                return null;
+            }
+            int space = line.indexOf(' ');
+            String content = space < 0 ? "" : line.substring(space + 1);
+            if (space < 0 || !MessageDigest.isEqual(tag(content).getBytes(StandardCharsets.UTF_8),
+                    line.substring(0, space).getBytes(StandardCharsets.UTF_8))) {
+                throw new IOException("line " + (count - 1) + " from " + origin + " has an invalid tag");
+            }
+            return content;
+        }
+
+        private String tag(String line) {
+            long value = count++;
+            for (int i = Long.BYTES - 1; i >= 0; i--) {
+                number[i] = (byte) value;
+                value >>>= 8;
+            }
+            mac.update(number);
+            byte[] digest = mac.doFinal(line.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, TAG_BYTES);
+        }
+    }
+
+    @Override
+    public void resync(String origin) {
+        Socket socket = pulling.get(origin);
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // the pulling thread reconnects either way
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        try {
+            if (server != null) {
+                server.close();
+            }
+        } catch (IOException e) {
+            logger.error("Failed to close the replication port", e);
+        }
+        if (connections != null) {
+            connections.shutdownNow();
+        }
+        for (Socket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // the connection is gone either way
+            }
+        }
+        threads.forEach(Thread::interrupt);
+    }
+
+    @Override
+    public String toString() {
+        return "TCP" + (listen == null ? "" : " on " + listen.getHostString() + ":" + listen.getPort())
+                + (peers.isEmpty() ? "" : " from " + peers.size() + " peers");
+    }
+}
@@ -0,0 +1,104 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The allow list in {@code allowed-users.txt}, compiled into the policy with the groups. Changes rewrite the file and
+ * reload the policy right away instead of waiting for the file watcher.
+ */
+final class TextFileAllowlist implements AllowlistProvider {
+
+    private final LimitedOfflineModeCore core;
+    private final Path path;
+
+    TextFileAllowlist(LimitedOfflineModeCore core, Path dataDirectory) {
+        this.core = core;
+        this.path = dataDirectory.resolve(PolicyFiles.ALLOWED_USERS_FILE);
+    }
+
+    @Override
+    public String describe() {
+        return PolicyFiles.ALLOWED_USERS_FILE;
+    }
+
+    @Override
+    public boolean inMemory() {
+        return true;
+    }
+
+    @Override
+    public boolean contains(String name) {
+        Grant grant = core.policy().current().grant(name);
+        return grant != null && grant.allowListed();
+    }
+
+    @Override
+    public synchronized int add(Collection<String> names) throws IOException {
+        List<String> added = new ArrayList<>();
+        for (String name : new HashSet<>(names)) {
+            if (!contains(name)) {
+                added.add(name);
+            }
+        }
+        if (added.isEmpty()) {
+            return 0;
+        }
+        StringBuilder lines = new StringBuilder();
+        if (Files.exists(path) && Files.size(path) > 0 && !endsWithNewline()) {
+            lines.append('\n');
+        }
+        added.stream().sorted().forEach(name -> lines.append(name).append('\n'));
+        Files.writeString(path, lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        core.reload();
+        return added.size();
+    }
+
+    private boolean endsWithNewline() throws IOException {
+        byte[] bytes = Files.readAllBytes(path);
+        return bytes[bytes.length - 1] == '\n';
+    }
+
+    @Override
+    public synchronized int remove(Collection<String> names) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        Set<String> removed = new HashSet<>();
+        List<String> kept = new ArrayList<>();
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            String name = Names.normalizeUsername(line);
+            if (!name.startsWith("#") && names.contains(name)) {
+                removed.add(name);
+            } else {
+                kept.add(line);
+            }
+        }
+        if (removed.isEmpty()) {
+            return 0;
+        }
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(tempPath, kept, StandardCharsets.UTF_8);
+        PolicyFiles.moveAtomically(tempPath, path);
+        core.reload();
+        return removed.size();
+    }
+
+    @Override
+    public int size() {
+        return core.policy().current().allowedUsers().size();
+    }
+
+    @Override
+    public void close() {
+        // nothing to release, the file is only open while it is written
+    }
+}
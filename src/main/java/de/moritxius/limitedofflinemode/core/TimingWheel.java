@@ -0,0 +1,107 @@
+package de.moritxius.limitedofflinemode.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel over abstract ticks; deadlines beyond its {@value #LEVELS} levels wait in an overflow
+ * list. Not thread safe.
+ */
+final class TimingWheel<T> {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+
+    private final List<List<Entry<T>>> slots = new ArrayList<>(LEVELS * SLOTS);
+    private final List<Entry<T>> overflow = new ArrayList<>();
+    private final List<T> due = new ArrayList<>();
+    private long now;
+    private int size;
+
+    TimingWheel(long startTick) {
+        this.now = startTick;
+        for (int i = 0; i < LEVELS * SLOTS; i++) {
+            slots.add(new ArrayList<>());
+        }
+    }
+
+    private record Entry<T>(long deadline, T item) {
+    }
+
+    /**
+     * @param deadline tick at which {@code item} is due; past deadlines are due on the next {@link #advance(long)}
+     */
+    void schedule(long deadline, T item) {
+        size++;
+        place(new Entry<>(deadline, item));
+    }
+
+    /**
+     * Puts the entry on the lowest level whose current turn contains its deadline.
+     */
+    private void place(Entry<T> entry) {
+        if (entry.deadline() <= now) {
+            due.add(entry.item());
+            return;
+        }
+        for (int level = 0; level < LEVELS; level++) {
+            int turnShift = SLOT_BITS * (level + 1);
+            if (entry.deadline() >>> turnShift == now >>> turnShift) {
+                int slot = (int) (entry.deadline() >>> (SLOT_BITS * level)) & (SLOTS - 1);
+                slots.get(level * SLOTS + slot).add(entry);
+                return;
+            }
+        }
+        overflow.add(entry);
+    }
+
+    /**
+     * Moves the wheel forward to {@code tick}.
+     *
+     * @return the items that became due, in no particular order
+     */
+    List<T> advance(long tick) {
+        while (now < tick) {
+            now++;
+            if ((now & ((1L << (SLOT_BITS * LEVELS)) - 1)) == 0) {
+                cascade(overflow);
+            }
+            // a level's slot is entered once every lower level has completed a turn
+            for (int level = LEVELS - 1; level >= 1; level--) {
+                if ((now & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    int slot = (int) (now >>> (SLOT_BITS * level)) & (SLOTS - 1);
+                    cascade(slots.get(level * SLOTS + slot));
+                }
+            }
+            List<Entry<T>> current = slots.get((int) now & (SLOTS - 1));
+            for (Entry<T> entry : current) {
+                due.add(entry.item());
+            }
+            current.clear();
+        }
+        if (due.isEmpty()) {
+            return List.of();
+        }
+        List<T> result = new ArrayList<>(due);
+        due.clear();
+        size -= result.size();
+        return result;
+    }
+
+    private void cascade(List<Entry<T>> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        List<Entry<T>> moved = new ArrayList<>(entries);
+        entries.clear();
+        moved.forEach(this::place);
+    }
+
+    /**
+     * @return the number of scheduled items that have not been returned by {@link #advance(long)} yet
+     */
+    int size() {
+        return size;
+    }
+}
@@ -0,0 +1,123 @@
+package de.moritxius.limitedofflinemode;
+
+import de.moritxius.limitedofflinemode.core.LimitedOfflineModeCore;
+import de.moritxius.limitedofflinemode.core.PendingLogins;
+import net.md_5.bungee.api.Callback;
+import net.md_5.bungee.api.config.ServerInfo;
+import net.md_5.bungee.api.connection.PendingConnection;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+import net.md_5.bungee.api.event.PlayerDisconnectEvent;
+import net.md_5.bungee.api.event.PostLoginEvent;
+import net.md_5.bungee.api.event.PreLoginEvent;
+import net.md_5.bungee.api.event.ServerConnectEvent;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Fires {@code PreLoginEvent}, {@code PostLoginEvent}, the {@code ServerConnectEvent} of joining the network and
+ * {@code PlayerDisconnectEvent} at {@link LimitedOfflineModeBungeeCordPlugin}, posting them after the handler so
+ * registered intents hold the login like BungeeCord's event bus does.
+ */
+final class BungeeCordDriver implements StormDriver {
+
+    private final LimitedOfflineModeBungeeCordPlugin plugin;
+    private final LimitedOfflineModeCore core;
+
+    BungeeCordDriver(Path dataDirectory, LoginStorm.Failures failures) throws ReflectiveOperationException {
+        this.plugin = Stubs.allocate(LimitedOfflineModeBungeeCordPlugin.class);
+        this.core = new LimitedOfflineModeCore(dataDirectory, failures.logger("bungeecord"));
+        Stubs.setField(plugin, "offlineLogins", new PendingLogins<>());
+        Stubs.setField(plugin, "offlinePlayers", new ConcurrentHashMap<>());
+        Stubs.setField(plugin, "checkedServers", new PendingLogins<>());
+        Stubs.setField(plugin, "core", core);
+        core.setKnownServers(List.of());
+        core.load();
+    }
+
+    @Override
+    public String platform() {
+        return "bungeecord";
+    }
+
+    @Override
+    public LimitedOfflineModeCore core() {
+        return core;
+    }
+
+    @Override
+    public Outcome login(String username, InetAddress address, String serverName) throws Exception {
+        InetSocketAddress remote = new InetSocketAddress(address, 25565);
+        UUID onlineId = UUID.randomUUID();
+        AtomicBoolean onlineMode = new AtomicBoolean(true);
+        PendingConnection connection = Stubs.of(PendingConnection.class, Map.of(
+                "getName", args -> username,
+                "getSocketAddress", args -> remote,
+                "getAddress", args -> remote,
+                "isOnlineMode", args -> onlineMode.get(),
+                "setOnlineMode", args -> {
+                    onlineMode.set((Boolean) args[0]);
+                    return null;
+                },
+                "getUniqueId", args -> onlineId));
+
+        long start = System.nanoTime();
+        CompletableFuture<Void> preLoginDone = new CompletableFuture<>();
+        PreLoginEvent preLogin = new PreLoginEvent(connection, completing(preLoginDone));
+        plugin.onPreLogin(preLogin);
+        preLogin.postCall();
+        preLoginDone.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        long decisionNanos = System.nanoTime() - start;
+        boolean offlineMode = !onlineMode.get();
+
+        ProxiedPlayer player = Stubs.of(ProxiedPlayer.class, Map.of(
+                "getName", args -> username,
+                "getPendingConnection", args -> connection,
+                "getSocketAddress", args -> remote,
+                "getAddress", args -> remote,
+                "getUniqueId", args -> onlineId));
+        CompletableFuture<Void> postLoginDone = new CompletableFuture<>();
+        PostLoginEvent postLogin = new PostLoginEvent(player, null, completing(postLoginDone));
+        plugin.onPostLogin(postLogin);
+        postLogin.postCall();
+        postLoginDone.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        ServerInfo target = Stubs.of(ServerInfo.class, Map.of("getName", args -> serverName));
+        ServerConnectEvent serverConnect = new ServerConnectEvent(player, target, ServerConnectEvent.Reason.JOIN_PROXY, null);
+        plugin.onServerConnect(serverConnect);
+        plugin.onPlayerDisconnect(new PlayerDisconnectEvent(player));
+        // BungeeCord derives the offline UUID itself once online mode is off
+        return new Outcome(offlineMode, offlineMode, !serverConnect.isCancelled(), decisionNanos);
+    }
+
+    private static <T> Callback<T> completing(CompletableFuture<Void> done) {
+        return (result, error) -> {
+            if (error == null) {
+                done.complete(null);
+            } else {
+                done.completeExceptionally(error);
+            }
+        };
+    }
+
+    @Override
+    public int pendingLogins() throws ReflectiveOperationException {
+        return ((PendingLogins<?, ?>) Stubs.field(plugin, "offlineLogins")).size()
+                + ((Map<?, ?>) Stubs.field(plugin, "offlinePlayers")).size()
+                + ((PendingLogins<?, ?>) Stubs.field(plugin, "checkedServers")).size();
+    }
+
+    @Override
+    public void close() {
+        // onDisable would log through the proxy's logger, which an allocated plugin does not have
+        core.shutdown();
+    }
+}
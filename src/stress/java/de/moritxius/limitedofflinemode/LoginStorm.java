@@ -0,0 +1,477 @@
+package de.moritxius.limitedofflinemode;
+
+import de.moritxius.limitedofflinemode.core.LatencyHistogram;
+import de.moritxius.limitedofflinemode.core.LimitedOfflineModeCore;
+import de.moritxius.limitedofflinemode.core.PolicyFiles;
+import de.moritxius.limitedofflinemode.core.PolicyLogger;
+import de.moritxius.limitedofflinemode.core.PolicySnapshot;
+import de.moritxius.limitedofflinemode.core.PluginSettings;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Login storm against both plugins while groups are changed by command and the files are edited and reloaded.
+ * Every check states something that must hold under any interleaving, so a single violation fails the run:
+ * <ul>
+ *     <li>names on the allow list are always let in offline, unknown names never, and the later login events
+ *     agree with the pre-login decision;</li>
+ *     <li>players who logged in offline reach just the servers their groups allow, and players who authenticated
+ *     online are never stopped;</li>
+ *     <li>a change is visible to every snapshot and login taken after the command returned or the reload finished,
+ *     and is still there after a restart (no lost updates);</li>
+ *     <li>names changed by one command are seen together or not at all (no torn snapshots);</li>
+ *     <li>a group edited by hand in {@code player-groups.txt} keeps the edit over earlier command changes that were
+ *     only journaled, while changes to other groups survive the reload;</li>
+ *     <li>threads racing on one address get exactly the throttle's burst of offline logins.</li>
+ * </ul>
+ * Run with {@code mvn -Pstress verify [-Dstress.seconds=10] [-Dstress.threads=16]}; exits with 1 if any check failed.
+ */
+public final class LoginStorm {
+
+    private static final int STABLE_USERS = 64;
+    private static final int THROTTLE_BURST = 50;
+    private static final int WRITERS = 2;
+    private static final int READERS = 2;
+
+    private LoginStorm() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+        Failures failures = new Failures();
+
+        for (String platform : List.of("velocity", "bungeecord")) {
+            Path dataDirectory = Files.createTempDirectory("lom-stress-" + platform);
+            seed(dataDirectory);
+            long failed = failures.count();
+            StormDriver driver = platform.equals("velocity")
+                    ? new VelocityDriver(dataDirectory, failures)
+                    : new BungeeCordDriver(dataDirectory, failures);
+            Round round = new Round(driver, dataDirectory, failures);
+            round.throttleRace(threads);
+            round.handEdit();
+            round.serverScopes();
+            round.storm(seconds, threads);
+            round.verify();
+            if (failures.count() == failed) {
+                deleteRecursively(dataDirectory);
+            } else {
+                System.out.println(platform + ": data directory kept in " + dataDirectory);
+            }
+        }
+
+        if (failures.count() > 0) {
+            System.out.println(failures.count() + " checks failed:");
+            failures.messages().forEach(message -> System.out.println("  " + message));
+            System.exit(1);
+        }
+        System.out.println("All checks passed.");
+    }
+
+    private static void seed(Path dataDirectory) throws IOException {
+        Files.write(dataDirectory.resolve(PluginSettings.SETTINGS_FILE), List.of(
+                "throttle.offline-logins-per-minute=1",
+                "throttle.burst=" + THROTTLE_BURST,
+                "audit.console-interval-seconds=0"), StandardCharsets.UTF_8);
+        List<String> allowed = new ArrayList<>();
+        for (int i = 0; i < STABLE_USERS; i++) {
+            allowed.add(stable(i));
+        }
+        Files.write(dataDirectory.resolve(PolicyFiles.ALLOWED_USERS_FILE), allowed, StandardCharsets.UTF_8);
+        Files.write(dataDirectory.resolve(PolicyFiles.PLAYER_GROUPS_FILE), List.of(
+                "writers|true|writer_seed",
+                "pair|true|pair_seed",
+                "flap|true|flap_a,flap_b",
+                "edited|true|edited_seed",
+                "kept|true|kept_seed",
+                "scoped|true|scoped_a|lobby,staging-*"), StandardCharsets.UTF_8);
+    }
+
+    private static String stable(long index) {
+        return "Stable_" + (index % STABLE_USERS);
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private static String micros(long nanos) {
+        return String.format(Locale.ROOT, "%.1fus", nanos / 1000.0);
+    }
+
+    /**
+     * One platform's run on its own data directory.
+     */
+    private static final class Round {
+
+        private final StormDriver driver;
+        private final LimitedOfflineModeCore core;
+        private final Path dataDirectory;
+        private final Failures failures;
+        private final String platform;
+        private final LatencyHistogram decisions = new LatencyHistogram();
+        private final AtomicLong connections = new AtomicLong();
+        private final LongAdder mutations = new LongAdder();
+        private final LongAdder reloads = new LongAdder();
+        private final LongAdder snapshotChecks = new LongAdder();
+        private final AtomicReferenceArray<String> lastWritten = new AtomicReferenceArray<>(WRITERS);
+        private final Queue<String> written = new ConcurrentLinkedQueue<>();
+        private final Queue<String> removed = new ConcurrentLinkedQueue<>();
+        private volatile String lastFileName;
+        private volatile boolean stopped;
+
+        Round(StormDriver driver, Path dataDirectory, Failures failures) {
+            this.driver = driver;
+            this.core = driver.core();
+            this.dataDirectory = dataDirectory;
+            this.failures = failures;
+            this.platform = driver.platform();
+        }
+
+        /**
+         * All threads log the same allowed name in from one address at once; the bucket must hand out exactly its
+         * burst, however the compare-and-set loops interleave.
+         */
+        void throttleRace(int threads) throws Exception {
+            InetAddress address = InetAddress.getByName("203.0.113.7");
+            int perThread = 2 * THROTTLE_BURST / threads + 1;
+            LongAdder offline = new LongAdder();
+            CountDownLatch start = new CountDownLatch(1);
+            ExecutorService actors = Executors.newFixedThreadPool(threads);
+            for (int i = 0; i < threads; i++) {
+                actors.execute(() -> {
+                    try {
+                        start.await();
+                        for (int j = 0; j < perThread; j++) {
+                            if (driver.login(stable(0), address, "lobby").offlineMode()) {
+                                offline.increment();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures.add(platform + " throttle race: " + e);
+                    }
+                });
+            }
+            start.countDown();
+            actors.shutdown();
+            actors.awaitTermination(StormDriver.TIMEOUT_SECONDS * perThread, TimeUnit.SECONDS);
+            if (offline.sum() != THROTTLE_BURST) {
+                failures.add(platform + ": " + offline.sum() + " of " + threads * perThread
+                        + " logins from one address went offline, expected the burst of " + THROTTLE_BURST);
+            }
+        }
+
+        /**
+         * Adds members by command, then rewrites the edited group by hand without them before the journal was
+         * compacted; the reload must keep the hand edit and the command change to the other group.
+         */
+        void handEdit() throws IOException {
+            core.commands().execute(new String[]{"group", "add", "edited", "hand_a"}, reply -> {
+            });
+            core.commands().execute(new String[]{"group", "add", "kept", "hand_b"}, reply -> {
+            });
+            Path groups = dataDirectory.resolve(PolicyFiles.PLAYER_GROUPS_FILE);
+            List<String> lines = new ArrayList<>();
+            for (String line : Files.readAllLines(groups, StandardCharsets.UTF_8)) {
+                lines.add(line.startsWith("edited|") ? "edited|true|edited_seed,hand_c" : line);
+            }
+            Files.write(groups, lines, StandardCharsets.UTF_8);
+            core.reload();
+
+            PolicySnapshot snapshot = core.policy().current();
+            if (snapshot.grant("hand_a") != null) {
+                failures.add(platform + ": hand_a was removed from player-groups.txt by hand but came back from the journal");
+            }
+            for (String name : List.of("hand_b", "hand_c")) {
+                if (snapshot.grant(name) == null) {
+                    failures.add(platform + ": " + name + " is missing after the hand edit was reloaded");
+                }
+            }
+            written.addAll(List.of("hand_b", "hand_c"));
+            removed.add("hand_a");
+        }
+
+        /**
+         * Connects players to servers inside and outside their groups' scopes, each from its own address.
+         */
+        void serverScopes() throws Exception {
+            record Connect(String username, String serverName, boolean allowed) {
+            }
+            List<Connect> connects = List.of(
+                    new Connect("scoped_a", "lobby", true),
+                    new Connect("scoped_a", "staging-2", true),
+                    new Connect("scoped_a", "survival", false),
+                    new Connect(stable(1), "survival", true),
+                    new Connect("Stranger_scoped", "survival", true));
+            for (int i = 0; i < connects.size(); i++) {
+                Connect connect = connects.get(i);
+                InetAddress address = InetAddress.getByAddress(new byte[]{(byte) 198, 51, 100, (byte) i});
+                StormDriver.Outcome outcome = driver.login(connect.username(), address, connect.serverName());
+                if (outcome.serverAllowed() != connect.allowed()) {
+                    failures.add(platform + ": " + connect.username() + (outcome.serverAllowed() ? " reached " : " was kept from ")
+                            + connect.serverName());
+                }
+            }
+        }
+
+        void storm(int seconds, int loginThreads) throws InterruptedException {
+            List<Runnable> workers = new ArrayList<>();
+            for (int i = 0; i < loginThreads; i++) {
+                workers.add(this::logins);
+            }
+            for (int i = 0; i < WRITERS; i++) {
+                int writer = i;
+                workers.add(() -> addMembers(writer));
+            }
+            workers.add(this::flapGroups);
+            workers.add(this::editFiles);
+            for (int i = 0; i < READERS; i++) {
+                workers.add(this::readSnapshots);
+            }
+
+            ExecutorService pool = Executors.newFixedThreadPool(workers.size());
+            for (Runnable worker : workers) {
+                pool.execute(() -> {
+                    try {
+                        worker.run();
+                    } catch (Throwable e) {
+                        failures.add(platform + ": " + e);
+                    }
+                });
+            }
+            long start = System.nanoTime();
+            Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+            stopped = true;
+            pool.shutdown();
+            if (!pool.awaitTermination(StormDriver.TIMEOUT_SECONDS * 2, TimeUnit.SECONDS)) {
+                failures.add(platform + ": workers did not stop");
+            }
+            double elapsed = (System.nanoTime() - start) / 1e9;
+
+            LatencyHistogram.Summary summary = decisions.summary();
+            System.out.printf(Locale.ROOT, "%s: %d logins in %.1f s (%.0f/s) on %d threads, pre-login decision p50 %s, p99 %s,"
+                            + " max %s; %d group changes, %d reloads, %d snapshot checks%n",
+                    platform, summary.count(), elapsed, summary.count() / elapsed, loginThreads,
+                    micros(summary.p50()), micros(summary.p99()), micros(summary.max()),
+                    mutations.sum(), reloads.sum(), snapshotChecks.sum());
+        }
+
+        private void logins() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (!stopped) {
+                long id = connections.incrementAndGet();
+                String username;
+                Boolean expected;
+                switch ((int) (id & 3)) {
+                    case 0 -> {
+                        username = stable(id);
+                        expected = true;
+                    }
+                    case 1 -> {
+                        username = "Stranger_" + id;
+                        expected = false;
+                    }
+                    case 2 -> {
+                        String member = lastWritten.get(random.nextInt(WRITERS));
+                        username = member == null ? stable(id) : member;
+                        expected = true;
+                    }
+                    default -> {
+                        username = random.nextBoolean() ? "pair_a" : "flap_b";
+                        expected = null;
+                    }
+                }
+                try {
+                    // a fresh address per connection, so only the throttle race is throttled
+                    InetAddress address = InetAddress.getByAddress(new byte[]{10, (byte) (id >> 16), (byte) (id >> 8), (byte) id});
+                    StormDriver.Outcome outcome = driver.login(username, address, "survival");
+                    decisions.record(outcome.decisionNanos());
+                    if (expected != null && (outcome.offlineMode() != expected || outcome.offlineIdentity() != expected)) {
+                        failures.add(platform + ": " + username + " went " + (outcome.offlineMode() ? "offline" : "online")
+                                + " with " + (outcome.offlineIdentity() ? "the offline" : "its own") + " UUID");
+                    }
+                    // none of these names is in a scoped group, and names that authenticated online are not checked
+                    if (expected != null && !outcome.serverAllowed()) {
+                        failures.add(platform + ": " + username + " was kept from survival");
+                    }
+                } catch (Throwable e) {
+                    failures.add(platform + ": login of " + username + " failed: " + e);
+                }
+            }
+        }
+
+        private void addMembers(int writer) {
+            for (int i = 0; !stopped; i++) {
+                String member = "writer" + writer + "_" + i;
+                List<String> replies = new ArrayList<>();
+                core.commands().execute(new String[]{"group", "add", "writers", member}, replies::add);
+                if (replies.size() != 1 || !replies.get(0).startsWith("Group 'writers' updated")) {
+                    failures.add(platform + ": adding " + member + " replied " + replies);
+                }
+                written.add(member);
+                lastWritten.set(writer, member);
+                mutations.increment();
+            }
+        }
+
+        private void flapGroups() {
+            while (!stopped) {
+                core.commands().execute(new String[]{"group", "add", "pair", "pair_a,pair_b"}, reply -> {
+                });
+                core.commands().execute(new String[]{"group", "remove", "pair", "pair_a,pair_b"}, reply -> {
+                });
+                core.commands().execute(new String[]{"group", "toggle", "flap"}, reply -> {
+                });
+                mutations.add(3);
+            }
+        }
+
+        private void editFiles() {
+            Path allowed = dataDirectory.resolve(PolicyFiles.ALLOWED_USERS_FILE);
+            for (int i = 0; !stopped; i++) {
+                String name = "file_" + i;
+                try {
+                    Files.writeString(allowed, name + "\n", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+                } catch (IOException e) {
+                    failures.add(platform + ": failed to edit " + allowed + ": " + e);
+                    return;
+                }
+                core.reload();
+                written.add(name);
+                lastFileName = name;
+                reloads.increment();
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void readSnapshots() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (!stopped) {
+                // read what was confirmed before the snapshot, so the snapshot must contain it
+                String member = lastWritten.get(random.nextInt(WRITERS));
+                String fileName = lastFileName;
+                PolicySnapshot snapshot = core.policy().current();
+                checkTogether(snapshot, "pair_a", "pair_b");
+                checkTogether(snapshot, "flap_a", "flap_b");
+                if (member != null && snapshot.grant(member) == null) {
+                    failures.add(platform + ": " + member + " was added by command but is missing from a later snapshot");
+                }
+                if (fileName != null && snapshot.grant(fileName) == null) {
+                    failures.add(platform + ": " + fileName + " was reloaded from file but is missing from a later snapshot");
+                }
+                snapshotChecks.increment();
+            }
+        }
+
+        private void checkTogether(PolicySnapshot snapshot, String first, String second) {
+            if ((snapshot.grant(first) == null) != (snapshot.grant(second) == null)) {
+                failures.add(platform + ": torn snapshot, " + first + " and " + second + " changed by one command differ");
+            }
+        }
+
+        /**
+         * After the storm: no pre-login decision is left behind, and every confirmed change is in the policy, both
+         * now and after a restart from the files and journal on disk.
+         */
+        void verify() throws ReflectiveOperationException {
+            int pending = driver.pendingLogins();
+            if (pending != 0) {
+                failures.add(platform + ": " + pending + " pre-login decisions or players were never cleared");
+            }
+            checkAllGranted("before restart", core.policy().current());
+            driver.close();
+
+            LimitedOfflineModeCore restarted = new LimitedOfflineModeCore(dataDirectory, failures.logger(platform));
+            restarted.load();
+            try {
+                checkAllGranted("after restart", restarted.policy().current());
+                checkTogether(restarted.policy().current(), "pair_a", "pair_b");
+            } finally {
+                restarted.shutdown();
+            }
+        }
+
+        private void checkAllGranted(String when, PolicySnapshot snapshot) {
+            long missing = written.stream().filter(name -> snapshot.grant(name) == null).count();
+            if (missing > 0) {
+                failures.add(platform + ": " + missing + " of " + written.size() + " confirmed changes lost " + when);
+            }
+            removed.stream().filter(name -> snapshot.grant(name) != null).forEach(name ->
+                    failures.add(platform + ": " + name + " was removed but is granted again " + when));
+        }
+    }
+
+    /**
+     * Counts failed checks from all threads and keeps the first few messages.
+     */
+    static final class Failures {
+
+        private static final int MAX_MESSAGES = 20;
+
+        private final AtomicLong count = new AtomicLong();
+        private final Queue<String> messages = new ConcurrentLinkedQueue<>();
+
+        void add(String message) {
+            if (count.incrementAndGet() <= MAX_MESSAGES) {
+                messages.add(message);
+            }
+        }
+
+        long count() {
+            return count.get();
+        }
+
+        Queue<String> messages() {
+            return messages;
+        }
+
+        /**
+         * A core logger that counts logged errors as failures and drops everything else.
+         */
+        PolicyLogger logger(String platform) {
+            return new PolicyLogger() {
+                @Override
+                public void info(String message) {
+                }
+
+                @Override
+                public void warn(String message) {
+                }
+
+                @Override
+                public void error(String message, Throwable cause) {
+                    add(platform + " logged an error: " + message + ": " + cause);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package de.moritxius.limitedofflinemode;
+
+import de.moritxius.limitedofflinemode.core.LimitedOfflineModeCore;
+
+import java.net.InetAddress;
+
+/**
+ * Runs logins through one platform's plugin the way the proxy fires the events.
+ */
+interface StormDriver {
+
+    long TIMEOUT_SECONDS = 10;
+
+    String platform();
+
+    LimitedOfflineModeCore core();
+
+    /**
+     * Fires the login events for a new connection, connects it to {@code serverName}, waits until every handler has
+     * finished and disconnects it where the plugin keeps per-player state.
+     *
+     * @throws AssertionError if the later events disagree with the pre-login decision
+     */
+    Outcome login(String username, InetAddress address, String serverName) throws Exception;
+
+    /**
+     * @return pre-login decisions and players not yet cleared by a later event
+     */
+    int pendingLogins() throws ReflectiveOperationException;
+
+    void close();
+
+    /**
+     * @param offlineMode     whether pre-login skipped online authentication
+     * @param offlineIdentity whether the player joined with the offline UUID
+     * @param serverAllowed   whether the connection to the server went ahead
+     * @param decisionNanos   time until the pre-login decision was made
+     */
+    record Outcome(boolean offlineMode, boolean offlineIdentity, boolean serverAllowed, long decisionNanos) {
+    }
+}
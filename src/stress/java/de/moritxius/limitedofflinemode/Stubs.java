@@ -0,0 +1,68 @@
+package de.moritxius.limitedofflinemode;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+/**
+ * Proxy API objects for the stress harness: interfaces answered from a map of method names, and plugin fields the
+ * proxies would otherwise fill in.
+ */
+final class Stubs {
+
+    private Stubs() {
+    }
+
+    interface Answer {
+        Object answer(Object[] args);
+    }
+
+    /**
+     * Implements {@code type} with the given answers. Other methods return {@code null}, {@code false} or zero;
+     * equality is identity, like the proxies' own connection objects.
+     */
+    static <T> T of(Class<T> type, Map<String, Answer> answers) {
+        InvocationHandler handler = (proxy, method, args) -> switch (method.getName()) {
+            case "equals" -> proxy == args[0];
+            case "hashCode" -> System.identityHashCode(proxy);
+            case "toString" -> type.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+            default -> {
+                Answer answer = answers.get(method.getName());
+                if (answer != null) {
+                    yield answer.answer(args);
+                }
+                Class<?> returnType = method.getReturnType();
+                yield returnType.isPrimitive() && returnType != void.class
+                        ? Array.get(Array.newInstance(returnType, 1), 0)
+                        : null;
+            }
+        };
+        return type.cast(Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+
+    static Object field(Object target, String name) throws ReflectiveOperationException {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(target);
+    }
+
+    static void setField(Object target, String name, Object value) throws ReflectiveOperationException {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    /**
+     * Creates an instance without running any constructor. BungeeCord plugins can only be constructed by the proxy's
+     * plugin class loader, so their fields are set with {@link #setField} instead.
+     */
+    static <T> T allocate(Class<T> type) throws ReflectiveOperationException {
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        Object unsafe = theUnsafe.get(null);
+        return type.cast(unsafeClass.getMethod("allocateInstance", Class.class).invoke(unsafe, type));
+    }
+}
@@ -0,0 +1,123 @@
+package de.moritxius.limitedofflinemode;
+
+import com.velocitypowered.api.event.Continuation;
+import com.velocitypowered.api.event.EventTask;
+import com.velocitypowered.api.event.connection.LoginEvent;
+import com.velocitypowered.api.event.connection.PreLoginEvent;
+import com.velocitypowered.api.event.player.GameProfileRequestEvent;
+import com.velocitypowered.api.event.player.ServerPreConnectEvent;
+import com.velocitypowered.api.proxy.InboundConnection;
+import com.velocitypowered.api.proxy.Player;
+import com.velocitypowered.api.proxy.ProxyServer;
+import com.velocitypowered.api.proxy.server.RegisteredServer;
+import com.velocitypowered.api.proxy.server.ServerInfo;
+import com.velocitypowered.api.util.GameProfile;
+import com.velocitypowered.api.util.UuidUtils;
+import de.moritxius.limitedofflinemode.core.LimitedOfflineModeCore;
+import de.moritxius.limitedofflinemode.core.PendingLogins;
+import org.slf4j.Logger;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fires the login events up to {@code LoginEvent} and the player's first {@code ServerPreConnectEvent} at
+ * {@link LimitedOfflineModePlugin}, continuing returned event tasks like Velocity's event manager does.
+ */
+final class VelocityDriver implements StormDriver {
+
+    private final LimitedOfflineModePlugin plugin;
+    private final LimitedOfflineModeCore core;
+
+    VelocityDriver(Path dataDirectory, LoginStorm.Failures failures) throws ReflectiveOperationException {
+        Logger logger = Stubs.of(Logger.class, Map.of("error", args -> {
+            failures.add("velocity logged an error: " + args[0]);
+            return null;
+        }));
+        // bStats is left out; the plugin only needs its factory on proxy initialization
+        this.plugin = new LimitedOfflineModePlugin(logger, Stubs.of(ProxyServer.class, Map.of()), dataDirectory, null);
+        this.core = (LimitedOfflineModeCore) Stubs.field(plugin, "core");
+        core.setKnownServers(List.of());
+        core.load();
+    }
+
+    @Override
+    public String platform() {
+        return "velocity";
+    }
+
+    @Override
+    public LimitedOfflineModeCore core() {
+        return core;
+    }
+
+    @Override
+    public Outcome login(String username, InetAddress address, String serverName) throws Exception {
+        InetSocketAddress remote = new InetSocketAddress(address, 25565);
+        InboundConnection connection = Stubs.of(InboundConnection.class, Map.of("getRemoteAddress", args -> remote));
+
+        long start = System.nanoTime();
+        PreLoginEvent preLogin = new PreLoginEvent(connection, username, null);
+        await(plugin.onPreLogin(preLogin));
+        long decisionNanos = System.nanoTime() - start;
+        boolean offlineMode = preLogin.getResult().isForceOfflineMode();
+
+        GameProfile original = new GameProfile(UUID.randomUUID(), username, List.of());
+        GameProfileRequestEvent profileRequest = new GameProfileRequestEvent(connection, original, !offlineMode);
+        await(plugin.onGameProfileRequest(profileRequest));
+        GameProfile profile = profileRequest.getGameProfile();
+        boolean offlineIdentity = profile.getId().equals(UuidUtils.generateOfflinePlayerUuid(username));
+        if (offlineMode != offlineIdentity) {
+            throw new AssertionError(username + (offlineMode ? " was let in offline but kept profile "
+                    : " authenticated online but got the offline profile ") + profile.getId());
+        }
+
+        Player player = Stubs.of(Player.class, Map.of(
+                "getUsername", args -> username,
+                "getUniqueId", args -> profile.getId(),
+                "getRemoteAddress", args -> remote,
+                "isOnlineMode", args -> !offlineMode));
+        plugin.onLogin(new LoginEvent(player));
+
+        ServerInfo info = new ServerInfo(serverName, remote);
+        RegisteredServer server = Stubs.of(RegisteredServer.class, Map.of("getServerInfo", args -> info));
+        ServerPreConnectEvent serverConnect = new ServerPreConnectEvent(player, server);
+        await(plugin.onServerPreConnect(serverConnect));
+        return new Outcome(offlineMode, offlineIdentity, serverConnect.getResult().isAllowed(), decisionNanos);
+    }
+
+    private static void await(EventTask task) throws Exception {
+        if (task == null) {
+            return;
+        }
+        CompletableFuture<Void> resumed = new CompletableFuture<>();
+        task.execute(new Continuation() {
+            @Override
+            public void resume() {
+                resumed.complete(null);
+            }
+
+            @Override
+            public void resumeWithException(Throwable cause) {
+                resumed.completeExceptionally(cause);
+            }
+        });
+        resumed.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public int pendingLogins() throws ReflectiveOperationException {
+        return ((PendingLogins<?, ?>) Stubs.field(plugin, "offlineProfiles")).size();
+    }
+
+    @Override
+    public void close() {
+        plugin.onProxyShutdown(null);
+    }
+}